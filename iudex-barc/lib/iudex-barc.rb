@@ -29,5 +29,6 @@ module Iudex
 
     import 'iudex.barc.BARCDirectory'
     import 'iudex.barc.BARCFile'
+    import 'iudex.barc.GroupCommit'
   end
 end
@@ -16,16 +16,25 @@
 package iudex.barc;
 
 import iudex.barc.BARCFile.Record;
+import iudex.barc.MappedReader.MappedRecord;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Manages concurrent reads and exclusive write sessions to a directory of
- * BARC files.
+ * BARC files. Up to {@link #setMaxWriteSessions(int)} write sessions may be
+ * open concurrently, each writing to its own BARC file. All live records
+ * may be read via {@link #scan()}, or in parallel via
+ * {@link #scan(RecordHandler, Executor)}.
  */
 public final class BARCDirectory implements Closeable
 {
@@ -75,30 +84,181 @@ public final class BARCDirectory implements Closeable
         _maxOpen = files;
     }
 
+    /**
+     * Set the maximum number of concurrent write sessions, and thus BARC
+     * files open for write at once. Each session writes to its own file,
+     * so writing threads only wait when all are in use.
+     * Default: 1
+     * @throws IllegalArgumentException if sessions is less than 1
+     */
+    public synchronized void setMaxWriteSessions( int sessions )
+    {
+        if( sessions < 1 ) {
+            throw new IllegalArgumentException(
+                "Invalid setMaxWriteSessions value" );
+        }
+        _maxWriteSessions = sessions;
+        notifyAll();
+    }
+
+    /**
+     * Set a GroupCommit to batch forcing of records to disk, for all BARC
+     * files of this directory, or null (the default) to force each record
+     * on close. The GroupCommit is not closed by this directory.
+     */
+    public synchronized void setGroupCommit( GroupCommit groupCommit )
+    {
+        _groupCommit = groupCommit;
+        for( BARCFile bfile : _barcs ) {
+            if( bfile != null ) bfile.setGroupCommit( groupCommit );
+        }
+    }
+
+    /**
+     * Start a write session, waiting if the maximum number of write
+     * sessions are already in progress. The session writes to an idle
+     * write file below the target length, or otherwise a new BARC file.
+     */
     public synchronized WriteSession startWriteSession()
         throws InterruptedException, IOException
     {
-        // Wait for no current session.
-        // FIXME: Optimize by pooling a controlled number of simultaneous write
-        // files instead of just one.
-        while( _currentSession != null ) wait();
+        while( _writing.size() >= _maxWriteSessions ) wait();
 
-        // If no _writeFile yet then try to use the last file in the directory
-        if( ( _writeFile == null ) && ( _maxFnum >= 0 ) ) {
-            _writeFile = openBarc( _maxFnum, false );
+        // If no write files yet then try to use the last file in the
+        // directory
+        if( ! _resumed ) {
+            _resumed = true;
+            if( _maxFnum >= 0 ) _idleWriteFiles.add( _maxFnum );
         }
 
-        // If _writeFile is too large then stop using it.
-        if( ( _writeFile != null ) &&
-            ( _writeFile.size() >= _targetBARCLength ) ) {
-            _writeFile = null;
+        // Use the most recently idle write file, unless too large.
+        BARCFile barc = null;
+        int fnum = -1;
+        while( ( barc == null ) && ! _idleWriteFiles.isEmpty() ) {
+            fnum = _idleWriteFiles.remove( _idleWriteFiles.size() - 1 );
+            barc = openBarc( fnum, false );
+            if( barc.size() >= _targetBARCLength ) barc = null;
         }
 
-        // If no _writeFile, then create a new one.
-        if( _writeFile == null ) _writeFile = openBarc( _maxFnum + 1, true );
+        // If no write file, then create a new one.
+        if( barc == null ) {
+            fnum = _maxFnum + 1;
+            barc = openBarc( fnum, true );
+        }
+
+        _writing.add( fnum );
+        return new WriteSession( barc, fnum );
+    }
+
+    /**
+     * Return a new Scan over the live records of all BARC files in this
+     * directory.
+     */
+    public Scan scan()
+    {
+        return new Scan();
+    }
 
-        _currentSession = new WriteSession( _writeFile, _maxFnum );
-        return _currentSession;
+    /**
+     * Handler of records in a parallel scan. Called concurrently, from
+     * executor threads.
+     */
+    public interface RecordHandler
+    {
+        void handle( int fileNumber, MappedRecord record ) throws IOException;
+    }
+
+    /**
+     * Scan all live records, as per {@link #scan()}, handing each to
+     * handler via executor, in batches, and wait for all to complete.
+     * Records are handled out of order. The number of batches queued or
+     * in progress is bounded, such that this thread, reading records, is
+     * paced to the handlers.
+     * @return the number of records scanned
+     * @throws IOException the first failure of the scan or any handler,
+     *         after any batches in progress complete.
+     */
+    public long scan( final RecordHandler handler, final Executor executor )
+        throws IOException, InterruptedException
+    {
+        final Semaphore pending = new Semaphore( MAX_PENDING_BATCHES );
+        final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+        final Scan scan = scan();
+        long count = 0;
+        try {
+            Batch batch = new Batch( handler, pending, failure );
+            MappedRecord rec;
+            while( ( failure.get() == null ) &&
+                   ( ( rec = scan.next() ) != null ) ) {
+                batch.add( scan.fileNumber(), rec );
+                ++count;
+                if( batch.isFull() ) {
+                    batch.submit( executor );
+                    batch = new Batch( handler, pending, failure );
+                }
+            }
+            if( ! batch.isEmpty() ) batch.submit( executor );
+        }
+        finally {
+            pending.acquire( MAX_PENDING_BATCHES ); // All complete
+            pending.release( MAX_PENDING_BATCHES );
+        }
+
+        final Throwable t = failure.get();
+        if( t instanceof IOException ) throw (IOException) t;
+        if( t != null ) throw new IOException( t );
+        return count;
+    }
+
+    /**
+     * Sequential scan of the live records of all BARC files of a
+     * directory, in file number and offset order, skipping replaced
+     * ('R') records. Each file is read via {@link MappedReader}, as of
+     * its size when reached. Records may be handed off to other threads.
+     */
+    public final class Scan
+    {
+        /**
+         * Returns the next live record or null if no record remains.
+         */
+        public MappedRecord next() throws IOException
+        {
+            while( true ) {
+                if( _reader != null ) {
+                    final MappedRecord rec = _reader.nextLive();
+                    if( rec != null ) return rec;
+                    _reader = null;
+                }
+                if( ! nextFile() ) return null;
+            }
+        }
+
+        /**
+         * File number of the last record returned by next().
+         */
+        public int fileNumber()
+        {
+            return _fnum;
+        }
+
+        private boolean nextFile() throws IOException
+        {
+            while( _fnum < maxFileNumber() ) {
+                ++_fnum;
+                try {
+                    // Mapped in full, should the file be closed for
+                    // setMaxOpen
+                    _reader = openBarc( _fnum, false ).mappedReader().mapAll();
+                    return true;
+                }
+                catch( FileNotFoundException x ) {} // skip to next file
+            }
+            return false;
+        }
+
+        private int _fnum = -1;
+        private MappedReader _reader = null;
     }
 
     @Override
@@ -109,8 +269,10 @@ public final class BARCDirectory implements Closeable
         }
         _barcs.clear();
         _openCount = 0;
-        _writeFile = null;
-        _currentSession = null;
+        _idleWriteFiles.clear();
+        _writing.clear();
+        _resumed = false;
+        notifyAll();
     }
 
     /**
@@ -140,19 +302,36 @@ public final class BARCDirectory implements Closeable
             _barc.markReplaced( offset );
         }
 
+        /**
+         * Close any current record and wait for all records appended to
+         * this session's file to be forced to disk.
+         * @see BARCFile#awaitDurable(long)
+         */
+        public void awaitDurable() throws InterruptedException, IOException
+        {
+            if( _currentRecord != null ) {
+                _currentRecord.close();
+                _currentRecord = null;
+            }
+            _barc.awaitDurable( _barc.size() );
+        }
+
         /**
          * End session, allowing another thread to write to this same file.
          */
         public void close() throws IOException
         {
+            if( _barc == null ) return;
+
             if( _currentRecord != null ) {
                 _currentRecord.close();
                 _currentRecord = null;
             }
 
+            final BARCFile barc = _barc;
             _barc = null;
 
-            closeSession();
+            closeSession( barc, _fnum );
         }
 
         WriteSession( BARCFile barc, int fnum )
@@ -175,8 +354,9 @@ public final class BARCDirectory implements Closeable
             File bfile = new File( _path, String.format(  "%06d.barc", fnum ) );
             if( create || bfile.exists() ) {
                 barc = new BARCFile( bfile );
+                barc.setGroupCommit( _groupCommit );
                 // close before set to avoid any conflict
-                while( _openCount + 1 > _maxOpen ) closeBarc();
+                while( ( _openCount + 1 > _maxOpen ) && closeBarc() );
                 while( _barcs.size() <= fnum ) _barcs.add( null );
                 _barcs.set( fnum, barc );
                 ++_openCount;
@@ -189,20 +369,24 @@ public final class BARCDirectory implements Closeable
         return barc;
     }
 
-    private synchronized void closeBarc()
+    /**
+     * Close the first (lowest) file not in a write session.
+     * @return false if no such file was open
+     */
+    private synchronized boolean closeBarc()
         throws IOException
     {
-        // Close the first (lowest) file.
         final int end = _barcs.size();
         for( int i = 0; i < end; ++i ) {
             BARCFile bfile = _barcs.get( i );
-            if( bfile != null ) {
+            if( ( bfile != null ) && ! _writing.contains( i ) ) {
                 _barcs.set( i, null );
                 bfile.close();
                 --_openCount;
-                break;
+                return true;
             }
         }
+        return false;
     }
 
     private void scanBARCFiles()
@@ -219,17 +403,99 @@ public final class BARCDirectory implements Closeable
         }
     }
 
-    private synchronized void closeSession()
+    private synchronized int maxFileNumber()
+    {
+        return _maxFnum;
+    }
+
+    private static final class Batch implements Runnable
+    {
+        Batch( RecordHandler handler,
+               Semaphore pending,
+               AtomicReference<Throwable> failure )
+        {
+            _handler = handler;
+            _pending = pending;
+            _failure = failure;
+        }
+
+        void add( int fileNumber, MappedRecord record )
+        {
+            _fnums[ _size ] = fileNumber;
+            _records[ _size++ ] = record;
+        }
+
+        boolean isFull()
+        {
+            return ( _size == BATCH_SIZE );
+        }
+
+        boolean isEmpty()
+        {
+            return ( _size == 0 );
+        }
+
+        void submit( Executor executor ) throws InterruptedException
+        {
+            _pending.acquire();
+            try {
+                executor.execute( this );
+            }
+            catch( RuntimeException x ) {
+                _pending.release();
+                throw x;
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                for( int i = 0; ( i < _size ) && ( _failure.get() == null );
+                     ++i ) {
+                    _handler.handle( _fnums[i], _records[i] );
+                }
+            }
+            catch( Exception x ) {
+                _failure.compareAndSet( null, x );
+            }
+            catch( Error x ) {
+                _failure.compareAndSet( null, x );
+                throw x;
+            }
+            finally {
+                _pending.release();
+            }
+        }
+
+        private final RecordHandler _handler;
+        private final Semaphore _pending;
+        private final AtomicReference<Throwable> _failure;
+        private final int[] _fnums = new int[ BATCH_SIZE ];
+        private final MappedRecord[] _records = new MappedRecord[ BATCH_SIZE ];
+        private int _size = 0;
+    }
+
+    private synchronized void closeSession( BARCFile barc, int fnum )
     {
-        _currentSession = null;
-        notify();  //Next thread can startWriteSession()
+        // Ignore sessions outliving a close() of this directory
+        if( _writing.remove( fnum ) ) {
+            if( barc.size() < _targetBARCLength ) _idleWriteFiles.add( fnum );
+            notify();  //Next thread can startWriteSession()
+        }
     }
 
+    private static final int BATCH_SIZE = 64;
+    private static final int MAX_PENDING_BATCHES = 64;
+
     private final File _path;
 
     private long _targetBARCLength = 0x40000000L; //1GB
-    private BARCFile _writeFile = null;
-    private WriteSession _currentSession = null;
+    private int _maxWriteSessions = 1;
+    private GroupCommit _groupCommit = null;
+    private boolean _resumed = false;
+    private final ArrayList<Integer> _idleWriteFiles = new ArrayList<Integer>();
+    private final Set<Integer> _writing = new HashSet<Integer>();
 
     private int _maxFnum = -1;
     private int _openCount = 0;
@@ -26,6 +26,7 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -50,6 +51,11 @@ import com.gravitext.util.ResizableCharBuffer;
  * process may see an empty or partial BARC record at the end of a
  * BARCFile while a record append operation is in progress.
  *
+ * By default each record is forced to disk on close. With a
+ * {@link GroupCommit} set, records are instead forced in batches, in the
+ * background, and {@link #awaitDurable(long)} may be used to wait for
+ * persistence.
+ *
  * @see http://upload.wikimedia.org/wikipedia/commons/a/ae/BARC-LARC-XV-2.jpeg
  */
 public final class BARCFile implements Closeable
@@ -60,8 +66,13 @@ public final class BARCFile implements Closeable
         _rafile = new RandomAccessFile( file, "rw" );
         _channel = _rafile.getChannel();
         _end = new AtomicLong( _channel.size() );
+        _durable = _end.get();
     }
 
+    /**
+     * Close, forcing any records appended but not yet forced by a
+     * GroupCommit.
+     */
     public void close() throws IOException
     {
         if( _currentRecord != null ) {
@@ -69,9 +80,54 @@ public final class BARCFile implements Closeable
             _currentRecord = null;
         }
 
+        if( _groupCommit != null ) forceAppended();
+
         _rafile.close();
     }
 
+    /**
+     * Set a GroupCommit to batch the forcing of appended records to
+     * disk, or null (the default) to force each record on close.
+     */
+    public void setGroupCommit( GroupCommit groupCommit )
+    {
+        _groupCommit = groupCommit;
+    }
+
+    /**
+     * Return the length of this file known to be forced to disk.
+     */
+    public long durableSize()
+    {
+        synchronized( _durableLock ) {
+            return _durable;
+        }
+    }
+
+    /**
+     * Wait until records up to end (i.e. {@link #size()} after the last
+     * record of interest is closed) are forced to disk.
+     * @throws IOException if a GroupCommit force of this file failed.
+     */
+    public void awaitDurable( long end )
+        throws InterruptedException, IOException
+    {
+        if( _groupCommit == null ) {
+            if( durableSize() < end ) forceAppended();
+            return;
+        }
+
+        synchronized( _durableLock ) {
+            while( _durable < end ) {
+                if( _syncError != null ) {
+                    throw new IOException( "Group commit failed",
+                                           _syncError );
+                }
+                _durableLock.wait();
+            }
+        }
+    }
+
     public Record append() throws IOException
     {
         if( _currentRecord != null ) _currentRecord.close();
@@ -85,6 +141,9 @@ public final class BARCFile implements Closeable
     {
         _end.set( 0 );
         _channel.truncate( 0 );
+        synchronized( _durableLock ) {
+            _durable = 0;
+        }
     }
 
     public void markReplaced( long offset ) throws IOException
@@ -113,9 +172,24 @@ public final class BARCFile implements Closeable
         return _end.get();
     }
 
+    /**
+     * Returns a new {@link MappedReader} over the records of this BARC
+     * file, as of its current size, via memory mapped segments.
+     */
+    public MappedReader mappedReader()
+    {
+        return mappedReader( MappedReader.SEGMENT_SIZE );
+    }
+
+    MappedReader mappedReader( int segmentSize )
+    {
+        return new MappedReader( _channel, size(), segmentSize );
+    }
+
     /**
      * Provides sequential access to each record in a BARC File. This includes
      * R-records, which many applications will want to skip.
+     * @see MappedReader#nextLive()
      */
     public final class RecordReader
     {
@@ -123,7 +197,7 @@ public final class BARCFile implements Closeable
          * Returns next record or null if no record remains (EOF).
          * Record.close() should be called when done with each record.
          */
-        Record next() throws IOException
+        public Record next() throws IOException
         {
             Record record = null; //null as in end
 
@@ -289,8 +363,8 @@ public final class BARCFile implements Closeable
         Record() throws IOException
         {
             _offset = _end.get(); // Append to end
-            writeBARCHeader(); // Initial copy
-            _channel.position( _offset + HEADER_LENGTH );
+            _buffer = writeBuffer();
+            _buffer.clear();
         }
 
         /**
@@ -300,7 +374,8 @@ public final class BARCFile implements Closeable
         public void markReplaced() throws IOException
         {
             _type = 'R';
-            writeBARCHeader();
+            ByteBuffer header = ByteBuffer.allocate( HEADER_LENGTH );
+            writeAt( encodeBARCHeader( header ), _offset );
             _writeState = WriteState.CLOSED;
         }
 
@@ -329,17 +404,40 @@ public final class BARCFile implements Closeable
         {
             if( _writeState != WriteState.CLOSED  ) {
                 _writeState = WriteState.CLOSED;
-                long end = _channel.position();
-                _length = ( (int) ( end - _offset ) - HEADER_LENGTH );
+                _length = (int) _written;
                 if( _length > 0 ) {
-                    _channel.write( CRLF_BYTES.duplicate() );
-                    end += 2;
+                    if( _buffer.remaining() < 2 ) spill();
+                    _buffer.put( (byte) '\r' ).put( (byte) '\n' );
                     _length += 2;
                 }
-                writeBARCHeader(); // With adjusted lengths
+                final long end = _offset + HEADER_LENGTH + _length;
+
+                final ByteBuffer header = encodeBARCHeader( _headerBuffer );
+                _buffer.flip();
+                if( ! _spilled ) {
+                    // Header, body and CRLF in one gathering write
+                    _channel.position( _offset );
+                    writeFully( header, _buffer );
+                }
+                else {
+                    writeFully( _buffer );
+                    writeAt( header, _offset ); // With final lengths
+                }
+                _buffer.clear();
                 _out = null;
-                _channel.force( false );
-                _end.set( end );
+
+                final GroupCommit gc = _groupCommit;
+                if( gc == null ) {
+                    _channel.force( false );
+                    _end.set( end );
+                    durable( end, null );
+                }
+                else {
+                    _end.set( end );
+                    if( ! gc.appended( BARCFile.this, end - _offset ) ) {
+                        forceAppended();
+                    }
+                }
             }
         }
 
@@ -360,45 +458,58 @@ public final class BARCFile implements Closeable
                 throw new IOException( "Incomplete header read at offset: " +
                                        _offset );
             }
-            bbuff.flip();
 
-            CharBuffer cbuff = ASCII.decode( bbuff );
+            checkHeader( bbuff, 0, _offset );
+            _length = getHex( bbuff, 6, 8 );
+            _type = (char) bbuff.get( 15 );
+            _compressed = ( bbuff.get( 16 ) == 'C' );
+            _metaHeaderLength = getHex( bbuff, 18, 4 );
+            _rqstHeaderLength = getHex( bbuff, 23, 4 );
+            _respHeaderLength = getHex( bbuff, 28, 4 );
+        }
 
-            if( ! "BARC1 ".contentEquals( cbuff.subSequence( 0, 6 ) ) ) {
-                throw new IOException( "Not a header at read offset:" +
-                                       _offset );
-                //FIXME: Custom IOException derivative?
+        /**
+         * Encode the BARC header of this record to out, returning out
+         * flipped for write.
+         */
+        private ByteBuffer encodeBARCHeader( ByteBuffer out )
+        {
+            out.clear();
+            out.put( BARC1_BYTES );
+            putHex( _length, 8, out );
+            out.put( (byte) ' ' );
+            out.put( (byte) ( ( _type < 0x80 ) ? _type : '?' ) );
+            out.put( (byte) ( _compressed ? 'C' : 'P' ) );
+            out.put( (byte) ' ' );
+            putHex( _metaHeaderLength, 4, out );
+            out.put( (byte) ' ' );
+            putHex( _rqstHeaderLength, 4, out );
+            out.put( (byte) ' ' );
+            putHex( _respHeaderLength, 4, out );
+            out.put( (byte) '\r' ).put( (byte) '\n' );
+            out.put( (byte) '\r' ).put( (byte) '\n' );
+            out.flip();
+            return out;
+        }
+
+        /**
+         * Write the buffered record bytes, continuing after the header
+         * on the first spill.
+         */
+        private void spill() throws IOException
+        {
+            _buffer.flip();
+            spill( _buffer );
+            _buffer.clear();
+        }
+
+        private void spill( ByteBuffer... srcs ) throws IOException
+        {
+            if( ! _spilled ) {
+                _channel.position( _offset + HEADER_LENGTH );
+                _spilled = true;
             }
-            cbuff.position( 6 );
-            _length = getHex( cbuff, 8 );
-            cbuff.get(); // skip space
-            _type = cbuff.get();
-            _compressed = ( cbuff.get() == 'C' );
-            cbuff.get(); // skip space
-            _metaHeaderLength = getHex( cbuff, 4 );
-            cbuff.get(); // skip space
-            _rqstHeaderLength = getHex( cbuff, 4 );
-            cbuff.get(); // skip space
-            _respHeaderLength = getHex( cbuff, 4 );
-        }
-
-        private void writeBARCHeader() throws IOException
-        {
-            CharBuffer cbuff = CharBuffer.allocate( HEADER_LENGTH );
-            cbuff.put( "BARC1 " );
-            putHex( _length, 8, cbuff );
-            cbuff.put( ' ' );
-            cbuff.put( _type ).put( _compressed ? 'C' : 'P' );
-            cbuff.put( ' ' );
-            putHex( _metaHeaderLength, 4, cbuff );
-            cbuff.put( ' ' );
-            putHex( _rqstHeaderLength, 4, cbuff );
-            cbuff.put( ' ' );
-            putHex( _respHeaderLength, 4, cbuff );
-            cbuff.put( CRLF ).put( CRLF );
-            cbuff.flip();
-
-            _channel.write( ASCII.encode( cbuff ),  _offset );
+            writeFully( srcs );
         }
 
         private ByteBuffer readHeaderBlock( int headerLength )
@@ -417,41 +528,6 @@ public final class BARCFile implements Closeable
             return hbuff;
         }
 
-        private List<Header> parseHeaderBlock( ByteBuffer buffer )
-            throws IOException
-        {
-            CharBuffer cbuff = UTF_8.decode( buffer );
-            List<Header> headers = new ArrayList<Header>( 6 );
-            int i = cbuff.position();
-            final int end = cbuff.limit() - 2; //-2 for end CRLF
-            int last = i;
-            CharSequence name = null;
-            while( i < end ) {
-                final char c = cbuff.get( i );
-                if( name == null ) {
-                    if( c == ':' ) {
-                        name = cbuff.subSequence( last, i );
-                        last = ( i += 2 );
-                    }
-                    else ++i;
-                }
-                else if( c == '\r' ) {
-                    headers.add(
-                        new Header( name, cbuff.subSequence( last, i ) ) );
-                    name = null;
-
-                    if ( cbuff.get( ++i ) != '\n' ) {
-                        throw new IOException(
-                            "Invalid header content: \\r, !=\\n" );
-                    }
-                    last = ++i;
-                }
-                else ++i;
-            }
-
-            return headers;
-        }
-
         private int writeHeaderBlock( Iterable<Header> headers )
             throws IOException
         {
@@ -518,6 +594,10 @@ public final class BARCFile implements Closeable
             }
         }
 
+        /**
+         * Accumulates header blocks and body in the reusable write buffer,
+         * spilling to the channel only when full.
+         */
         private final class RecordOutputStream extends OutputStream
         {
             @Override
@@ -530,13 +610,31 @@ public final class BARCFile implements Closeable
             public void write( byte[] bytes, int offset, int length )
                 throws IOException
             {
-                _channel.write( ByteBuffer.wrap( bytes, offset, length ) );
+                _written += length;
+                final ByteBuffer buffer = _buffer;
+                if( length <= buffer.remaining() ) {
+                    buffer.put( bytes, offset, length );
+                }
+                else if( length < buffer.capacity() ) {
+                    final int head = buffer.remaining();
+                    buffer.put( bytes, offset, head );
+                    spill();
+                    buffer.put( bytes, offset + head, length - head );
+                }
+                else {
+                    // Large write gathered with any buffered bytes
+                    buffer.flip();
+                    spill( buffer, ByteBuffer.wrap( bytes, offset, length ) );
+                    buffer.clear();
+                }
             }
 
             @Override
             public void write( int b ) throws IOException
             {
-                _channel.write( ByteBuffer.wrap( new byte [] { (byte) b } ) );
+                if( ! _buffer.hasRemaining() ) spill();
+                _buffer.put( (byte) b );
+                ++_written;
             }
         }
 
@@ -572,12 +670,12 @@ public final class BARCFile implements Closeable
             public int read() throws IOException
             {
                 if( _offset < _end ) {
-                    ByteBuffer buff = ByteBuffer.allocate( 1 );
-                    int len = _channel.read( buff, _offset );
+                    if( _one == null ) _one = ByteBuffer.allocate( 1 );
+                    _one.clear();
+                    int len = _channel.read( _one, _offset );
                     if( len == 1 ) {
                         ++_offset;
-                        buff.flip();
-                        return ( buff.get() & 0xFF );
+                        return ( _one.get( 0 ) & 0xFF );
                     }
                 }
                 return -1; //EOF
@@ -585,6 +683,7 @@ public final class BARCFile implements Closeable
 
             private long _offset;
             private final long _end;
+            private ByteBuffer _one = null;
         }
 
         private final long _offset;
@@ -597,6 +696,9 @@ public final class BARCFile implements Closeable
 
         private OutputStream _out = null;
         private WriteState _writeState = WriteState.BEGIN;
+        private ByteBuffer _buffer = null;
+        private long _written = 0;
+        private boolean _spilled = false;
 
         private InputStream _in = null;
         private ByteBuffer _metaHeadBytes = null;
@@ -613,11 +715,12 @@ public final class BARCFile implements Closeable
 
     private static final String CRLF = "\r\n";
 
-    private static final ByteBuffer CRLF_BYTES =
-        ASCII.encode( CharBuffer.wrap( CRLF ) );
+    private static final byte[] BARC1_BYTES = { 'B', 'A', 'R', 'C', '1', ' ' };
 
     private static final int BUFFER_SIZE = 2048;
 
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
     private static enum WriteState {
         BEGIN,
         META_HEADER,
@@ -627,11 +730,80 @@ public final class BARCFile implements Closeable
         CLOSED
     };
 
+    /**
+     * Force all closed records to disk.
+     * @return the end offset now durable, or -1 if this file was
+     *         already closed.
+     */
+    long forceAppended() throws IOException
+    {
+        final long end = _end.get();
+        try {
+            _channel.force( false );
+        }
+        catch( ClosedChannelException x ) {
+            return -1; // Forced on close()
+        }
+        catch( IOException x ) {
+            durable( -1, x );
+            throw x;
+        }
+        durable( end, null );
+        return end;
+    }
+
+    private void durable( long end, IOException error )
+    {
+        synchronized( _durableLock ) {
+            if( end > _durable ) _durable = end;
+            _syncError = error;
+            _durableLock.notifyAll();
+        }
+    }
+
+    /**
+     * Return the reusable write buffer, allocated on first use. Writes
+     * are single threaded, one record at a time.
+     */
+    private ByteBuffer writeBuffer()
+    {
+        if( _writeBuffer == null ) {
+            _writeBuffer = ByteBuffer.allocateDirect( WRITE_BUFFER_SIZE );
+            _headerBuffer = ByteBuffer.allocateDirect( HEADER_LENGTH );
+        }
+        return _writeBuffer;
+    }
+
+    /**
+     * Write all of srcs at the current channel position.
+     */
+    private void writeFully( ByteBuffer... srcs ) throws IOException
+    {
+        final ByteBuffer last = srcs[ srcs.length - 1 ];
+        do {
+            _channel.write( srcs );
+        } while( last.hasRemaining() );
+    }
+
+    private void writeAt( ByteBuffer src, long position ) throws IOException
+    {
+        while( src.hasRemaining() ) {
+            position += _channel.write( src, position );
+        }
+    }
+
     private Record _currentRecord;
+    private ByteBuffer _writeBuffer = null;
+    private ByteBuffer _headerBuffer = null;
     private final RandomAccessFile _rafile;
     private final FileChannel _channel;
     private final AtomicLong _end;
 
+    private volatile GroupCommit _groupCommit = null;
+    private final Object _durableLock = new Object();
+    private long _durable;
+    private IOException _syncError = null;
+
     static int copy( InputStream in, OutputStream out )
         throws IOException
     {
@@ -649,6 +821,44 @@ public final class BARCFile implements Closeable
         return total;
     }
 
+    /**
+     * Parse an HTTP-style header block, ending in a blank line.
+     */
+    static List<Header> parseHeaderBlock( ByteBuffer buffer )
+        throws IOException
+    {
+        CharBuffer cbuff = UTF_8.decode( buffer );
+        List<Header> headers = new ArrayList<Header>( 6 );
+        int i = cbuff.position();
+        final int end = cbuff.limit() - 2; //-2 for end CRLF
+        int last = i;
+        CharSequence name = null;
+        while( i < end ) {
+            final char c = cbuff.get( i );
+            if( name == null ) {
+                if( c == ':' ) {
+                    name = cbuff.subSequence( last, i );
+                    last = ( i += 2 );
+                }
+                else ++i;
+            }
+            else if( c == '\r' ) {
+                headers.add(
+                    new Header( name, cbuff.subSequence( last, i ) ) );
+                name = null;
+
+                if ( cbuff.get( ++i ) != '\n' ) {
+                    throw new IOException(
+                        "Invalid header content: \\r, !=\\n" );
+                }
+                last = ++i;
+            }
+            else ++i;
+        }
+
+        return headers;
+    }
+
     static void putObj( Object it, ResizableCharBuffer b )
     {
         if( it instanceof CharSequence ) b.put( (CharSequence ) it );
@@ -657,24 +867,45 @@ public final class BARCFile implements Closeable
 
     static void putHex( int number,
                         int digits,
-                        CharBuffer out )
+                        ByteBuffer out )
     {
         int i = 0;
         int shift = 4 * digits;
         while( i < digits ){
             shift -= 4;
-            out.put( HEX_DIGITS[ ( number >> shift ) & 0x0f ] );
+            out.put( HEX_BYTES[ ( number >> shift ) & 0x0f ] );
             ++i;
         }
     }
 
-    static int getHex( CharBuffer cbuff, int digits )
+    /**
+     * Throw IOException if header does not start with the BARC1 magic.
+     * The header layout is:
+     * "BARC1 " length(8) ' ' type compressed ' ' meta(4) ' ' rqst(4) ' '
+     * resp(4) CRLF CRLF, with lengths as lower case hex.
+     */
+    static void checkHeader( ByteBuffer header, int index, long offset )
+        throws IOException
+    {
+        for( int i = 0; i < BARC1_BYTES.length; ++i ) {
+            if( header.get( index + i ) != BARC1_BYTES[i] ) {
+                throw new IOException( "Not a header at read offset:" +
+                                       offset );
+                //FIXME: Custom IOException derivative?
+            }
+        }
+    }
+
+    /**
+     * Return the value of hex digits at (absolute) index of bbuff.
+     */
+    static int getHex( ByteBuffer bbuff, int index, int digits )
         throws IOException
     {
         int value = 0;
         while( --digits >= 0 ) {
             value <<= 4;
-            char d = cbuff.get();
+            char d = (char) ( bbuff.get( index++ ) & 0xff );
             if( ( d >= '0' ) && ( d <= '9' ) ) {
                 value += ( d - '0' );
             }
@@ -686,6 +917,8 @@ public final class BARCFile implements Closeable
         return value;
     }
 
-    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte[] HEX_BYTES = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
 
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.barc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Batches the fsync of appended BARC records. BARCFiles set with a
+ * GroupCommit (via {@link BARCFile#setGroupCommit(GroupCommit)} or
+ * {@link BARCDirectory#setGroupCommit(GroupCommit)}) finalize each
+ * record on close as usual, but rather than forcing it to disk
+ * immediately, leave it to a single background flusher thread. The
+ * flusher forces all files with pending records once the oldest has
+ * waited maxDelay, or once maxBytes are pending, whichever is first.
+ * Callers needing persistence may wait on
+ * {@link BARCFile#awaitDurable(long)} or be notified via a
+ * {@link Listener}.
+ */
+public final class GroupCommit implements Closeable
+{
+    /**
+     * Notified, on the flusher thread, as records become durable.
+     */
+    public interface Listener
+    {
+        /**
+         * All records of barc up to end have been forced to disk.
+         */
+        void durable( BARCFile barc, long end );
+    }
+
+    /**
+     * Set the maximum time in milliseconds an appended record may wait
+     * to be forced (default: 1000).
+     */
+    public synchronized void setMaxDelay( long maxDelay )
+    {
+        _maxDelay = maxDelay;
+    }
+
+    /**
+     * Set the number of appended bytes pending, across all files, which
+     * triggers a force before maxDelay (default: 4MB).
+     */
+    public synchronized void setMaxBytes( long maxBytes )
+    {
+        _maxBytes = maxBytes;
+    }
+
+    public void setListener( Listener listener )
+    {
+        _listener = listener;
+    }
+
+    /**
+     * Force all pending files now, on the calling thread.
+     */
+    public void flush() throws IOException
+    {
+        force( takePending() );
+    }
+
+    /**
+     * Stop the flusher thread, after forcing any pending files.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        final Thread flusher;
+        synchronized( this ) {
+            _closed = true;
+            flusher = _flusher;
+            _flusher = null;
+            notifyAll();
+        }
+        if( flusher != null ) {
+            try {
+                flusher.join();
+            }
+            catch( InterruptedException x ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Record bytes appended to barc, pending force.
+     * @return false if closed, and barc should instead be forced by the
+     *         caller.
+     */
+    synchronized boolean appended( BARCFile barc, long bytes )
+    {
+        if( _closed ) return false;
+
+        final boolean first = _pending.isEmpty();
+        if( first ) {
+            _oldest = System.currentTimeMillis();
+        }
+        _pending.add( barc );
+        _pendingBytes += bytes;
+
+        if( _flusher == null ) {
+            _flusher = new Thread( new Flusher(), "barc-group-commit" );
+            _flusher.setDaemon( true );
+            _flusher.start();
+        }
+        else if( first || ( _pendingBytes >= _maxBytes ) ) {
+            // Flusher is idle without pending files, or now due
+            notifyAll();
+        }
+        return true;
+    }
+
+    private final class Flusher implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try {
+                List<BARCFile> files;
+                while( ( files = awaitPending() ) != null ) {
+                    try {
+                        force( files );
+                    }
+                    catch( IOException x ) {
+                        _log.error( "On group commit: ", x );
+                    }
+                }
+            }
+            catch( InterruptedException x ) {
+                _log.warn( "Group commit flusher interrupted: " + x );
+            }
+        }
+    }
+
+    /**
+     * Wait for pending files to be due, and take them, or return null
+     * on close.
+     */
+    private synchronized List<BARCFile> awaitPending()
+        throws InterruptedException
+    {
+        while( ! _closed ) {
+            if( _pending.isEmpty() ) {
+                wait();
+                continue;
+            }
+            final long remaining =
+                _oldest + _maxDelay - System.currentTimeMillis();
+            if( ( remaining <= 0 ) || ( _pendingBytes >= _maxBytes ) ) {
+                return takePending();
+            }
+            wait( remaining );
+        }
+        return null;
+    }
+
+    private synchronized List<BARCFile> takePending()
+    {
+        List<BARCFile> files = new ArrayList<BARCFile>( _pending );
+        _pending.clear();
+        _pendingBytes = 0;
+        return files;
+    }
+
+    /**
+     * Force each of files, notifying the listener. Failures are also
+     * reported to waiters on each file, and the first is rethrown
+     * after attempting the remaining files.
+     */
+    private void force( List<BARCFile> files ) throws IOException
+    {
+        IOException first = null;
+        for( BARCFile barc : files ) {
+            try {
+                final long end = barc.forceAppended();
+                final Listener listener = _listener;
+                if( ( end >= 0 ) && ( listener != null ) ) {
+                    listener.durable( barc, end );
+                }
+            }
+            catch( IOException x ) {
+                if( first == null ) first = x;
+            }
+        }
+        if( first != null ) throw first;
+    }
+
+    private long _maxDelay = 1000;
+    private long _maxBytes = 4 * 1024 * 1024;
+    private volatile Listener _listener = null;
+
+    private final Set<BARCFile> _pending = new LinkedHashSet<BARCFile>();
+    private long _pendingBytes = 0;
+    private long _oldest = 0;
+    private boolean _closed = false;
+    private Thread _flusher = null;
+
+    private static final Logger _log =
+        LoggerFactory.getLogger( GroupCommit.class );
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.barc;
+
+import static iudex.barc.BARCFile.HEADER_LENGTH;
+import iudex.http.Header;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Memory mapped reader of BARC records, for sequential scans and random
+ * access by offset. Records are exposed as read-only ByteBuffer slices
+ * of the mapping, without copying. The file is mapped, on demand, in
+ * overlapping segments, so files larger than 2GB are supported. The
+ * rare record crossing the end of a segment is mapped on its own.
+ *
+ * A MappedReader covers the records of a BARC file as of its creation.
+ * Records are independent of the reader and may be processed on other
+ * threads, though {@link #next()} itself is not thread safe. Mappings
+ * remain valid after the BARCFile is closed, until garbage collected.
+ * The BARC file must not be truncated while mapped.
+ */
+public final class MappedReader
+{
+    /**
+     * Returns next record or null if no record remains (end).
+     */
+    public MappedRecord next() throws IOException
+    {
+        if( _offset >= _end ) return null;
+
+        final MappedRecord record = read( _offset );
+        _offset += HEADER_LENGTH + record.length();
+        return record;
+    }
+
+    /**
+     * Returns next live record, skipping replaced ('R') records, or null
+     * if no record remains (end). Replaced records are skipped by
+     * header type and length alone.
+     */
+    public MappedRecord nextLive() throws IOException
+    {
+        while( _offset < _end ) {
+            final long offset = _offset;
+            final int s = (int) ( offset / _segmentSize );
+            final long base = (long) s * _segmentSize;
+
+            // Skip in place if header is within its segment
+            if( ( offset + HEADER_LENGTH <= _end ) &&
+                ( offset + HEADER_LENGTH <= base + _segmentSize + _overlap ) ) {
+                final ByteBuffer segment = segment( s );
+                final int i = (int) ( offset - base );
+                if( segment.get( i + 15 ) == 'R' ) {
+                    BARCFile.checkHeader( segment, i, offset );
+                    _offset += HEADER_LENGTH +
+                        BARCFile.getHex( segment, i + 6, 8 );
+                    if( _offset > _end ) {
+                        throw new IOException(
+                            "Incomplete record at offset: " + offset );
+                    }
+                    continue;
+                }
+            }
+
+            final MappedRecord record = next();
+            if( record.type() != 'R' ) return record;
+        }
+        return null;
+    }
+
+    /**
+     * Return the record at offset.
+     * @throws IOException if there is no valid record at offset.
+     */
+    public MappedRecord read( long offset ) throws IOException
+    {
+        return new MappedRecord( offset, slice( offset, HEADER_LENGTH ) );
+    }
+
+    /**
+     * Return the offset of the record to be returned by the next call to
+     * {@link #next()}.
+     */
+    public long offset()
+    {
+        return _offset;
+    }
+
+    /**
+     * Return the end offset (file length) covered by this reader.
+     */
+    public long end()
+    {
+        return _end;
+    }
+
+    /**
+     * A single record mapped for read. Header blocks and body of
+     * uncompressed records are slices of the mapping. Compressed records
+     * are inflated once, on first access to headers or body.
+     */
+    public final class MappedRecord
+    {
+        public long offset()
+        {
+            return _offset;
+        }
+
+        /**
+         * Length of the record following the BARC header, as per
+         * {@link BARCFile.Record#length()}.
+         */
+        public int length()
+        {
+            return _length;
+        }
+
+        public char type()
+        {
+            return _type;
+        }
+
+        public boolean isCompressed()
+        {
+            return _compressed;
+        }
+
+        /**
+         * Return the raw record content following the BARC header,
+         * excluding the trailing CRLF. This is GZIP compressed if
+         * isCompressed().
+         */
+        public ByteBuffer content() throws IOException
+        {
+            if( _content == null ) {
+                int len = _length;
+                if( len >= 2 ) len -= 2; //-2 for end CRLF
+                _content = slice( _offset + HEADER_LENGTH, len );
+            }
+            return _content.duplicate();
+        }
+
+        public ByteBuffer metaHeaderBytes() throws IOException
+        {
+            return block( 0, _metaHeaderLength );
+        }
+
+        public ByteBuffer requestHeaderBytes() throws IOException
+        {
+            return block( _metaHeaderLength, _rqstHeaderLength );
+        }
+
+        public ByteBuffer responseHeaderBytes() throws IOException
+        {
+            return block( _metaHeaderLength + _rqstHeaderLength,
+                          _respHeaderLength );
+        }
+
+        public ByteBuffer body() throws IOException
+        {
+            final int start =
+                _metaHeaderLength + _rqstHeaderLength + _respHeaderLength;
+            return block( start, plain().limit() - start );
+        }
+
+        public List<Header> metaHeaders() throws IOException
+        {
+            return headers( _metaHeaderLength, metaHeaderBytes() );
+        }
+
+        public List<Header> requestHeaders() throws IOException
+        {
+            return headers( _rqstHeaderLength, requestHeaderBytes() );
+        }
+
+        public List<Header> responseHeaders() throws IOException
+        {
+            return headers( _respHeaderLength, responseHeaderBytes() );
+        }
+
+        public InputStream bodyInputStream() throws IOException
+        {
+            return new BufferInputStream( body() );
+        }
+
+        MappedRecord( long offset, ByteBuffer header ) throws IOException
+        {
+            _offset = offset;
+            BARCFile.checkHeader( header, 0, offset );
+            _length = BARCFile.getHex( header, 6, 8 );
+            _type = (char) header.get( 15 );
+            _compressed = ( header.get( 16 ) == 'C' );
+            _metaHeaderLength = BARCFile.getHex( header, 18, 4 );
+            _rqstHeaderLength = BARCFile.getHex( header, 23, 4 );
+            _respHeaderLength = BARCFile.getHex( header, 28, 4 );
+
+            if( offset + HEADER_LENGTH + _length > _end ) {
+                throw new IOException( "Incomplete record at offset: " +
+                                       offset );
+            }
+        }
+
+        private List<Header> headers( int length, ByteBuffer block )
+            throws IOException
+        {
+            if( length == 0 ) return Collections.emptyList();
+            return BARCFile.parseHeaderBlock( block );
+        }
+
+        private ByteBuffer block( int start, int length ) throws IOException
+        {
+            final ByteBuffer plain = plain();
+            if( start + length > plain.limit() ) {
+                throw new IOException( "Incomplete header block." );
+            }
+            final ByteBuffer block = plain.duplicate();
+            block.limit( start + length ).position( start );
+            return block.slice();
+        }
+
+        /**
+         * Return the uncompressed content.
+         */
+        private ByteBuffer plain() throws IOException
+        {
+            if( ! _compressed ) return content();
+
+            if( _inflated == null ) {
+                final ByteBuffer content = content();
+                if( content.remaining() == 0 ) {
+                    _inflated = content;
+                }
+                else {
+                    ByteArrayOutputStream out =
+                        new ByteArrayOutputStream( content.remaining() * 4 );
+                    BARCFile.copy( new GZIPInputStream(
+                                       new BufferInputStream( content ),
+                                       BUFFER_SIZE ),
+                                   out );
+                    _inflated = ByteBuffer.wrap( out.toByteArray() );
+                }
+            }
+            return _inflated;
+        }
+
+        private final long _offset;
+        private final int _length;
+        private final char _type;
+        private final boolean _compressed;
+        private final int _metaHeaderLength;
+        private final int _rqstHeaderLength;
+        private final int _respHeaderLength;
+
+        private ByteBuffer _content = null;
+        private ByteBuffer _inflated = null;
+    }
+
+    MappedReader( FileChannel channel, long end, int segmentSize )
+    {
+        _channel = channel;
+        _end = end;
+        _segmentSize = segmentSize;
+        _overlap = Math.max( segmentSize / 16, HEADER_LENGTH );
+        _segments = new ByteBuffer[
+            (int) ( ( end + segmentSize - 1 ) / segmentSize ) ];
+    }
+
+    /**
+     * Map all segments now, such that the BARCFile may be closed while
+     * reading, other than records crossing segments.
+     */
+    MappedReader mapAll() throws IOException
+    {
+        for( int s = 0; s < _segments.length; ++s ) segment( s );
+        return this;
+    }
+
+    /**
+     * Return a read-only slice of the mapped file at offset.
+     */
+    private ByteBuffer slice( long offset, int length ) throws IOException
+    {
+        if( ( offset < 0 ) || ( offset + length > _end ) ) {
+            throw new IOException( "Read beyond end at offset: " + offset );
+        }
+
+        final int s = (int) ( offset / _segmentSize );
+        final long base = (long) s * _segmentSize;
+        final ByteBuffer slice;
+        if( offset + length <= base + _segmentSize + _overlap ) {
+            slice = segment( s ).duplicate();
+            final int start = (int) ( offset - base );
+            slice.limit( start + length ).position( start );
+        }
+        else {
+            slice = _channel.map( MapMode.READ_ONLY, offset, length );
+        }
+        return slice.slice();
+    }
+
+    private synchronized ByteBuffer segment( int s ) throws IOException
+    {
+        ByteBuffer segment = _segments[s];
+        if( segment == null ) {
+            final long base = (long) s * _segmentSize;
+            final long length =
+                Math.min( _segmentSize + _overlap, _end - base );
+            segment = _channel.map( MapMode.READ_ONLY, base, length );
+            _segments[s] = segment;
+        }
+        return segment;
+    }
+
+    private static final class BufferInputStream extends InputStream
+    {
+        BufferInputStream( ByteBuffer buffer )
+        {
+            _buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return _buffer.hasRemaining() ? ( _buffer.get() & 0xFF ) : -1;
+        }
+
+        @Override
+        public int read( byte[] b, int offset, int length )
+        {
+            if( length == 0 ) return 0;
+            if( ! _buffer.hasRemaining() ) return -1;
+            length = Math.min( length, _buffer.remaining() );
+            _buffer.get( b, offset, length );
+            return length;
+        }
+
+        @Override
+        public int available()
+        {
+            return _buffer.remaining();
+        }
+
+        private final ByteBuffer _buffer;
+    }
+
+    /**
+     * Default segment size, 1GB. Segments are mapped with a further
+     * overlap of 1/16 this size.
+     */
+    static final int SEGMENT_SIZE = 0x40000000;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final FileChannel _channel;
+    private final long _end;
+    private final int _segmentSize;
+    private final int _overlap;
+    private final ByteBuffer[] _segments;
+
+    private long _offset = 0;
+}
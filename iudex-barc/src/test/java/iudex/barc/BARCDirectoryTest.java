@@ -16,14 +16,22 @@
 package iudex.barc;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import iudex.barc.BARCDirectory.WriteSession;
 import iudex.barc.BARCFile.Record;
+import iudex.barc.MappedReader.MappedRecord;
 import iudex.http.Header;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.After;
 import org.junit.Before;
@@ -69,6 +77,140 @@ public class BARCDirectoryTest
         _log.debug( "Completed threaded run with {} iterations.", count );
     }
 
+    @Test
+    public void testMultipleSessions() throws IOException, InterruptedException
+    {
+        _barcs.setMaxWriteSessions( 2 );
+
+        WriteSession first = _barcs.startWriteSession();
+        WriteSession second = _barcs.startWriteSession();
+        assertTrue( first.fileNumber() != second.fileNumber() );
+
+        Record rec = second.append();
+        long offset = rec.offset();
+        rec.writeMetaHeaders( Arrays.asList(
+            new Header( "META-1", "second" ) ) );
+        first.close();
+        second.close();
+
+        // Most recently idle file is reused
+        WriteSession third = _barcs.startWriteSession();
+        assertEquals( second.fileNumber(), third.fileNumber() );
+        third.close();
+
+        rec = _barcs.read( second.fileNumber(), offset );
+        assertEquals( "second",
+                      rec.metaHeaders().get( 0 ).value().toString() );
+    }
+
+    @Test
+    public void testConcurrentSessions() throws IOException
+    {
+        _barcs.setTargetLength( 400 );
+        _barcs.setMaxWriteSessions( 3 );
+        _barcs.setMaxOpen( 2 );
+
+        long count = TestExecutor.run( new ConcurrentWriter(), 300, 4 );
+        _log.debug( "Completed threaded run with {} iterations.", count );
+
+        close();
+        open();
+
+        // Each record's own headers match where it was written
+        int records = 0;
+        for( String fname : BARC_DIR.list() ) {
+            int fnum = Integer.parseInt( fname.substring( 0, 6 ) );
+            BARCFile barc = new BARCFile( new File( BARC_DIR, fname ) );
+            try {
+                BARCFile.RecordReader reader = barc.reader();
+                Record rec;
+                while( ( rec = reader.next() ) != null ) {
+                    List<Header> headers = rec.metaHeaders();
+                    assertEquals( String.valueOf( fnum ),
+                                  headers.get( 0 ).value().toString() );
+                    assertEquals( String.valueOf( rec.offset() ),
+                                  headers.get( 1 ).value().toString() );
+                    rec.close();
+                    ++records;
+                }
+            }
+            finally {
+                barc.close();
+            }
+        }
+        assertEquals( count, records );
+    }
+
+    @Test
+    public void testScan() throws IOException, InterruptedException
+    {
+        _barcs.setTargetLength( 1000 );
+
+        // Write 200 records, replacing every 4th, across files
+        final Set<String> live = new HashSet<String>();
+        for( int i = 0; i < 200; ++i ) {
+            WriteSession session = _barcs.startWriteSession();
+            Record rec = session.append();
+            rec.setType( 'H' );
+            rec.setCompressed( i % 3 == 0 );
+            rec.writeMetaHeaders( Arrays.asList(
+                new Header( "Seq", i ) ) );
+            rec.close();
+            if( i % 4 == 0 ) session.markReplaced( rec.offset() );
+            else live.add( String.valueOf( i ) );
+            session.close();
+        }
+
+        final Set<String> scanned = new HashSet<String>();
+        BARCDirectory.Scan scan = _barcs.scan();
+        MappedRecord rec;
+        int lastFile = 0;
+        while( ( rec = scan.next() ) != null ) {
+            assertEquals( 'H', rec.type() );
+            assertTrue( scan.fileNumber() >= lastFile );
+            lastFile = scan.fileNumber();
+            String seq = rec.metaHeaders().get( 0 ).value().toString();
+            assertTrue( scanned.add( seq ) );
+        }
+        assertTrue( lastFile > 2 );
+        assertEquals( live, scanned );
+
+        // In parallel
+        final Set<String> handled =
+            Collections.synchronizedSet( new HashSet<String>() );
+        ExecutorService executor = Executors.newFixedThreadPool( 3 );
+        try {
+            long count = _barcs.scan( new BARCDirectory.RecordHandler() {
+                public void handle( int fileNumber, MappedRecord record )
+                    throws IOException
+                {
+                    handled.add(
+                        record.metaHeaders().get( 0 ).value().toString() );
+                }
+            }, executor );
+            assertEquals( live.size(), count );
+            assertEquals( live, handled );
+
+            // Handler failure is rethrown
+            try {
+                _barcs.scan( new BARCDirectory.RecordHandler() {
+                    public void handle( int fileNumber, MappedRecord record )
+                        throws IOException
+                    {
+                        throw new IOException( "handler" );
+                    }
+                }, executor );
+                fail();
+            }
+            catch( IOException x ) {
+                assertEquals( "handler", x.getMessage() );
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
     @Before
     public void start() throws IOException
     {
@@ -18,19 +18,24 @@ package iudex.barc;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import iudex.barc.BARCFile.Record;
 import iudex.barc.BARCFile.RecordReader;
 import iudex.http.Header;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.After;
 import org.junit.Before;
@@ -223,6 +228,110 @@ public class BARCFileTest
         }
     }
 
+    @Test
+    public void testLargeRecords() throws IOException
+    {
+        final byte[] body = new byte[ 150 * 1024 ];
+        new Random( 33 ).nextBytes( body );
+
+        for( int i = 0; i < 4; ++i ) {
+            Record rec = _barc.append();
+            rec.setCompressed( i % 2 == 1 );
+            rec.writeResponseHeaders(
+                Arrays.asList( new Header( "RESP-" + i, "value-" + i ) ) );
+            OutputStream out = rec.bodyOutputStream();
+            // Single bytes and small writes across buffer boundaries,
+            // then a write larger than the buffer.
+            int o = 0;
+            for( ; o < 1000; ++o ) out.write( body[o] );
+            for( ; o < 70 * 1024; o += 1000 ) out.write( body, o, 1000 );
+            out.write( body, o, body.length - o );
+            out.close();
+        }
+
+        RecordReader reader = _barc.reader();
+        long offset = 0;
+        for( int i = 0; i < 4; ++i ) {
+            Record rec = reader.next();
+            assertEquals( offset, rec.offset() );
+            assertEquals( "value-" + i,
+                rec.responseHeaders().get( 0 ).value().toString() );
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            BARCFile.copy( rec.bodyInputStream(), bout );
+            assertTrue( Arrays.equals( body, bout.toByteArray() ) );
+            rec.close();
+            offset += BARCFile.HEADER_LENGTH + rec.length();
+        }
+        assertNull( reader.next() );
+        assertEquals( offset, _barc.size() );
+    }
+
+    @Test
+    public void testMappedReader() throws IOException
+    {
+        final Random rand = new Random( 77 );
+        for( int i = 0; i < 40; ++i ) {
+            Record rec = _barc.append();
+            rec.setType( ( i % 5 == 0 ) ? 'R' : 'H' );
+            rec.setCompressed( i % 3 == 0 );
+            if( i % 7 != 0 ) {
+                rec.writeMetaHeaders( Arrays.asList(
+                    new Header( "META-" + i, "value-" + i ) ) );
+                rec.writeResponseHeaders( Arrays.asList(
+                    new Header( "RESP-" + i, "value-" + i ) ) );
+                final byte[] body = new byte[ rand.nextInt( 3000 ) ];
+                rand.nextBytes( body );
+                rec.bodyOutputStream().write( body );
+            }
+            rec.close();
+        }
+
+        // Default, small and record straddling segments
+        for( int segment : new int[] { MappedReader.SEGMENT_SIZE,
+                                       4096, 100 } ) {
+            MappedReader mapped = _barc.mappedReader( segment );
+            RecordReader reader = _barc.reader();
+            Record rec;
+            int count = 0;
+            while( ( rec = reader.next() ) != null ) {
+                MappedReader.MappedRecord mrec = mapped.next();
+                assertNotNull( mrec );
+                assertEquals( rec.offset(), mrec.offset() );
+                assertEquals( rec.length(), mrec.length() );
+                assertEquals( rec.type(), mrec.type() );
+                assertEquals( rec.isCompressed(), mrec.isCompressed() );
+                assertEquals( rec.metaHeaders().toString(),
+                              mrec.metaHeaders().toString() );
+                assertEquals( rec.requestHeaders().toString(),
+                              mrec.requestHeaders().toString() );
+                assertEquals( rec.responseHeaders().toString(),
+                              mrec.responseHeaders().toString() );
+
+                ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                BARCFile.copy( rec.bodyInputStream(), expected );
+                ByteBuffer body = mrec.body();
+                byte[] actual = new byte[ body.remaining() ];
+                body.get( actual );
+                assertTrue( Arrays.equals( expected.toByteArray(), actual ) );
+
+                if( ! mrec.isCompressed() ) {
+                    assertEquals( mrec.content().remaining(),
+                        mrec.metaHeaderBytes().remaining() +
+                        mrec.responseHeaderBytes().remaining() +
+                        actual.length );
+                }
+                rec.close();
+                ++count;
+            }
+            assertNull( mapped.next() );
+            assertEquals( 40, count );
+
+            // Random access
+            MappedReader.MappedRecord mrec = mapped.read( 0 );
+            assertEquals( 'R', mrec.type() );
+        }
+    }
+
     @Test
     public void testMarkReplaced() throws IOException
     {
@@ -239,6 +348,78 @@ public class BARCFileTest
         wrec.close();
     }
 
+    @Test
+    public void testGroupCommit() throws IOException, InterruptedException
+    {
+        final AtomicLong notified = new AtomicLong( -1 );
+        GroupCommit gc = new GroupCommit();
+        gc.setMaxDelay( 20 );
+        gc.setListener( new GroupCommit.Listener() {
+            public void durable( BARCFile barc, long end )
+            {
+                notified.set( end );
+            }
+        } );
+        _barc.setGroupCommit( gc );
+        try {
+            for( int i = 0; i < 10; ++i ) {
+                Record rec = _barc.append();
+                rec.writeResponseHeaders(
+                    Arrays.asList( new Header( "RESP-" + i, "value-" + i ) ) );
+                OutputStream out = rec.bodyOutputStream();
+                for( byte[] row : FILLER ) out.write( row );
+                out.close();
+            }
+            assertTrue( _barc.durableSize() <= _barc.size() );
+
+            _barc.awaitDurable( _barc.size() );
+            assertEquals( _barc.size(), _barc.durableSize() );
+
+            // Records remain readable before and after
+            Record rec = _barc.read( 0 );
+            assertEquals( "RESP-0",
+                          rec.responseHeaders().get( 0 ).name().toString() );
+            rec.close();
+        }
+        finally {
+            gc.close(); // Joins flusher
+        }
+        assertEquals( _barc.size(), notified.get() );
+
+        // Once closed, each record is forced on close
+        Record rec = _barc.append();
+        rec.writeMetaHeaders( Arrays.asList( new Header( "META", "m" ) ) );
+        rec.close();
+        assertEquals( _barc.size(), _barc.durableSize() );
+    }
+
+    @Test( timeout = 10000 )
+    public void testGroupCommitBatches()
+        throws IOException, InterruptedException
+    {
+        GroupCommit gc = new GroupCommit();
+        gc.setMaxDelay( 20 );
+        _barc.setGroupCommit( gc );
+        try {
+            for( int b = 0; b < 3; ++b ) {
+                // Flusher is idle between batches, and must wake for each
+                Thread.sleep( 50 );
+                Record rec = _barc.append();
+                rec.writeMetaHeaders(
+                    Arrays.asList( new Header( "BATCH", "b" + b ) ) );
+                rec.close();
+
+                final long start = System.currentTimeMillis();
+                _barc.awaitDurable( _barc.size() );
+                assertEquals( _barc.size(), _barc.durableSize() );
+                assertTrue( System.currentTimeMillis() - start < 5000 );
+            }
+        }
+        finally {
+            gc.close();
+        }
+    }
+
     @Test
     public void testConcurrentReadWrite() throws IOException
     {
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.bench;
+
+import iudex.core.ContentKeys;
+import iudex.core.DomainKey;
+import iudex.core.VisitQueue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * Cost of the VisitQueue order to DomainKey lookup, as made on every
+ * add and release, over a realistic host name set (HostNames). The
+ * keys are interned on setup, as for orders already queued. Run with
+ * "-prof gc" to confirm no allocation.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class DomainKeyBenchmark
+{
+    @Param( { "10000" } )
+    public int hosts;
+
+    /**
+     * Keying for a tenth of the domains, or DOMAIN for none.
+     */
+    @Param( { "DOMAIN", "HOST" } )
+    public VisitQueue.Keying keying;
+
+    @Setup( Level.Trial )
+    public void setup()
+    {
+        _orders = HostNames.orders( hosts, 1234L );
+        _queue = new KeyQueue();
+
+        int i = 0;
+        for( UniMap order : _orders ) {
+            if( ( keying != VisitQueue.Keying.DOMAIN ) && ( i++ % 10 == 0 ) ) {
+                _queue.configureKeying( order.get( ContentKeys.URL ).domain(),
+                                        keying, 0 );
+            }
+            _queue.key( order );
+        }
+    }
+
+    @Benchmark
+    public DomainKey orderKey()
+    {
+        if( ++_next == _orders.size() ) _next = 0;
+        return _queue.key( _orders.get( _next ) );
+    }
+
+    /**
+     * Exposes the protected orderKey.
+     */
+    private static final class KeyQueue extends VisitQueue
+    {
+        DomainKey key( UniMap order )
+        {
+            synchronized( this ) {
+                return orderKey( order );
+            }
+        }
+    }
+
+    private List<UniMap> _orders;
+    private KeyQueue _queue;
+    private int _next = 0;
+}
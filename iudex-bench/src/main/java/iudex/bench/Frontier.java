@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.bench;
+
+import iudex.core.ContentKeys;
+import iudex.core.VisitURL;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * Generates a deterministic model crawl frontier of visit orders, with
+ * orders distributed over hosts per a Zipf distribution. With the
+ * SKEWED shape, a few hosts have thousands of orders and most hosts
+ * have a single order, as is typical of a frontier polled from a
+ * large crawl database.
+ */
+public final class Frontier
+{
+    public enum Shape
+    {
+        /**
+         * Equal orders per host.
+         */
+        UNIFORM( 0.0 ),
+
+        /**
+         * Zipf distribution with exponent 1.0.
+         */
+        SKEWED( 1.0 ),
+
+        /**
+         * Zipf distribution with exponent 1.5: nearly all orders in
+         * the top few hosts.
+         */
+        EXTREME( 1.5 );
+
+        Shape( double exponent )
+        {
+            _exponent = exponent;
+        }
+
+        public double exponent()
+        {
+            return _exponent;
+        }
+
+        private final double _exponent;
+    }
+
+    public Frontier( Shape shape, int hosts, int orders )
+    {
+        this( shape, hosts, orders, 4321L );
+    }
+
+    public Frontier( Shape shape, int hosts, int orders, long seed )
+    {
+        if( orders < hosts ) {
+            throw new IllegalArgumentException( "orders < hosts" );
+        }
+
+        _hostCounts = hostCounts( shape.exponent(), hosts, orders );
+        _orders = new ArrayList<UniMap>( orders );
+
+        final Random rand = new Random( seed );
+        try {
+            for( int h = 0; h < hosts; ++h ) {
+                for( int i = 0; i < _hostCounts[h]; ++i ) {
+                    _orders.add( order( h, i, rand.nextFloat() * 10f ) );
+                }
+            }
+        }
+        catch( VisitURL.SyntaxException x ) {
+            throw new RuntimeException( x );
+        }
+
+        Collections.shuffle( _orders, rand );
+    }
+
+    /**
+     * Return the generated orders, in random order. These should be
+     * copied (via UniMap.clone()) if mutated or added to more than one
+     * VisitQueue.
+     */
+    public List<UniMap> orders()
+    {
+        return _orders;
+    }
+
+    /**
+     * Return the number of orders generated for host index h, in
+     * descending order.
+     */
+    public int hostCount( int h )
+    {
+        return _hostCounts[h];
+    }
+
+    /**
+     * Return a copy of the generated orders, suitable for adding to a
+     * VisitQueue.
+     */
+    public List<UniMap> copyOrders()
+    {
+        final List<UniMap> copy = new ArrayList<UniMap>( _orders.size() );
+        for( UniMap o : _orders ) copy.add( o.clone() );
+        return copy;
+    }
+
+    /**
+     * Return a typical order as polled from the database, for the
+     * specified host index, sequence number and priority.
+     */
+    static UniMap order( int host, int i, float priority )
+        throws VisitURL.SyntaxException
+    {
+        final UniMap order = new UniMap();
+        order.set( ContentKeys.URL, VisitURL.normalize(
+            "http://www.host-" + host + ".com/section/" + ( i % 97 ) +
+            "/page-" + i + ".html" ) );
+        order.set( ContentKeys.TYPE, "PAGE" );
+        order.set( ContentKeys.PRIORITY, priority );
+        order.set( ContentKeys.NEXT_VISIT_AFTER,
+                   new Date( EPOCH - ( i * 1000L ) ) );
+        order.set( ContentKeys.LAST_VISIT,
+                   new Date( EPOCH - ( i * 5000L ) ) );
+        return order;
+    }
+
+    /**
+     * Distribute orders over hosts, at least one per host, with the
+     * remainder weighted by 1/rank^exponent.
+     */
+    private static int[] hostCounts( double exponent, int hosts, int orders )
+    {
+        final double[] weights = new double[ hosts ];
+        double total = 0.0;
+        for( int h = 0; h < hosts; ++h ) {
+            weights[h] = 1.0 / Math.pow( h + 1, exponent );
+            total += weights[h];
+        }
+
+        final int[] counts = new int[ hosts ];
+        final int extra = orders - hosts;
+        int assigned = 0;
+        for( int h = 0; h < hosts; ++h ) {
+            counts[h] = 1 + (int) ( extra * weights[h] / total );
+            assigned += counts[h];
+        }
+
+        // Rounding remainder to the top host
+        counts[0] += orders - assigned;
+        return counts;
+    }
+
+    private static final long EPOCH = 1420070400000L;
+
+    private final int[] _hostCounts;
+    private final List<UniMap> _orders;
+}
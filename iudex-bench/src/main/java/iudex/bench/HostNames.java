@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.bench;
+
+import iudex.core.ContentKeys;
+import iudex.core.VisitURL;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * Generates a deterministic set of realistic host names: a mix of
+ * generic, country code and multi-label public suffixes (including
+ * private suffixes such as blogspot.com), with and without "www." and
+ * other subdomain prefixes, in mixed case.
+ */
+public final class HostNames
+{
+    public static List<String> hosts( int count, long seed )
+    {
+        final Random rand = new Random( seed );
+        final List<String> hosts = new ArrayList<String>( count );
+        for( int i = 0; i < count; ++i ) hosts.add( host( rand ) );
+        return hosts;
+    }
+
+    /**
+     * Return one order per host, with a path.
+     */
+    public static List<UniMap> orders( int count, long seed )
+    {
+        final List<UniMap> orders = new ArrayList<UniMap>( count );
+        int i = 0;
+        try {
+            for( String host : hosts( count, seed ) ) {
+                final UniMap order = new UniMap();
+                order.set( ContentKeys.URL, VisitURL.normalize(
+                    "http://" + host + "/page-" + ( i++ ) + ".html" ) );
+                order.set( ContentKeys.PRIORITY, 1.0f );
+                orders.add( order );
+            }
+        }
+        catch( VisitURL.SyntaxException x ) {
+            throw new RuntimeException( x );
+        }
+        return orders;
+    }
+
+    private static String host( Random rand )
+    {
+        final StringBuilder b = new StringBuilder( 48 );
+
+        final int p = rand.nextInt( 100 );
+        if( p < 50 )      b.append( "www." );
+        else if( p < 60 ) b.append( "news." );
+        else if( p < 65 ) b.append( "m." );
+        else if( p < 75 ) b.append( name( rand ) ).append( '.' )
+                           .append( name( rand ) ).append( '.' );
+
+        b.append( name( rand ) ).append( '.' );
+        b.append( suffix( rand ) );
+
+        if( rand.nextInt( 20 ) == 0 ) {
+            b.setCharAt( 0, Character.toUpperCase( b.charAt( 0 ) ) );
+        }
+        return b.toString();
+    }
+
+    private static String suffix( Random rand )
+    {
+        int r = rand.nextInt( TOTAL_WEIGHT );
+        for( int i = 0; i < SUFFIXES.length; ++i ) {
+            r -= WEIGHTS[i];
+            if( r < 0 ) return SUFFIXES[i];
+        }
+        return SUFFIXES[0];
+    }
+
+    private static String name( Random rand )
+    {
+        final int length = 3 + rand.nextInt( 10 );
+        final char[] cs = new char[ length ];
+        for( int i = 0; i < length; ++i ) {
+            cs[i] = (char) ( 'a' + rand.nextInt( 26 ) );
+        }
+        if( length > 6 && rand.nextBoolean() ) cs[ length / 2 ] = '-';
+        return new String( cs );
+    }
+
+    private static final String[] SUFFIXES = {
+        "com", "org", "net", "de", "co.uk", "com.au", "blogspot.com",
+        "github.io", "jp", "co.jp", "fr", "ru", "com.br", "edu",
+        "gov.uk", "info", "io", "k12.ca.us", "kawasaki.jp", "ac.uk" };
+
+    private static final int[] WEIGHTS = {
+        40, 6, 6, 6, 5, 3, 5,
+        2, 2, 2, 3, 3, 3, 2,
+        1, 2, 2, 1, 1, 1 };
+
+    private static final int TOTAL_WEIGHT;
+    static {
+        int total = 0;
+        for( int w : WEIGHTS ) total += w;
+        TOTAL_WEIGHT = total;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.bench;
+
+import iudex.core.ContentKeys;
+import iudex.core.DomainKey;
+import iudex.core.HostQueue;
+import iudex.core.VisitURL;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * Priority ordering cost of a single HostQueue of the given size:
+ * remove the top order and add it back with a new random priority.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class HostQueueBenchmark
+{
+    @Param( { "1", "100", "10000" } )
+    public int size;
+
+    @Setup( Level.Trial )
+    public void setup() throws VisitURL.SyntaxException
+    {
+        _queue = new HostQueue( new DomainKey( "www.host-0.com", null ),
+                                0, 1 );
+        for( int i = 0; i < size; ++i ) {
+            _queue.add( Frontier.order( 0, i, _rand.nextFloat() ) );
+        }
+    }
+
+    @Benchmark
+    public UniMap removeAdd()
+    {
+        final UniMap order = _queue.remove();
+        _queue.release();
+        order.remove( ContentKeys.VISIT_START );
+        order.set( ContentKeys.PRIORITY, _rand.nextFloat() );
+        _queue.add( order );
+        return order;
+    }
+
+    private final Random _rand = new Random( 1234 );
+    private HostQueue _queue;
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.bench;
+
+import iudex.core.VisitQueue;
+import iudex.core.VisitURL;
+import iudex.http.HTTPKeys;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * Reports the retained heap per queued order of a VisitQueue, with
+ * and without compact orders, for Frontier orders and for orders
+ * with all default work poller keys (iudex-worker Agent.poll_keys,
+ * adding ETAG). Usage:
+ *
+ * <pre>
+ * java -cp benchmarks.jar iudex.bench.OrderFootprint [orders [hosts]]
+ * </pre>
+ */
+public final class OrderFootprint
+{
+    public static void main( String[] args ) throws VisitURL.SyntaxException
+    {
+        final int orders = ( args.length > 0 ) ?
+            Integer.parseInt( args[0] ) : 50000;
+        final int hosts = ( args.length > 1 ) ?
+            Integer.parseInt( args[1] ) : 500;
+
+        for( boolean poller : new boolean[] { false, true } ) {
+            for( boolean compact : new boolean[] { false, true } ) {
+                final long base = usedHeap();
+
+                VisitQueue queue = new VisitQueue();
+                queue.setCompactOrders( compact );
+                for( int i = 0; i < orders; ++i ) {
+                    float priority = ( i % 1000 ) / 100f;
+                    UniMap order = Frontier.order( i % hosts, i, priority );
+                    if( poller ) {
+                        order.set( HTTPKeys.ETAG,
+                                   "\"" + Integer.toHexString( i ) + "\"" );
+                    }
+                    queue.add( order );
+                }
+
+                final long used = usedHeap() - base;
+                System.out.printf( "keys=%-8s compact=%-5s orders=%d " +
+                                   "hosts=%d retained=%,d bytes " +
+                                   "(%d bytes/order)%n",
+                                   ( poller ? "poller" : "frontier" ),
+                                   compact, queue.orderCount(), hosts,
+                                   used, used / orders );
+                queue = null;
+            }
+        }
+    }
+
+    private static long usedHeap()
+    {
+        final Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for( int i = 0; i < 8; ++i ) {
+            System.gc();
+            try {
+                Thread.sleep( 50 );
+            }
+            catch( InterruptedException x ) {
+                break;
+            }
+            used = Math.min( used, rt.totalMemory() - rt.freeMemory() );
+        }
+        return used;
+    }
+}
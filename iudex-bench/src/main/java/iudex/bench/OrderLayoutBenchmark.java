@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.bench;
+
+import iudex.core.ContentKeys;
+import iudex.core.VisitQueue;
+import iudex.core.VisitURL;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * Compares VisitQueue acquire/release throughput with queued orders
+ * held as UniMap (compact=false) or in the compact primitive layout
+ * (compact=true). Run with "-prof gc" for allocation rates. See
+ * OrderFootprint for the corresponding heap footprint.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class OrderLayoutBenchmark
+{
+    @Param( { "false", "true" } )
+    public boolean compact;
+
+    @Param( { "50000" } )
+    public int orders;
+
+    @Param( { "500" } )
+    public int hosts;
+
+    @Setup( Level.Trial )
+    public void setup() throws VisitURL.SyntaxException
+    {
+        _queue = new VisitQueue();
+        _queue.setDefaultMinHostDelay( 0 );
+        _queue.setDefaultMaxAccessPerHost( 1 );
+        _queue.setCompactOrders( compact );
+
+        for( int i = 0; i < orders; ++i ) {
+            _queue.add( Frontier.order( i % hosts, i, ( i % 1000 ) / 100f ) );
+        }
+    }
+
+    /**
+     * Acquire and release one order, adding it back as new.
+     */
+    @Benchmark
+    public UniMap acquireRelease() throws InterruptedException
+    {
+        final UniMap order = _queue.acquire( 1000 );
+        _queue.release( order, null );
+        order.remove( ContentKeys.VISIT_START );
+        _queue.add( order );
+        return order;
+    }
+
+    private VisitQueue _queue;
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.bench;
+
+import iudex.core.Domains;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of Domains.registrationLevelDomain via the compiled
+ * public suffix trie, against the prior TLDSets parent walk, over a
+ * realistic host name set (HostNames).
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class RegistrationDomainBenchmark
+{
+    @Param( { "10000" } )
+    public int hosts;
+
+    @Setup( Level.Trial )
+    public void setup()
+    {
+        _hosts = HostNames.hosts( hosts, 1234L );
+    }
+
+    @Benchmark
+    public String trie()
+    {
+        return Domains.registrationLevelDomain( next() );
+    }
+
+    @Benchmark
+    public String sets()
+    {
+        return Domains.registrationLevelDomainBySets( next() );
+    }
+
+    private String next()
+    {
+        if( ++_next == _hosts.size() ) _next = 0;
+        return _hosts.get( _next );
+    }
+
+    private List<String> _hosts;
+    private int _next = 0;
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.bench;
+
+import iudex.core.VisitURL;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of VisitURL.normalize (single pass where possible)
+ * against VisitURL.normalizeByURI, over raw links as found in feeds
+ * and pages: realistic hosts (HostNames), with paths, queries, some
+ * fragments, default ports and upper case schemes.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class URLNormalizeBenchmark
+{
+    @Param( { "10000" } )
+    public int urls;
+
+    @Setup( Level.Trial )
+    public void setup()
+    {
+        _urls = rawURLs( urls, 1234L );
+    }
+
+    @Benchmark
+    public VisitURL normalize() throws VisitURL.SyntaxException
+    {
+        return VisitURL.normalize( next() );
+    }
+
+    @Benchmark
+    public VisitURL normalizeByURI() throws VisitURL.SyntaxException
+    {
+        return VisitURL.normalizeByURI( next() );
+    }
+
+    static List<String> rawURLs( int count, long seed )
+    {
+        final Random rand = new Random( seed );
+        final List<String> urls = new ArrayList<String>( count );
+        for( String host : HostNames.hosts( count, seed ) ) {
+            StringBuilder b = new StringBuilder( 96 );
+            final int p = rand.nextInt( 10 );
+            b.append( ( p == 0 ) ? "HTTP://" : ( p < 3 ) ? "https://"
+                                                         : "http://" );
+            b.append( host );
+            if( rand.nextInt( 20 ) == 0 ) b.append( ":80" );
+
+            final int segments = rand.nextInt( 4 );
+            for( int i = 0; i < segments; ++i ) {
+                b.append( '/' ).append( SEGMENTS[
+                    rand.nextInt( SEGMENTS.length ) ] );
+            }
+            if( rand.nextInt( 3 ) == 0 ) {
+                b.append( "/article-" ).append( rand.nextInt( 100000 ) );
+                b.append( ".html" );
+            }
+            if( rand.nextInt( 4 ) == 0 ) {
+                b.append( "?id=" ).append( rand.nextInt( 1000000 ) );
+                b.append( "&utm_source=feed%20reader" );
+            }
+            if( rand.nextInt( 10 ) == 0 ) b.append( "#comments" );
+            urls.add( b.toString() );
+        }
+        return urls;
+    }
+
+    private String next()
+    {
+        if( ++_next == _urls.size() ) _next = 0;
+        return _urls.get( _next );
+    }
+
+    private static final String[] SEGMENTS =
+        { "news", "2015", "06", "world", "sports", "blog", "tag",
+          "Technology", "a-long-article-title-slug", "index.php",
+          "~user", "category" };
+
+    private List<String> _urls;
+    private int _next = 0;
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.bench;
+
+import iudex.core.GenericWorkPollStrategy;
+import iudex.core.VisitManager;
+import iudex.core.VisitQueue;
+import iudex.core.VisitQueueFactory;
+import iudex.filter.Filter;
+import iudex.filter.FilterContainer;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * Time for a VisitManager to dispatch and visit every order of a
+ * model Frontier, per dispatch mode. Each visit parks the visiting
+ * thread for visitMicros, standing in for a fetch, and then releases
+ * the order. Host delay is zero and each host allows one concurrent
+ * access, so SKEWED frontiers are bounded by the serial visits of the
+ * largest hosts.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class VisitManagerBenchmark
+{
+    @Param( { "EXECUTOR", "WORKERS", "VIRTUAL" } )
+    public VisitManager.Dispatch dispatch;
+
+    @Param( { "SKEWED", "UNIFORM" } )
+    public Frontier.Shape shape;
+
+    @Param( { "PRIORITY", "FAIR" } )
+    public VisitQueue.Schedule schedule;
+
+    @Param( { "5000" } )
+    public int hosts;
+
+    @Param( { "20000" } )
+    public int orders;
+
+    @Param( { "0", "200" } )
+    public int visitMicros;
+
+    @Param( { "16" } )
+    public int threads;
+
+    @Setup( Level.Trial )
+    public void setup()
+    {
+        _frontier = new Frontier( shape, hosts, orders );
+    }
+
+    @Setup( Level.Invocation )
+    public void setupManager()
+    {
+        final VisitQueue template = new VisitQueue();
+        template.setDefaultMinHostDelay( 0 );
+        template.setDefaultMaxAccessPerHost( 1 );
+        template.setSchedule( schedule );
+
+        _visited = new CountDownLatch( orders );
+
+        final FrontierPoller poller =
+            new FrontierPoller( _frontier.copyOrders() );
+        poller.setVisitQueueFactory( new VisitQueueFactory( template ) );
+
+        _manager = new VisitManager( poller );
+        _manager.setMaxThreads( threads );
+        _manager.setDispatch( dispatch );
+        _manager.setMaxShutdownWait( 1000 );
+        _manager.setFilterChain( new Visitor() );
+    }
+
+    @Benchmark
+    public long visitAll() throws InterruptedException
+    {
+        _manager.start();
+        _visited.await();
+        _manager.shutdown();
+        return _visited.getCount();
+    }
+
+    private final class Visitor implements FilterContainer
+    {
+        @Override
+        public boolean filter( UniMap order )
+        {
+            if( visitMicros > 0 ) {
+                LockSupport.parkNanos( visitMicros * 1000L );
+            }
+            _manager.release( order, null );
+            _visited.countDown();
+            return true;
+        }
+
+        @Override
+        public List<Filter> children()
+        {
+            return null;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * Polls the frontier orders once, and nothing thereafter.
+     */
+    private static final class FrontierPoller
+        extends GenericWorkPollStrategy
+    {
+        FrontierPoller( List<UniMap> orders )
+        {
+            _orders = orders;
+            setMinPollInterval( 10 );
+            setMaxCheckInterval( 50 );
+        }
+
+        @Override
+        public boolean shouldReplaceQueue( VisitQueue current )
+        {
+            return false;
+        }
+
+        @Override
+        public void pollWorkImpl( VisitQueue out )
+        {
+            if( _orders != null ) {
+                out.addAll( _orders );
+                _orders = null;
+            }
+        }
+
+        private List<UniMap> _orders;
+    }
+
+    private Frontier _frontier;
+    private CountDownLatch _visited;
+    private VisitManager _manager;
+}
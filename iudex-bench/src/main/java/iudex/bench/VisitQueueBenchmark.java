@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.bench;
+
+import iudex.core.ContentKeys;
+import iudex.core.VisitQueue;
+import iudex.core.VisitQueueFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * Steady state VisitQueue acquire/release throughput and latency
+ * (SampleTime percentiles) over a model Frontier, from 1, 4 and 16
+ * threads. Each acquired order is released and added back, keeping
+ * the frontier shape constant. Host delay is zero, so this measures
+ * scheduling cost and lock contention only.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class VisitQueueBenchmark
+{
+    @Param( { "SKEWED", "UNIFORM" } )
+    public Frontier.Shape shape;
+
+    @Param( { "10000" } )
+    public int hosts;
+
+    @Param( { "100000" } )
+    public int orders;
+
+    /**
+     * VisitQueueFactory shards, 1 for a plain VisitQueue.
+     */
+    @Param( { "1", "8" } )
+    public int shards;
+
+    @Param( { "1" } )
+    public int maxAccessPerHost;
+
+    @Setup( Level.Trial )
+    public void setup()
+    {
+        VisitQueue template = new VisitQueue();
+        template.setDefaultMinHostDelay( 0 );
+        template.setDefaultMaxAccessPerHost( maxAccessPerHost );
+        _queue = new VisitQueueFactory( template, shards ).createVisitQueue();
+        _queue.addAll( new Frontier( shape, hosts, orders ).orders() );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        _queue.close();
+    }
+
+    @Benchmark
+    @Threads( 1 )
+    public UniMap acquireRelease1() throws InterruptedException
+    {
+        return cycle();
+    }
+
+    @Benchmark
+    @Threads( 4 )
+    public UniMap acquireRelease4() throws InterruptedException
+    {
+        return cycle();
+    }
+
+    @Benchmark
+    @Threads( 16 )
+    public UniMap acquireRelease16() throws InterruptedException
+    {
+        return cycle();
+    }
+
+    @Benchmark
+    @Threads( 4 )
+    public int batchAcquire4() throws InterruptedException
+    {
+        final List<UniMap> out = new ArrayList<UniMap>( BATCH );
+        final int count = _queue.acquire( BATCH, MAX_WAIT, out );
+        for( UniMap order : out ) recycle( order );
+        return count;
+    }
+
+    private UniMap cycle() throws InterruptedException
+    {
+        final UniMap order = _queue.acquire( MAX_WAIT );
+        if( order != null ) recycle( order );
+        return order;
+    }
+
+    private void recycle( UniMap order )
+    {
+        _queue.release( order, null );
+        order.remove( ContentKeys.VISIT_START );
+        _queue.add( order );
+    }
+
+    private static final long MAX_WAIT = 1000;
+    private static final int BATCH = 16;
+
+    private VisitQueue _queue;
+}
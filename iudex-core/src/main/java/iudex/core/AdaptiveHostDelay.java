@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import iudex.http.HTTPSession;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * Adapts the delay and maximum access count of each HostQueue from
+ * the observed response time and status of visits, as recorded by
+ * ContentFetcher in ContentKeys.RESPONSE_TIME and STATUS. Applied by
+ * VisitQueue on release, when set via
+ * {@link VisitQueue#setAdaptiveDelay(AdaptiveHostDelay)}.
+ *
+ * On failure (error, timeout, HTTP 429 or 5xx) the delay is
+ * multiplied by backoffFactor plus the failed response time, and the
+ * maximum access count is halved. On success the delay moves toward
+ * latencyFactor times the smoothed response time: immediately if
+ * longer, or by recoveryFactor per visit if shorter. After
+ * increaseInterval consecutive successes at minDelay, the maximum
+ * access count is increased by one, up to maxAccessLimit. The
+ * HostQueue configured minHostDelay and maxAccessCount serve as
+ * initial values only.
+ *
+ * Instances hold configuration only, and may be shared across
+ * VisitQueue clones.
+ */
+public class AdaptiveHostDelay
+{
+    /**
+     * Set the lower bound on adapted delay in milliseconds
+     * (default: 100).
+     */
+    public void setMinDelay( int minDelay )
+    {
+        _minDelay = minDelay;
+    }
+
+    public int minDelay()
+    {
+        return _minDelay;
+    }
+
+    /**
+     * Set the upper bound on adapted delay in milliseconds
+     * (default: 60,000).
+     */
+    public void setMaxDelay( int maxDelay )
+    {
+        _maxDelay = maxDelay;
+    }
+
+    public int maxDelay()
+    {
+        return _maxDelay;
+    }
+
+    /**
+     * Set the upper bound on adapted maximum access count per host
+     * (default: 2).
+     */
+    public void setMaxAccessLimit( int maxAccessLimit )
+    {
+        _maxAccessLimit = maxAccessLimit;
+    }
+
+    public int maxAccessLimit()
+    {
+        return _maxAccessLimit;
+    }
+
+    /**
+     * Set the multiple of smoothed response time used as the target
+     * delay on success (default: 2.0).
+     */
+    public void setLatencyFactor( float latencyFactor )
+    {
+        _latencyFactor = latencyFactor;
+    }
+
+    public float latencyFactor()
+    {
+        return _latencyFactor;
+    }
+
+    /**
+     * Set the delay multiple applied on failure (default: 2.0).
+     */
+    public void setBackoffFactor( float backoffFactor )
+    {
+        _backoffFactor = backoffFactor;
+    }
+
+    public float backoffFactor()
+    {
+        return _backoffFactor;
+    }
+
+    /**
+     * Set the delay multiple applied per success while above the
+     * target delay (default: 0.9).
+     */
+    public void setRecoveryFactor( float recoveryFactor )
+    {
+        _recoveryFactor = recoveryFactor;
+    }
+
+    public float recoveryFactor()
+    {
+        return _recoveryFactor;
+    }
+
+    /**
+     * Set the number of consecutive successes at minDelay required
+     * to increase the maximum access count (default: 16).
+     */
+    public void setIncreaseInterval( int increaseInterval )
+    {
+        _increaseInterval = increaseInterval;
+    }
+
+    public int increaseInterval()
+    {
+        return _increaseInterval;
+    }
+
+    /**
+     * Return true if status indicates the host is overloaded or
+     * failing, as opposed to a problem with the particular URL.
+     */
+    public boolean isFailure( int status )
+    {
+        return ( ( status == HTTPSession.ERROR ) ||
+                 ( status == HTTPSession.TIMEOUT ) ||
+                 ( status == HTTPSession.TIMEOUT_CONNECT ) ||
+                 ( status == HTTPSession.TIMEOUT_SOCKET ) ||
+                 ( status == 429 ) ||
+                 ( status >= 500 ) );
+    }
+
+    /**
+     * Adapt hq from the visit of order, if it has a recorded response
+     * time. Called with the VisitQueue lock held.
+     * @param minAccess lower bound on the adapted maximum access count
+     */
+    void update( HostQueue hq, UniMap order, int minAccess )
+    {
+        final Integer time = order.get( ContentKeys.RESPONSE_TIME );
+        final Integer status = order.get( ContentKeys.STATUS );
+        if( ( time == null ) || ( status == null ) ) return;
+
+        long delay = hq.currentDelay();
+        int access = hq.currentMaxAccess();
+
+        if( isFailure( status ) ) {
+            delay = (long) ( delay * _backoffFactor ) + time;
+            access = access / 2;
+            hq.setSuccessCount( 0 );
+        }
+        else {
+            float rt = hq.responseTime();
+            rt = ( rt < 0f ) ? time : ( rt + SMOOTHING * ( time - rt ) );
+            hq.setResponseTime( rt );
+
+            final long target = (long) ( rt * _latencyFactor );
+            if( target > delay ) {
+                delay = target;
+            }
+            else {
+                delay = Math.max( target, (long) ( delay * _recoveryFactor ) );
+            }
+
+            if( delay <= _minDelay ) {
+                int successes = hq.successCount() + 1;
+                if( successes >= _increaseInterval ) {
+                    ++access;
+                    successes = 0;
+                }
+                hq.setSuccessCount( successes );
+            }
+            else {
+                hq.setSuccessCount( 0 );
+            }
+        }
+
+        delay = Math.max( _minDelay, Math.min( _maxDelay, delay ) );
+        access = Math.max( minAccess, Math.min( _maxAccessLimit, access ) );
+        access = Math.max( access, 1 );
+
+        hq.adapt( (int) delay, access );
+    }
+
+    private static final float SMOOTHING = 0.25f;
+
+    private int   _minDelay         = 100;
+    private int   _maxDelay         = 60 * 1000;
+    private int   _maxAccessLimit   = 2;
+    private float _latencyFactor    = 2.0f;
+    private float _backoffFactor    = 2.0f;
+    private float _recoveryFactor   = 0.9f;
+    private int   _increaseInterval = 16;
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import iudex.http.HTTPKeys;
+
+import java.nio.charset.Charset;
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * A priority queue of visit orders, by descending PRIORITY, held in
+ * parallel primitive arrays. Orders consisting of only URL, PRIORITY,
+ * TYPE, NEXT_VISIT_AFTER, LAST_VISIT and ETAG (the default work poller
+ * keys) are stored as URL bytes (and uhash if already computed),
+ * priority, an interned type code, date millis and ETAG string, and
+ * materialized as a new UniMap on poll. Any other order, including one
+ * with any other key, is held as is. Iteration materializes orders in
+ * heap order and doesn't support removal. Not thread safe, other than
+ * the type table shared by all instances.
+ */
+final class CompactOrderHeap extends AbstractQueue<UniMap>
+{
+    CompactOrderHeap()
+    {
+        this( 16 );
+    }
+
+    CompactOrderHeap( int capacity )
+    {
+        capacity = Math.max( 1, capacity );
+        _priority  = new float[ capacity ];
+        _url       = new byte[ capacity ][];
+        _uhash     = new String[ capacity ];
+        _type      = new byte[ capacity ];
+        _nextVisit = new long[ capacity ];
+        _lastVisit = new long[ capacity ];
+        _etag      = new String[ capacity ];
+        _full      = new UniMap[ capacity ];
+    }
+
+    @Override
+    public boolean offer( UniMap order )
+    {
+        if( order == null ) {
+            throw new NullPointerException( "CompactOrderHeap.offer null" );
+        }
+
+        if( _size == _priority.length ) grow();
+
+        final int i = _size++;
+        if( ! store( i, order ) ) {
+            _full[i] = order;
+            _priority[i] = order.get( ContentKeys.PRIORITY );
+        }
+        siftUp( i );
+        return true;
+    }
+
+    @Override
+    public UniMap peek()
+    {
+        return ( _size > 0 ) ? materialize( 0 ) : null;
+    }
+
+    @Override
+    public UniMap poll()
+    {
+        if( _size == 0 ) return null;
+
+        final UniMap order = materialize( 0 );
+        --_size;
+        if( _size > 0 ) {
+            move( _size, 0 );
+            siftDown( 0 );
+        }
+        clear( _size );
+        return order;
+    }
+
+    /**
+     * Return the PRIORITY of the top order without materializing it.
+     * @throws NoSuchElementException if empty
+     */
+    float topPriority()
+    {
+        if( _size == 0 ) throw new NoSuchElementException();
+        return _priority[0];
+    }
+
+    @Override
+    public int size()
+    {
+        return _size;
+    }
+
+    @Override
+    public Iterator<UniMap> iterator()
+    {
+        return new Iterator<UniMap>() {
+            public boolean hasNext()
+            {
+                return ( _next < _size );
+            }
+
+            public UniMap next()
+            {
+                if( _next >= _size ) throw new NoSuchElementException();
+                return materialize( _next++ );
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            private int _next = 0;
+        };
+    }
+
+    /**
+     * Store order in compact form at index i, if possible.
+     * @return false if order has keys that can't be stored compactly.
+     */
+    private boolean store( int i, UniMap order )
+    {
+        final VisitURL url = order.get( ContentKeys.URL );
+        final Float priority = order.get( ContentKeys.PRIORITY );
+        if( ( url == null ) || ( priority == null ) || ! url.hasUrl() ) {
+            return false;
+        }
+        int keys = 2;
+
+        final String type = order.get( ContentKeys.TYPE );
+        int code = 0;
+        if( type != null ) {
+            code = typeCode( type );
+            if( code == 0 ) return false;
+            ++keys;
+        }
+
+        final Date next = order.get( ContentKeys.NEXT_VISIT_AFTER );
+        if( next != null ) ++keys;
+
+        final Date last = order.get( ContentKeys.LAST_VISIT );
+        if( last != null ) ++keys;
+
+        final CharSequence etag = order.get( HTTPKeys.ETAG );
+        if( etag != null ) ++keys;
+
+        if( order.size() != keys ) return false;
+
+        _url[i]       = url.url().getBytes( UTF8 );
+        _uhash[i]     = url.cachedUHash();
+        _priority[i]  = priority;
+        _type[i]      = (byte) code;
+        _nextVisit[i] = ( next != null ) ? next.getTime() : NONE;
+        _lastVisit[i] = ( last != null ) ? last.getTime() : NONE;
+        _etag[i]      = ( etag != null ) ? etag.toString() : null;
+        return true;
+    }
+
+    private UniMap materialize( int i )
+    {
+        if( _full[i] != null ) return _full[i];
+
+        final UniMap order = new UniMap();
+        order.set( ContentKeys.URL,
+                   new VisitURL( new String( _url[i], UTF8 ), _uhash[i] ) );
+        order.set( ContentKeys.PRIORITY, _priority[i] );
+        if( _type[i] != 0 ) {
+            order.set( ContentKeys.TYPE, typeName( _type[i] ) );
+        }
+        if( _nextVisit[i] != NONE ) {
+            order.set( ContentKeys.NEXT_VISIT_AFTER,
+                       new Date( _nextVisit[i] ) );
+        }
+        if( _lastVisit[i] != NONE ) {
+            order.set( ContentKeys.LAST_VISIT, new Date( _lastVisit[i] ) );
+        }
+        if( _etag[i] != null ) order.set( HTTPKeys.ETAG, _etag[i] );
+        return order;
+    }
+
+    private void siftUp( int i )
+    {
+        while( i > 0 ) {
+            final int parent = ( i - 1 ) >>> 1;
+            if( Float.compare( _priority[parent], _priority[i] ) >= 0 ) break;
+            swap( i, parent );
+            i = parent;
+        }
+    }
+
+    private void siftDown( int i )
+    {
+        final int half = _size >>> 1;
+        while( i < half ) {
+            int child = ( 2 * i ) + 1;
+            final int right = child + 1;
+            if( ( right < _size ) &&
+                ( Float.compare( _priority[right], _priority[child] ) > 0 ) ) {
+                child = right;
+            }
+            if( Float.compare( _priority[i], _priority[child] ) >= 0 ) break;
+            swap( i, child );
+            i = child;
+        }
+    }
+
+    private void swap( int i, int j )
+    {
+        final float p = _priority[i];
+        _priority[i] = _priority[j];
+        _priority[j] = p;
+
+        final byte[] u = _url[i];
+        _url[i] = _url[j];
+        _url[j] = u;
+
+        final String h = _uhash[i];
+        _uhash[i] = _uhash[j];
+        _uhash[j] = h;
+
+        final byte t = _type[i];
+        _type[i] = _type[j];
+        _type[j] = t;
+
+        long v = _nextVisit[i];
+        _nextVisit[i] = _nextVisit[j];
+        _nextVisit[j] = v;
+
+        v = _lastVisit[i];
+        _lastVisit[i] = _lastVisit[j];
+        _lastVisit[j] = v;
+
+        final String e = _etag[i];
+        _etag[i] = _etag[j];
+        _etag[j] = e;
+
+        final UniMap f = _full[i];
+        _full[i] = _full[j];
+        _full[j] = f;
+    }
+
+    private void move( int from, int to )
+    {
+        _priority[to]  = _priority[from];
+        _url[to]       = _url[from];
+        _uhash[to]     = _uhash[from];
+        _type[to]      = _type[from];
+        _nextVisit[to] = _nextVisit[from];
+        _lastVisit[to] = _lastVisit[from];
+        _etag[to]      = _etag[from];
+        _full[to]      = _full[from];
+    }
+
+    private void clear( int i )
+    {
+        _url[i] = null;
+        _uhash[i] = null;
+        _etag[i] = null;
+        _full[i] = null;
+    }
+
+    private void grow()
+    {
+        final int cap = _priority.length * 2;
+        _priority  = Arrays.copyOf( _priority, cap );
+        _url       = Arrays.copyOf( _url, cap );
+        _uhash     = Arrays.copyOf( _uhash, cap );
+        _type      = Arrays.copyOf( _type, cap );
+        _nextVisit = Arrays.copyOf( _nextVisit, cap );
+        _lastVisit = Arrays.copyOf( _lastVisit, cap );
+        _etag      = Arrays.copyOf( _etag, cap );
+        _full      = Arrays.copyOf( _full, cap );
+    }
+
+    /**
+     * Return the interned code for type, in 1..255, or 0 if the table
+     * of codes is full. Only a new type takes a lock.
+     */
+    private static int typeCode( String type )
+    {
+        final int code = findType( _types, type );
+        return ( code >= 0 ) ? code : addType( type );
+    }
+
+    private static synchronized int addType( String type )
+    {
+        final String[] types = _types;
+        int code = findType( types, type );
+        if( code < 0 ) {
+            if( types.length > MAX_TYPE_CODE ) return 0;
+            code = types.length;
+            final String[] added = Arrays.copyOf( types, code + 1 );
+            added[code] = type;
+            _types = added;
+        }
+        return code;
+    }
+
+    private static int findType( String[] types, String type )
+    {
+        for( int c = 1; c < types.length; ++c ) {
+            if( types[c].equals( type ) ) return c;
+        }
+        return -1;
+    }
+
+    private static String typeName( byte code )
+    {
+        return _types[ code & 0xff ];
+    }
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    private static final int MAX_TYPE_CODE = 255;
+
+    /**
+     * Type names by code (index 0 unused), replaced on each new type
+     * such that it is read without lock.
+     */
+    private static volatile String[] _types = new String[ 1 ];
+
+    private float[]  _priority;
+    private byte[][] _url;
+    private String[] _uhash;
+    private byte[]   _type;
+    private long[]   _nextVisit;
+    private long[]   _lastVisit;
+    private String[] _etag;
+    private UniMap[] _full;
+    private int _size = 0;
+}
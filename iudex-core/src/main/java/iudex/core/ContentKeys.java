@@ -29,6 +29,14 @@ public class ContentKeys
     public static final Key<String> TYPE =
         create( "type", String.class );
 
+    /**
+     * Resolved IP address of the URL host, in textual form, for
+     * VisitQueue.Keying.ADDRESS. Must not change while an order is
+     * queued or acquired.
+     */
+    public static final Key<String> ADDRESS =
+        create( "address", String.class );
+
     public static final String TYPE_FEED    = "FEED";
     public static final String TYPE_PAGE    = "PAGE";
     public static final String TYPE_ROBOTS  = "ROBOTS";
@@ -40,6 +48,13 @@ public class ContentKeys
     public static final Key<Integer> STATUS =
         create( "status", Integer.class );
 
+    /**
+     * Elapsed time in milliseconds from the start of an HTTP request
+     * to its completion, as set by ContentFetcher.
+     */
+    public static final Key<Integer> RESPONSE_TIME =
+        create( "response_time", Integer.class );
+
     public static final Key<String> REASON =
         create( "reason", String.class );
 
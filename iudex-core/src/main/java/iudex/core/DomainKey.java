@@ -18,14 +18,27 @@ package iudex.core;
 
 /**
  * A domain key with an optional type, if HostQueue type specificity is
- * desired.
+ * desired, and an optional sub-key, if HostQueues are keyed below the
+ * registration level domain.
+ * @see VisitQueue.Keying
  */
 public final class DomainKey
 {
     public DomainKey( String domain, String type )
+    {
+        this( domain, type, null );
+    }
+
+    public DomainKey( String domain, String type, String subKey )
     {
         _domain = domain;
         _type = type;
+        _subKey = subKey;
+
+        int hc = domain.hashCode();
+        if( type != null ) hc ^= type.hashCode();
+        if( subKey != null ) hc = ( hc * 31 ) + subKey.hashCode();
+        _hashCode = hc;
     }
 
     public String domain()
@@ -38,12 +51,19 @@ public final class DomainKey
         return _type;
     }
 
+    /**
+     * Return the host, address or bucket within domain, or null if
+     * keyed by domain only.
+     */
+    public String subKey()
+    {
+        return _subKey;
+    }
+
     @Override
     public int hashCode()
     {
-        int hc = _domain.hashCode();
-        if( _type != null ) hc ^= _type.hashCode();
-        return hc;
+        return _hashCode;
     }
 
     @Override
@@ -53,10 +73,14 @@ public final class DomainKey
 
         if( other instanceof DomainKey ) {
             DomainKey o = (DomainKey) other;
-            return ( _domain.equals( o._domain ) &&
+            return ( ( _hashCode == o._hashCode ) &&
+                     _domain.equals( o._domain ) &&
                      ( ( _type == o._type ) ||
                        ( ( _type != null ) &&
-                           _type.equals( o._type ) ) ) );
+                           _type.equals( o._type ) ) ) &&
+                     ( ( _subKey == o._subKey ) ||
+                       ( ( _subKey != null ) &&
+                           _subKey.equals( o._subKey ) ) ) );
         }
         return false;
     }
@@ -64,12 +88,15 @@ public final class DomainKey
     @Override
     public String toString()
     {
+        final String name = ( _subKey != null ) ? _subKey : _domain;
         if( _type == null ) {
-            return _domain;
+            return name;
         }
-        return _domain + ':' + _type;
+        return name + ':' + _type;
     }
 
     private final String _domain;
     private final String _type;
+    private final String _subKey;
+    private final int _hashCode;
 }
@@ -24,6 +24,16 @@ public final class Domains
      * the given host name if one is found, or null otherwise.
      */
     public static String registrationLevelDomain( String name )
+    {
+        return SUFFIX_TRIE.registrationLevelDomain( name );
+    }
+
+    /**
+     * Equivalent to {@link #registrationLevelDomain(String)}, but by
+     * successive parent domain lookups in the TLDSets hash sets.
+     * Retained as reference for testing and benchmarks.
+     */
+    public static String registrationLevelDomainBySets( String name )
     {
         name = normalize( name );
 
@@ -69,4 +79,9 @@ public final class Domains
         return ( ( ( fdot >= 0 ) && ( fdot + 1 < name.length() ) ) ?
                    name.substring( fdot + 1 ) : null );
     }
+
+    private static final PublicSuffixTrie SUFFIX_TRIE =
+        new PublicSuffixTrie( TLDSets.KNOWN_TLDS,
+                              TLDSets.TLD_PARENTS,
+                              TLDSets.REG_EXCEPTIONS );
 }
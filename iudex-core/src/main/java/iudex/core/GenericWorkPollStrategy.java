@@ -16,6 +16,14 @@
 
 package iudex.core;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.gravitext.htmap.UniMap;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -104,9 +112,125 @@ public abstract class GenericWorkPollStrategy
         _visitQueueFactory = factory;
     }
 
+    /**
+     * If true, poll work on a dedicated background thread into a
+     * staging VisitQueue, such that nextPollWork only indicates a poll
+     * is due once its orders are staged and ready. On pollWork, the
+     * staging queue becomes the replacement queue, or otherwise its
+     * orders are added to the current queue (default: false).
+     *
+     * Note that work polled while the current queue is still being
+     * visited may include orders in progress, unless pollWorkImpl
+     * excludes them, for example by reservation.
+     */
+    public void setAsyncPoll( boolean asyncPoll )
+    {
+        _asyncPoll = asyncPoll;
+    }
+
+    public boolean asyncPoll()
+    {
+        return _asyncPoll;
+    }
+
+    /**
+     * Set the milliseconds in advance of a due poll at which an async
+     * poll is started (default: 2000).
+     */
+    public void setPrefetchLead( long prefetchLead )
+    {
+        _prefetchLead = prefetchLead;
+    }
+
+    public long prefetchLead()
+    {
+        return _prefetchLead;
+    }
+
+    /**
+     * Set the maximum milliseconds pollWork waits for an async poll in
+     * progress. Beyond this, the async poll is abandoned, with any
+     * orders it stages discarded on completion, and work is instead
+     * polled synchronously (default: 60 seconds).
+     */
+    public void setMaxAsyncWait( long maxAsyncWait )
+    {
+        _maxAsyncWait = maxAsyncWait;
+    }
+
+    public long maxAsyncWait()
+    {
+        return _maxAsyncWait;
+    }
+
+    /**
+     * Return the number of completed calls to pollWorkImpl.
+     */
+    public synchronized int pollCount()
+    {
+        return _pollCount;
+    }
+
+    /**
+     * Return the duration of the last pollWorkImpl in milliseconds.
+     */
+    public synchronized long lastPollLatency()
+    {
+        return _lastPollLatency;
+    }
+
+    /**
+     * Return the maximum duration of any pollWorkImpl in milliseconds.
+     */
+    public synchronized long maxPollLatency()
+    {
+        return _maxPollLatency;
+    }
+
+    /**
+     * Return the mean duration of pollWorkImpl in milliseconds.
+     */
+    public synchronized double meanPollLatency()
+    {
+        return ( ( _pollCount > 0 ) ?
+                 ( (double) _totalPollLatency / _pollCount ) : 0d );
+    }
+
+    /**
+     * Return the number of orders staged by async polling, including
+     * a poll in progress, and not yet returned from pollWork.
+     */
+    public synchronized int stagedOrderCount()
+    {
+        return ( _stagingQ != null ) ? _stagingQ.orderCount() : 0;
+    }
+
+    /**
+     * Return the number of orders in the queue which the orders of
+     * the poll in progress will be added to: the current queue order
+     * count for an incremental poll, or zero for a replacement. For
+     * use by pollWorkImpl, in place of the orderCount of its out
+     * queue, which may be an empty staging queue.
+     */
+    public int targetOrderCount()
+    {
+        return _targetOrderCount;
+    }
+
+    /**
+     * Return true if an async poll is in progress.
+     */
+    public synchronized boolean isPolling()
+    {
+        return _polling;
+    }
+
     @Override
     public VisitQueue pollWork( VisitQueue vq )
     {
+        Staged staged = takeStaged();
+        if( staged != null ) return mergeStaged( staged, vq );
+
         int oldOrders = 0;
         if( ( vq == null ) || shouldReplaceQueue( vq ) ) {
             vq = _visitQueueFactory.createVisitQueue();
@@ -114,19 +238,16 @@ public abstract class GenericWorkPollStrategy
         else {
             oldOrders = vq.orderCount();
         }
+        _targetOrderCount = oldOrders;
 
+        final long start = System.currentTimeMillis();
         Stopwatch sw = new Stopwatch().start();
         pollWorkImpl( vq );
         sw.stop();
+        recordLatency( System.currentTimeMillis() - start );
 
-        _highOrderCount = vq.orderCount();
-        _highHostCount = vq.hostCount();
+        logPolled( vq, oldOrders, sw );
 
-        log().info( "Polled {} orders {} {} hosts; ({})",
-                    _highOrderCount - oldOrders,
-                    (oldOrders > 0) ? "in up to" : "in",
-                    _highHostCount,
-                    sw.duration() );
         return vq;
     }
 
@@ -136,6 +257,27 @@ public abstract class GenericWorkPollStrategy
         log().info( "Discard of {} orders ignored", current.orderCount() );
     }
 
+    /**
+     * Stop the async poll thread, if started, and discard any staged
+     * orders.
+     */
+    public void shutdown()
+    {
+        ExecutorService exec = null;
+        Staged staged = null;
+        synchronized( this ) {
+            exec = _pollExecutor;
+            _pollExecutor = null;
+            staged = _staged;
+            _staged = null;
+            _stagingQ = null;
+            _polling = false;
+            _done = false;
+        }
+        if( exec != null ) exec.shutdownNow();
+        if( staged != null ) discardStaged( staged.queue );
+    }
+
     /**
      * The actual pollWorkImpl which should be implemented to fill the
      * provided out queue.
@@ -152,8 +294,36 @@ public abstract class GenericWorkPollStrategy
         return true;
     }
 
+    /**
+     * {@inheritDoc}
+     * With asyncPoll, this returns zero only once an async poll has
+     * completed, starting one if a poll is due within prefetchLead.
+     */
     @Override
     public long nextPollWork( VisitQueue current, long elapsed )
+    {
+        long wait = nextPollWorkImpl( current, elapsed );
+
+        if( _asyncPoll && ( current != null ) ) {
+            synchronized( this ) {
+                if( _done ) {
+                    wait = 0;
+                }
+                else {
+                    if( ! _polling && ( wait <= _prefetchLead ) ) {
+                        startPoll( current );
+                    }
+                    if( _polling ) {
+                        wait = Math.max( 1, Math.min( wait, ASYNC_CHECK ) );
+                    }
+                }
+            }
+        }
+
+        return wait;
+    }
+
+    private long nextPollWorkImpl( VisitQueue current, long elapsed )
     {
         if( current == null ) return 0;
 
@@ -185,6 +355,167 @@ public abstract class GenericWorkPollStrategy
         return wait;
     }
 
+    private void logPolled( VisitQueue vq, int oldOrders, Stopwatch sw )
+    {
+        _highOrderCount = vq.orderCount();
+        _highHostCount = vq.hostCount();
+
+        log().info( "Polled {} orders {} {} hosts; ({})",
+                    _highOrderCount - oldOrders,
+                    (oldOrders > 0) ? "in up to" : "in",
+                    _highHostCount,
+                    sw.duration() );
+    }
+
+    private synchronized void recordLatency( long latency )
+    {
+        ++_pollCount;
+        _lastPollLatency = latency;
+        _totalPollLatency += latency;
+        _maxPollLatency = Math.max( _maxPollLatency, latency );
+    }
+
+    /**
+     * Start an async poll of work into a new staging queue, as an
+     * increment of current unless it should be replaced.
+     */
+    private void startPoll( final VisitQueue current )
+    {
+        final VisitQueue staging = _visitQueueFactory.createVisitQueue();
+        final int target =
+            shouldReplaceQueue( current ) ? 0 : current.orderCount();
+
+        if( _pollExecutor == null ) {
+            _pollExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    public Thread newThread( Runnable r )
+                    {
+                        Thread t = new Thread( r, "work-poll" );
+                        t.setDaemon( true );
+                        return t;
+                    }
+                } );
+        }
+
+        _polling = true;
+        _stagingQ = staging;
+        _pollExecutor.execute( new Runnable() {
+            public void run()
+            {
+                final long start = System.currentTimeMillis();
+                Stopwatch sw = new Stopwatch().start();
+                try {
+                    _targetOrderCount = target;
+                    pollWorkImpl( staging );
+                }
+                catch( RuntimeException x ) {
+                    log().error( "On async poll: ", x );
+                }
+                sw.stop();
+                recordLatency( System.currentTimeMillis() - start );
+
+                boolean abandoned = false;
+                synchronized( GenericWorkPollStrategy.this ) {
+                    if( _stagingQ == staging ) {
+                        _polling = false;
+                        _staged = new Staged( staging, sw );
+                        _done = true;
+                    }
+                    else abandoned = true; // On shutdown or maxAsyncWait
+                    GenericWorkPollStrategy.this.notifyAll();
+                }
+                if( abandoned ) discardStaged( staging );
+                else log().debug( "Async poll staged {} orders in {}",
+                                  staging.orderCount(), sw.duration() );
+            }
+        } );
+    }
+
+    /**
+     * Take any completed async poll, awaiting one in progress up to
+     * maxAsyncWait, or otherwise abandoning it.
+     */
+    private synchronized Staged takeStaged()
+    {
+        final long end = System.currentTimeMillis() + _maxAsyncWait;
+        while( _polling ) {
+            final long wait = end - System.currentTimeMillis();
+            if( wait <= 0 ) {
+                log().warn( "Abandoning async poll exceeding {}ms",
+                            _maxAsyncWait );
+                _polling = false;
+                _stagingQ = null;
+                break;
+            }
+            try {
+                wait( wait );
+            }
+            catch( InterruptedException x ) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        Staged staged = null;
+        if( _done ) {
+            staged = _staged;
+            _staged = null;
+            _stagingQ = null;
+            _done = false;
+        }
+        return staged;
+    }
+
+    /**
+     * Return the staging queue if vq is to be replaced, or otherwise vq
+     * with the staged orders added. Staged orders polled as an
+     * increment still become the replacement queue, if vq is now to be
+     * replaced, rather than polling again.
+     */
+    private VisitQueue mergeStaged( Staged staged, VisitQueue vq )
+    {
+        int oldOrders = 0;
+        if( ( vq == null ) || shouldReplaceQueue( vq ) ) {
+            vq = staged.queue;
+        }
+        else {
+            oldOrders = vq.orderCount();
+            vq.addAll( orders( staged.queue ) );
+            staged.queue.close();
+        }
+
+        logPolled( vq, oldOrders, staged.stopwatch );
+
+        return vq;
+    }
+
+    private void discardStaged( VisitQueue staging )
+    {
+        discard( staging );
+        staging.close();
+    }
+
+    private static List<UniMap> orders( VisitQueue vq )
+    {
+        List<UniMap> orders = new ArrayList<UniMap>( vq.orderCount() );
+        for( HostQueue hq : vq.hosts() ) {
+            orders.addAll( hq.orders() );
+        }
+        return orders;
+    }
+
+    private static final class Staged
+    {
+        Staged( VisitQueue queue, Stopwatch stopwatch )
+        {
+            this.queue = queue;
+            this.stopwatch = stopwatch;
+        }
+
+        final VisitQueue queue;
+        final Stopwatch stopwatch;
+    }
+
     protected float ratio( int count, int highMark )
     {
         return ( ( (float) count ) / ( (float) highMark ) );
@@ -195,8 +526,25 @@ public abstract class GenericWorkPollStrategy
         return _log;
     }
 
+    private static final long ASYNC_CHECK = 100; //ms
+
     private VisitQueueFactory _visitQueueFactory = new VisitQueueFactory();
 
+    private boolean _asyncPoll = false;
+    private long _prefetchLead = 2 * 1000; //2sec
+    private long _maxAsyncWait = 60 * 1000; //60sec
+    private ExecutorService _pollExecutor = null;
+    private boolean _polling = false;
+    private boolean _done = false;
+    private Staged _staged = null;
+    private VisitQueue _stagingQ = null;
+    private volatile int _targetOrderCount = 0;
+
+    private int  _pollCount = 0;
+    private long _lastPollLatency = 0;
+    private long _maxPollLatency = 0;
+    private long _totalPollLatency = 0;
+
     private long _minPollInterval  =      15 * 1000; //15sec
     private long _maxCheckInterval =      30 * 1000; //30sec;
     private long _maxPollInterval  = 10 * 60 * 1000; //10min
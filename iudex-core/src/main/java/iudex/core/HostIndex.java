@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of untyped HostQueues by their DomainKey domain, or sub-key,
+ * as Strings. This allows an order's HostQueue, and with it the
+ * interned DomainKey, to be found in a single hash probe, without
+ * allocating a DomainKey. Typed HostQueues are not indexed, as their
+ * keys are already interned by VisitQueue. Not thread safe.
+ */
+final class HostIndex
+{
+    /**
+     * Return the HostQueue with key DomainKey( domain, null, subKey ),
+     * or null if not indexed.
+     */
+    HostQueue get( String domain, String subKey )
+    {
+        if( subKey == null ) return _domains.get( domain );
+
+        // Sub-keys are indexed by subKey alone. Host names and
+        // addresses are rarely shared across domains, but check.
+        final HostQueue hq = _subKeys.get( subKey );
+        return ( ( hq != null ) && hq.key().domain().equals( domain ) ) ?
+            hq : null;
+    }
+
+    /**
+     * Index queue, if untyped, replacing any prior queue of the same
+     * domain or sub-key.
+     */
+    void put( HostQueue queue )
+    {
+        final DomainKey key = queue.key();
+        if( key.type() != null ) return;
+
+        if( key.subKey() != null ) _subKeys.put( key.subKey(), queue );
+        else _domains.put( key.domain(), queue );
+    }
+
+    /**
+     * Remove queue, if indexed.
+     */
+    void remove( HostQueue queue )
+    {
+        final DomainKey key = queue.key();
+        if( key.type() != null ) return;
+
+        final Map<String,HostQueue> queues =
+            ( key.subKey() != null ) ? _subKeys : _domains;
+        final String name =
+            ( key.subKey() != null ) ? key.subKey() : key.domain();
+
+        if( queues.get( name ) == queue ) queues.remove( name );
+    }
+
+    int size()
+    {
+        return _domains.size() + _subKeys.size();
+    }
+
+    private final Map<String,HostQueue> _domains =
+        new HashMap<String,HostQueue>( 2048 );
+
+    private final Map<String,HostQueue> _subKeys =
+        new HashMap<String,HostQueue>( 64 );
+}
@@ -15,10 +15,12 @@
  */
 package iudex.core;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.PriorityQueue;
+import java.util.Queue;
 
 import com.gravitext.htmap.UniMap;
 
@@ -36,7 +38,23 @@ public class HostQueue
     {
         public int compare( HostQueue prev, HostQueue next )
         {
-            return PRIORITY_COMPARATOR.compare( prev.peek(), next.peek() );
+            return Float.compare( next.topPriority(), prev.topPriority() );
+        }
+    }
+
+    /**
+     * Order by ascending virtual time, then by top order priority.
+     * @see VisitQueue.Schedule#FAIR
+     */
+    public static class FairComparator implements Comparator<HostQueue>
+    {
+        public int compare( HostQueue prev, HostQueue next )
+        {
+            int c = Double.compare( prev.virtualTime(), next.virtualTime() );
+            if( c == 0 ) {
+                c = Float.compare( next.topPriority(), prev.topPriority() );
+            }
+            return c;
         }
     }
 
@@ -45,12 +63,14 @@ public class HostQueue
         _key = key;
         _minHostDelay = minHostDelay;
         _maxAccess = maxAccessCount;
+        _delay = minHostDelay;
+        _access = maxAccessCount;
     }
 
     @Override
     public HostQueue clone()
     {
-        if( ! _work.isEmpty() ) {
+        if( size() > 0 ) {
             throw new IllegalStateException(
                 "HostQueue can't be cloned with orders" );
         }
@@ -73,6 +93,60 @@ public class HostQueue
         return _maxAccess;
     }
 
+    /**
+     * Return the current delay between takes in milliseconds. This is
+     * minHostDelay unless adapted.
+     * @see AdaptiveHostDelay
+     */
+    public int currentDelay()
+    {
+        return _delay;
+    }
+
+    /**
+     * Return the current maximum access count. This is maxAccessCount
+     * unless adapted.
+     * @see AdaptiveHostDelay
+     */
+    public int currentMaxAccess()
+    {
+        return _access;
+    }
+
+    /**
+     * Return the smoothed response time in milliseconds, or -1 if not
+     * yet known.
+     */
+    public float responseTime()
+    {
+        return _responseTime;
+    }
+
+    /**
+     * Set adapted delay and maximum access count, effective as of the
+     * next take.
+     */
+    void adapt( int delay, int maxAccess )
+    {
+        _delay = delay;
+        _access = maxAccess;
+    }
+
+    void setResponseTime( float responseTime )
+    {
+        _responseTime = responseTime;
+    }
+
+    int successCount()
+    {
+        return _successes;
+    }
+
+    void setSuccessCount( int successes )
+    {
+        _successes = successes;
+    }
+
     /**
      * @deprecated
      */
@@ -84,7 +158,7 @@ public class HostQueue
     public void setLastTake( long now )
     {
         _lastTake = now;
-        _nextVisit = _lastTake + _minHostDelay;
+        _nextVisit = _lastTake + _delay;
     }
 
     public long nextVisit()
@@ -92,17 +166,66 @@ public class HostQueue
         return _nextVisit;
     }
 
+    /**
+     * Return the time at which this host last became ready, as
+     * maintained by VisitQueue when a VisitQueueListener is set.
+     */
+    long readySince()
+    {
+        return _readySince;
+    }
+
+    void setReadySince( long readySince )
+    {
+        _readySince = readySince;
+    }
+
+    /**
+     * Return the virtual time of this host, the weighted service it
+     * has received, as maintained by VisitQueue with
+     * {@link VisitQueue.Schedule#FAIR}.
+     */
+    double virtualTime()
+    {
+        return _virtualTime;
+    }
+
+    void setVirtualTime( double virtualTime )
+    {
+        _virtualTime = virtualTime;
+    }
+
     public void add( UniMap order )
     {
         if( order == null ) {
             throw new NullPointerException( "HostQueue.add null" );
         }
-        _work.add( order );
+
+        if( ( _spill != null ) &&
+            ( ( _spillCount > 0 ) || ( _work.size() >= _maxResident ) ) &&
+            _spill.canSpill( order ) ) {
+            _spillTail = _spill.append( _spillTail, order );
+            if( _spillCount++ == 0 ) _spillHead = _spillTail;
+        }
+        else {
+            _work.add( order );
+        }
     }
 
+    /**
+     * Return the total number of orders, including any spilled.
+     */
     public int size()
     {
-        return _work.size();
+        return _work.size() + _spillCount;
+    }
+
+    /**
+     * Return the number of orders spilled to disk.
+     */
+    public int spilledCount()
+    {
+        return _spillCount;
     }
 
     public UniMap peek()
@@ -110,17 +233,30 @@ public class HostQueue
         return _work.peek();
     }
 
+    /**
+     * Return the PRIORITY of the top order, which must exist.
+     */
+    public float topPriority()
+    {
+        if( _compact != null ) return _compact.topPriority();
+        return _work.peek().get( ContentKeys.PRIORITY );
+    }
+
     /**
      * Remove top order and record an access reference.
      * @see #release()
      */
     public UniMap remove()
     {
-        if( ++_accessCount > _maxAccess ) {
+        if( ++_accessCount > _access ) {
             throw new IllegalStateException( "Access count exceeded." );
         }
         UniMap order = _work.remove();
         order.set( ContentKeys.VISIT_START, new Date( _lastTake ) );
+
+        if( ( _spillCount > 0 ) && ( _work.size() <= _maxResident / 2 ) ) {
+            pageIn();
+        }
         return order;
     }
 
@@ -131,7 +267,7 @@ public class HostQueue
 
     public boolean isAvailable()
     {
-        return ( _accessCount < _maxAccess );
+        return ( _accessCount < _access );
     }
 
     /**
@@ -144,12 +280,75 @@ public class HostQueue
         if( _accessCount < 1 ) {
             throw new IllegalStateException( "Release below accessCount" );
         }
-        return ( _accessCount-- == _maxAccess );
+        return ( _accessCount-- == _access );
     }
 
+    /**
+     * Set whether to hold orders in a CompactOrderHeap, as opposed to
+     * a PriorityQueue of UniMap. Only effective while empty.
+     */
+    void setCompact( boolean compact )
+    {
+        if( ( size() == 0 ) && ( compact != ( _compact != null ) ) ) {
+            if( compact ) {
+                _compact = new CompactOrderHeap();
+                _work = _compact;
+            }
+            else {
+                _compact = null;
+                _work = new PriorityQueue<UniMap>( 256, PRIORITY_COMPARATOR );
+            }
+        }
+    }
+
+    public boolean isCompact()
+    {
+        return ( _compact != null );
+    }
+
+    /**
+     * Set an OrderSpill to which orders are appended, in order added,
+     * once maxResident orders are held in memory. Spilled orders are
+     * paged back in, in the same order, as resident orders are removed.
+     * Thus priority order is exact for resident orders, and otherwise
+     * matches when orders are added in descending priority order.
+     * Orders with keys the spill can't encode are always kept resident.
+     */
+    void setSpill( OrderSpill spill, int maxResident )
+    {
+        _spill = spill;
+        _maxResident = Math.max( 1, maxResident );
+    }
+
+    /**
+     * Return all orders, including a read of any spilled orders.
+     */
     Collection<UniMap> orders()
     {
-        return _work;
+        if( _spillCount == 0 ) return _work;
+
+        Collection<UniMap> orders = new ArrayList<UniMap>( size() );
+        orders.addAll( _work );
+        long offset = _spillHead;
+        for( int i = 0; i < _spillCount; ++i ) {
+            orders.add( _spill.read( offset ) );
+            offset = _spill.next( offset );
+        }
+        return orders;
+    }
+
+    private void pageIn()
+    {
+        while( ( _spillCount > 0 ) && ( _work.size() < _maxResident ) ) {
+            final long next = _spill.next( _spillHead );
+            _work.add( _spill.read( _spillHead ) );
+            _spill.free( _spillHead );
+            _spillHead = next;
+            --_spillCount;
+        }
+        if( _spillCount == 0 ) {
+            _spillHead = _spillTail = -1L;
+        }
     }
 
     /**
@@ -172,11 +371,31 @@ public class HostQueue
     private final int _minHostDelay;
     private final int _maxAccess;
 
+    private int _delay;
+    private int _access;
+    private float _responseTime = -1f;
+    private int _successes = 0;
+
     private long _nextVisit = 0;
+    private long _readySince = 0;
     private long _lastTake = 0;
+    private double _virtualTime = 0.0d;
     private int  _accessCount = 0;
 
-    private PriorityQueue<UniMap> _work =
+    private OrderSpill _spill = null;
+    private int _maxResident = Integer.MAX_VALUE;
+    private long _spillHead = -1L;
+    private long _spillTail = -1L;
+    private int _spillCount = 0;
+
+    /**
+     * Intrusive link, non-null while sleeping in a HostTimerWheel.
+     */
+    HostQueue _wheelNext = null;
+
+    private Queue<UniMap> _work =
         new PriorityQueue<UniMap>( 256, PRIORITY_COMPARATOR );
 
+    private CompactOrderHeap _compact = null;
+
 }
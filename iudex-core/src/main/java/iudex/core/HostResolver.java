@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * Resolves the hosts of visit orders to IP addresses in bulk, on a
+ * pool of lookup threads, setting ContentKeys.ADDRESS. Results,
+ * including failures, are cached for a TTL. Set via
+ * {@link VisitQueue#setResolver(HostResolver)} to resolve orders as
+ * they are added, ahead of dispatch.
+ *
+ * Lookups use InetAddress, so they also warm the JVM's own address
+ * cache used by the HTTP clients on fetch. Set the
+ * networkaddress.cache.ttl security property to at least the TTL here
+ * for fetches to avoid DNS lookups entirely.
+ */
+public class HostResolver
+{
+    public HostResolver( int threads )
+    {
+        _executor = Executors.newFixedThreadPool( threads,
+            new ThreadFactory() {
+                public Thread newThread( Runnable r )
+                {
+                    Thread t = new Thread( r, "host-resolver-" +
+                                           _threadCount.incrementAndGet() );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+    }
+
+    /**
+     * Set the time in milliseconds to cache a resolved address
+     * (default: 5 minutes).
+     */
+    public void setTTL( long ttl )
+    {
+        _ttl = ttl;
+    }
+
+    public long ttl()
+    {
+        return _ttl;
+    }
+
+    /**
+     * Set the time in milliseconds to cache a failed lookup
+     * (default: 30 seconds).
+     */
+    public void setNegativeTTL( long negativeTTL )
+    {
+        _negativeTTL = negativeTTL;
+    }
+
+    public long negativeTTL()
+    {
+        return _negativeTTL;
+    }
+
+    /**
+     * Set the maximum time in milliseconds to wait for lookups in
+     * {@link #resolve(Collection)} (default: 2000). Lookups not
+     * complete by then continue in the background, to the cache.
+     */
+    public void setMaxWait( long maxWait )
+    {
+        _maxWait = maxWait;
+    }
+
+    public long maxWait()
+    {
+        return _maxWait;
+    }
+
+    /**
+     * Set the number of cache entries beyond which expired entries are
+     * pruned (default: 100,000).
+     */
+    public void setMaxEntries( int maxEntries )
+    {
+        _maxEntries = maxEntries;
+    }
+
+    /**
+     * Resolve the URL hosts of orders not already having an ADDRESS,
+     * in parallel, waiting up to maxWait for lookups.
+     * @return the number of orders for which ADDRESS was set
+     */
+    public int resolve( Collection<UniMap> orders )
+    {
+        final long start = System.currentTimeMillis();
+
+        Map<String,Future<String>> pending =
+            new HashMap<String,Future<String>>();
+        for( UniMap order : orders ) {
+            if( order.get( ContentKeys.ADDRESS ) != null ) continue;
+            final String host = order.get( ContentKeys.URL ).host();
+            if( ( cached( host, start ) == null ) &&
+                ! pending.containsKey( host ) ) {
+                Future<String> lookup = _lookups.get( host );
+                if( lookup == null ) {
+                    FutureTask<String> task =
+                        new FutureTask<String>( new Lookup( host ) );
+                    lookup = _lookups.putIfAbsent( host, task );
+                    if( lookup == null ) {
+                        lookup = task;
+                        _executor.execute( task );
+                    }
+                }
+                pending.put( host, lookup );
+            }
+        }
+
+        await( pending.values(), start + _maxWait );
+
+        int count = 0;
+        final long now = System.currentTimeMillis();
+        for( UniMap order : orders ) {
+            if( order.get( ContentKeys.ADDRESS ) != null ) continue;
+            final Entry e = cached( order.get( ContentKeys.URL ).host(), now );
+            if( ( e != null ) && ( e._address != null ) ) {
+                order.set( ContentKeys.ADDRESS, e._address );
+                ++count;
+            }
+        }
+
+        _log.debug( "Resolved {} of {} orders, {} lookups",
+                    new Object[] { count, orders.size(), pending.size() } );
+        return count;
+    }
+
+    /**
+     * Set ADDRESS on order, if not already set and its host is
+     * currently cached, without blocking.
+     * @return true if order has an ADDRESS on return
+     */
+    public boolean resolveCached( UniMap order )
+    {
+        if( order.get( ContentKeys.ADDRESS ) != null ) return true;
+
+        final String address =
+            cachedAddress( order.get( ContentKeys.URL ).host() );
+        if( address != null ) order.set( ContentKeys.ADDRESS, address );
+        return ( address != null );
+    }
+
+    /**
+     * Return the cached, unexpired address of host or null.
+     */
+    public String cachedAddress( String host )
+    {
+        final Entry e = cached( host, System.currentTimeMillis() );
+        return ( e != null ) ? e._address : null;
+    }
+
+    /**
+     * Return the number of cache entries, including expired and
+     * failed lookups.
+     */
+    public int cacheSize()
+    {
+        return _cache.size();
+    }
+
+    /**
+     * Stop all lookup threads.
+     */
+    public void close()
+    {
+        _executor.shutdownNow();
+    }
+
+    /**
+     * Lookup the address of host, blocking.
+     * @throws UnknownHostException if host can not be resolved
+     */
+    protected String lookup( String host ) throws UnknownHostException
+    {
+        return InetAddress.getByName( host ).getHostAddress();
+    }
+
+    private static final class Entry
+    {
+        Entry( String address, long expires )
+        {
+            _address = address;
+            _expires = expires;
+        }
+
+        final String _address;
+        final long _expires;
+    }
+
+    private final class Lookup implements Callable<String>
+    {
+        Lookup( String host )
+        {
+            _host = host;
+        }
+
+        public String call()
+        {
+            String address = null;
+            try {
+                address = lookup( _host );
+            }
+            catch( UnknownHostException x ) {
+                _log.debug( "Lookup failed: {}", _host );
+            }
+            finally {
+                final long now = System.currentTimeMillis();
+                final long ttl = ( address != null ) ? _ttl : _negativeTTL;
+                _cache.put( _host, new Entry( address, now + ttl ) );
+                _lookups.remove( _host );
+                if( _cache.size() > _maxEntries ) prune( now );
+            }
+            return address;
+        }
+
+        private final String _host;
+    }
+
+    private Entry cached( String host, long now )
+    {
+        final Entry e = _cache.get( host );
+        return ( ( e != null ) && ( e._expires > now ) ) ? e : null;
+    }
+
+    private void await( Collection<Future<String>> pending, long deadline )
+    {
+        try {
+            for( Future<String> lookup : pending ) {
+                final long wait = deadline - System.currentTimeMillis();
+                if( wait <= 0 ) break;
+                lookup.get( wait, TimeUnit.MILLISECONDS );
+            }
+        }
+        catch( TimeoutException x ) {
+            _log.debug( "Lookups exceeded maxWait {}ms", _maxWait );
+        }
+        catch( ExecutionException x ) {
+            _log.warn( "Lookup: ", x.getCause() );
+        }
+        catch( InterruptedException x ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void prune( long now )
+    {
+        Iterator<Entry> entries = _cache.values().iterator();
+        while( entries.hasNext() ) {
+            if( entries.next()._expires <= now ) entries.remove();
+        }
+    }
+
+    private long _ttl = 5 * 60 * 1000;
+    private long _negativeTTL = 30 * 1000;
+    private long _maxWait = 2000;
+    private int _maxEntries = 100000;
+
+    private final ConcurrentHashMap<String,Entry> _cache =
+        new ConcurrentHashMap<String,Entry>( 1024 );
+
+    private final ConcurrentHashMap<String,Future<String>> _lookups =
+        new ConcurrentHashMap<String,Future<String>>( 64 );
+
+    private final ExecutorService _executor;
+    private final AtomicInteger _threadCount = new AtomicInteger();
+
+    private final Logger _log = LoggerFactory.getLogger( getClass() );
+}
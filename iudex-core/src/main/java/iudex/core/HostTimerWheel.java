@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import java.util.Collection;
+
+/**
+ * A hierarchical timing wheel of sleeping HostQueues, scheduled by
+ * {@link HostQueue#nextVisit()} with millisecond resolution. Adding
+ * a host is O(1), and expiring due hosts is O(1) amortized per host
+ * (each host cascades down at most LEVELS-1 times), as compared with
+ * O(log n) per host for a PriorityQueue. The exact next visit time is
+ * available via {@link #nextVisit()} for timed waits.
+ *
+ * Four levels of 64 slots cover delays up to about 4.6 hours, beyond
+ * which hosts are kept on an overflow list. HostQueues are linked
+ * intrusively, so a HostQueue may be in at most one wheel. Not thread
+ * safe: VisitQueue synchronizes all access.
+ */
+final class HostTimerWheel
+{
+    HostTimerWheel()
+    {
+        this( System.currentTimeMillis() );
+    }
+
+    HostTimerWheel( long now )
+    {
+        _current = now;
+    }
+
+    /**
+     * Add a host to sleep until its nextVisit time.
+     */
+    void add( HostQueue hq )
+    {
+        if( hq._wheelNext != null ) {
+            throw new IllegalStateException( "Already in wheel!" );
+        }
+        insert( hq );
+        ++_size;
+
+        if( _nextKnown && ( hq.nextVisit() < _nextVisit ) ) {
+            _nextVisit = hq.nextVisit();
+        }
+    }
+
+    /**
+     * Advance the wheel to now, removing all hosts with nextVisit at or
+     * before now and adding them to out.
+     */
+    void expire( long now, Collection<HostQueue> out )
+    {
+        final int before = out.size();
+
+        while( _current < now ) {
+            long tick = _current + 1;
+
+            if( _levelCounts[0] == 0 ) {
+                // Skip directly to the next tick at which a cascade
+                // could occur, or to now.
+                int level = 1;
+                while( ( level < LEVELS ) && ( _levelCounts[level] == 0 ) ) {
+                    ++level;
+                }
+                if( ( level == LEVELS ) && ( _overflow == null ) ) {
+                    _current = now;
+                    break;
+                }
+                if( level == LEVELS ) level = LEVELS - 1;
+
+                final long mask = ( 1L << ( BITS * level ) ) - 1;
+                tick = ( tick + mask ) & ~mask;
+                if( tick > now ) {
+                    _current = now;
+                    break;
+                }
+            }
+
+            _current = tick;
+
+            if( ( tick & MASK ) == 0 ) cascade( tick );
+
+            final int slot = (int) ( tick & MASK );
+            HostQueue hq = _slots[0][slot];
+            _slots[0][slot] = null;
+            while( hq != null ) {
+                final HostQueue next = unlink( hq );
+                --_levelCounts[0];
+                moveOut( hq, out );
+                hq = next;
+            }
+        }
+
+        HostQueue hq = _due;
+        _due = null;
+        while( hq != null ) {
+            final HostQueue next = unlink( hq );
+            moveOut( hq, out );
+            hq = next;
+        }
+
+        if( out.size() > before ) _nextKnown = false;
+    }
+
+    /**
+     * Return the least nextVisit time of all sleeping hosts, or
+     * Long.MAX_VALUE if empty.
+     */
+    long nextVisit()
+    {
+        if( ! _nextKnown ) {
+            _nextVisit = computeNextVisit();
+            _nextKnown = true;
+        }
+        return _nextVisit;
+    }
+
+    int size()
+    {
+        return _size;
+    }
+
+    boolean isEmpty()
+    {
+        return ( _size == 0 );
+    }
+
+    /**
+     * Return true if hq is sleeping in this wheel. This is a linear
+     * scan, intended only for debugging.
+     */
+    boolean contains( HostQueue hq )
+    {
+        if( hq._wheelNext == null ) return false;
+
+        if( chainContains( _due, hq ) ) return true;
+        if( chainContains( _overflow, hq ) ) return true;
+        for( HostQueue[] level : _slots ) {
+            for( HostQueue head : level ) {
+                if( chainContains( head, hq ) ) return true;
+            }
+        }
+        return false;
+    }
+
+    private void insert( HostQueue hq )
+    {
+        final long t = hq.nextVisit();
+        final long delta = t - _current;
+
+        if( delta <= 0 ) {
+            _due = link( hq, _due );
+            return;
+        }
+
+        for( int level = 0; level < LEVELS; ++level ) {
+            if( delta < ( 1L << ( BITS * ( level + 1 ) ) ) ) {
+                final int slot = (int) ( ( t >>> ( BITS * level ) ) & MASK );
+                _slots[level][slot] = link( hq, _slots[level][slot] );
+                ++_levelCounts[level];
+                return;
+            }
+        }
+
+        _overflow = link( hq, _overflow );
+    }
+
+    /**
+     * Re-insert the hosts of each upper level slot whose time range
+     * begins at tick, from highest level to lowest.
+     */
+    private void cascade( long tick )
+    {
+        int top = 1;
+        while( ( top < LEVELS - 1 ) &&
+               ( ( tick & ( ( 1L << ( BITS * ( top + 1 ) ) ) - 1 ) ) == 0 ) ) {
+            ++top;
+        }
+
+        if( top == LEVELS - 1 ) {
+            HostQueue hq = _overflow;
+            _overflow = null;
+            while( hq != null ) {
+                final HostQueue next = unlink( hq );
+                insert( hq );
+                hq = next;
+            }
+        }
+
+        for( int level = top; level > 0; --level ) {
+            final int slot = (int) ( ( tick >>> ( BITS * level ) ) & MASK );
+            HostQueue hq = _slots[level][slot];
+            _slots[level][slot] = null;
+            while( hq != null ) {
+                final HostQueue next = unlink( hq );
+                --_levelCounts[level];
+                insert( hq );
+                hq = next;
+            }
+        }
+    }
+
+    private long computeNextVisit()
+    {
+        long min = Math.min( chainMin( _due ), chainMin( _overflow ) );
+
+        // Within a level, the first non-empty slot following the
+        // current slot (in ring order) holds the least times.
+        for( int level = 0; level < LEVELS; ++level ) {
+            if( _levelCounts[level] == 0 ) continue;
+
+            final int start = (int) ( _current >>> ( BITS * level ) );
+            for( int i = 1; i <= SLOTS; ++i ) {
+                HostQueue head = _slots[level][ ( start + i ) & MASK ];
+                if( head != null ) {
+                    min = Math.min( min, chainMin( head ) );
+                    break;
+                }
+            }
+        }
+        return min;
+    }
+
+    private void moveOut( HostQueue hq, Collection<HostQueue> out )
+    {
+        --_size;
+        out.add( hq );
+    }
+
+    private static HostQueue link( HostQueue hq, HostQueue head )
+    {
+        hq._wheelNext = ( head != null ) ? head : END;
+        return hq;
+    }
+
+    /**
+     * Clear the link of hq and return the next in chain or null.
+     */
+    private static HostQueue unlink( HostQueue hq )
+    {
+        final HostQueue next = hq._wheelNext;
+        hq._wheelNext = null;
+        return ( next == END ) ? null : next;
+    }
+
+    private static long chainMin( HostQueue head )
+    {
+        long min = Long.MAX_VALUE;
+        for( HostQueue hq = head;
+             ( hq != null ) && ( hq != END );
+             hq = hq._wheelNext ) {
+            min = Math.min( min, hq.nextVisit() );
+        }
+        return min;
+    }
+
+    private static boolean chainContains( HostQueue head, HostQueue target )
+    {
+        for( HostQueue hq = head;
+             ( hq != null ) && ( hq != END );
+             hq = hq._wheelNext ) {
+            if( hq == target ) return true;
+        }
+        return false;
+    }
+
+    private static final int BITS   = 6;
+    private static final int SLOTS  = 1 << BITS;
+    private static final int MASK   = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * Chain terminator, such that a non-null _wheelNext always
+     * indicates membership.
+     */
+    private static final HostQueue END = new HostQueue( null, 0, 0 );
+
+    private final HostQueue[][] _slots = new HostQueue[LEVELS][SLOTS];
+    private final int[] _levelCounts = new int[LEVELS];
+    private HostQueue _due = null;
+    private HostQueue _overflow = null;
+
+    private long _current;
+    private int _size = 0;
+
+    private long _nextVisit = Long.MAX_VALUE;
+    private boolean _nextKnown = true;
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * Resolves a batch of raw links (hrefs), as extracted from a single
+ * page or feed, against a common base URL, to normalized URLs
+ * de-duplicated by uhash within the batch. Absolute, absolute path and
+ * network path links are resolved without URI parsing; the base URI is
+ * otherwise parsed once for all relative links. Not thread safe.
+ */
+public final class LinkResolver
+{
+    /**
+     * @param base URL against which to resolve links, or null to
+     *        normalize absolute links only.
+     */
+    public LinkResolver( VisitURL base )
+    {
+        _base = base;
+    }
+
+    /**
+     * Return href resolved against the base URL and normalized, or null
+     * if a duplicate of a previously resolved link.
+     * @throws VisitURL.SyntaxException if href is not a valid HTTP URL
+     *         or (relative) reference.
+     */
+    public VisitURL resolve( CharSequence href )
+        throws VisitURL.SyntaxException
+    {
+        final VisitURL url = ( _base != null ) ? _base.resolve( href ) :
+                                                 VisitURL.normalize( href );
+        if( _uhashes.add( url.uhash() ) ) return url;
+
+        ++_duplicates;
+        return null;
+    }
+
+    /**
+     * Return new references, with URL set, for each of hrefs that is
+     * valid and not a duplicate, in order. Invalid hrefs are counted
+     * and logged at debug level.
+     */
+    public List<UniMap> references( Iterable<? extends CharSequence> hrefs )
+    {
+        final List<UniMap> refs = new ArrayList<UniMap>();
+        for( CharSequence href : hrefs ) {
+            try {
+                final VisitURL url = resolve( href );
+                if( url != null ) {
+                    final UniMap ref = new UniMap();
+                    ref.set( ContentKeys.URL, url );
+                    refs.add( ref );
+                }
+            }
+            catch( VisitURL.SyntaxException x ) {
+                ++_invalid;
+                _log.debug( "On link {}: {}", href, x.getMessage() );
+            }
+        }
+        return refs;
+    }
+
+    public VisitURL base()
+    {
+        return _base;
+    }
+
+    /**
+     * Return the number of duplicate links skipped.
+     */
+    public int duplicates()
+    {
+        return _duplicates;
+    }
+
+    /**
+     * Return the number of invalid links skipped by
+     * {@link #references(Iterable)}.
+     */
+    public int invalid()
+    {
+        return _invalid;
+    }
+
+    private final VisitURL _base;
+    private final Set<String> _uhashes = new HashSet<String>();
+    private int _duplicates = 0;
+    private int _invalid = 0;
+
+    private static final Logger _log =
+        LoggerFactory.getLogger( LinkResolver.class );
+}
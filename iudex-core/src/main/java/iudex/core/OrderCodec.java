@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import com.gravitext.htmap.Key;
+import com.gravitext.htmap.UniMap;
+
+/**
+ * Binary encoding of a fixed set of visit order keys, for orders
+ * spilled out of memory. Supported key value types are String,
+ * CharSequence (decoded as String), Integer, Long, Float, Double,
+ * Boolean, Date and VisitURL. Other keys of an order are not encoded,
+ * so only orders passing {@link #canEncode(UniMap)} are spilled.
+ */
+public final class OrderCodec
+{
+    /**
+     * Create codec for the default order keys: URL, TYPE, ADDRESS,
+     * PRIORITY, NEXT_VISIT_AFTER and LAST_VISIT.
+     */
+    public OrderCodec()
+    {
+        this( Arrays.<Key> asList( ContentKeys.URL,
+                                   ContentKeys.TYPE,
+                                   ContentKeys.ADDRESS,
+                                   ContentKeys.PRIORITY,
+                                   ContentKeys.NEXT_VISIT_AFTER,
+                                   ContentKeys.LAST_VISIT ) );
+    }
+
+    /**
+     * Create codec for the specified keys.
+     * @throws IllegalArgumentException if any key has an unsupported
+     * value type.
+     */
+    public OrderCodec( List<Key> keys )
+    {
+        if( keys.size() > 64 ) {
+            throw new IllegalArgumentException( "Too many keys: " +
+                                                keys.size() );
+        }
+
+        _keys = keys.toArray( new Key[ keys.size() ] );
+        _types = new int[ _keys.length ];
+
+        for( int i = 0; i < _keys.length; ++i ) {
+            _types[i] = typeOf( _keys[i] );
+        }
+    }
+
+    public List<Key> keys()
+    {
+        return new ArrayList<Key>( Arrays.asList( _keys ) );
+    }
+
+    /**
+     * Return true if order has no keys other than those of this codec,
+     * such that it decodes without loss.
+     */
+    public boolean canEncode( UniMap order )
+    {
+        int present = 0;
+        for( Key key : _keys ) {
+            if( order.get( key ) != null ) ++present;
+        }
+        return ( present == order.size() );
+    }
+
+    /**
+     * Encode order into out, starting at its position.
+     * @throws BufferOverflowException if out has insufficient
+     * remaining capacity.
+     */
+    @SuppressWarnings("unchecked")
+    public void encode( UniMap order, ByteBuffer out )
+    {
+        final int start = out.position();
+        out.putLong( 0L ); // Presence bits, below
+
+        long present = 0L;
+        for( int i = 0; i < _keys.length; ++i ) {
+            final Object value = order.get( _keys[i] );
+            if( value == null ) continue;
+            present |= ( 1L << i );
+
+            switch( _types[i] ) {
+            case STRING:
+                putString( out, value.toString() );
+                break;
+            case INTEGER:
+                out.putInt( (Integer) value );
+                break;
+            case LONG:
+                out.putLong( (Long) value );
+                break;
+            case FLOAT:
+                out.putFloat( (Float) value );
+                break;
+            case DOUBLE:
+                out.putDouble( (Double) value );
+                break;
+            case BOOLEAN:
+                out.put( (byte) ( ( (Boolean) value ) ? 1 : 0 ) );
+                break;
+            case DATE:
+                out.putLong( ( (Date) value ).getTime() );
+                break;
+            case URL:
+                putString( out, ( (VisitURL) value ).url() );
+                break;
+            }
+        }
+        out.putLong( start, present );
+    }
+
+    /**
+     * Decode an order from in, starting at its position.
+     */
+    @SuppressWarnings("unchecked")
+    public UniMap decode( ByteBuffer in )
+    {
+        final UniMap order = new UniMap();
+        final long present = in.getLong();
+
+        for( int i = 0; i < _keys.length; ++i ) {
+            if( ( present & ( 1L << i ) ) == 0 ) continue;
+
+            final Object value;
+            switch( _types[i] ) {
+            case STRING:
+                value = getString( in );
+                break;
+            case INTEGER:
+                value = in.getInt();
+                break;
+            case LONG:
+                value = in.getLong();
+                break;
+            case FLOAT:
+                value = in.getFloat();
+                break;
+            case DOUBLE:
+                value = in.getDouble();
+                break;
+            case BOOLEAN:
+                value = ( in.get() != 0 );
+                break;
+            case DATE:
+                value = new Date( in.getLong() );
+                break;
+            default: // URL
+                value = VisitURL.trust( getString( in ) );
+                break;
+            }
+            order.set( _keys[i], value );
+        }
+
+        return order;
+    }
+
+    private static int typeOf( Key key )
+    {
+        final Class<?> type = key.valueType();
+
+        if( type == String.class )       return STRING;
+        if( type == CharSequence.class ) return STRING;
+        if( type == Integer.class )      return INTEGER;
+        if( type == Long.class )         return LONG;
+        if( type == Float.class )        return FLOAT;
+        if( type == Double.class )       return DOUBLE;
+        if( type == Boolean.class )      return BOOLEAN;
+        if( type == Date.class )         return DATE;
+        if( type == VisitURL.class )     return URL;
+
+        throw new IllegalArgumentException(
+            "Key " + key.name() + " has unsupported type " + type );
+    }
+
+    private static void putString( ByteBuffer out, String value )
+    {
+        final byte[] bytes = value.getBytes( UTF8 );
+        out.putInt( bytes.length );
+        out.put( bytes );
+    }
+
+    private static String getString( ByteBuffer in )
+    {
+        final byte[] bytes = new byte[ in.getInt() ];
+        in.get( bytes );
+        return new String( bytes, UTF8 );
+    }
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final int STRING  = 0;
+    private static final int INTEGER = 1;
+    private static final int LONG    = 2;
+    private static final int FLOAT   = 3;
+    private static final int DOUBLE  = 4;
+    private static final int BOOLEAN = 5;
+    private static final int DATE    = 6;
+    private static final int URL     = 7;
+
+    private final Key[] _keys;
+    private final int[] _types;
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * An on-disk store of visit orders spilled from HostQueues, in a
+ * series of fixed size, memory mapped segment files. Records are
+ * appended and linked per HostQueue as a chain, so that only the
+ * chain head, tail and count are kept in memory for each host. Each
+ * segment file is deleted once all of its records have been
+ * freed, or on close.
+ *
+ * Each record consists of a 4-byte payload length, an 8-byte offset
+ * of the next record in the chain (or -1), and the payload as encoded
+ * by the OrderCodec. Methods are synchronized.
+ */
+public final class OrderSpill implements Closeable
+{
+    public OrderSpill( File directory, OrderCodec codec, int segmentSize )
+    {
+        _directory = directory;
+        _codec = codec;
+        _segmentSize = segmentSize;
+    }
+
+    /**
+     * Return true if order may be appended without loss of any keys.
+     * Other orders must be kept in memory by the caller.
+     * @see OrderCodec#canEncode(UniMap)
+     */
+    public boolean canSpill( UniMap order )
+    {
+        return _codec.canEncode( order );
+    }
+
+    /**
+     * Append order to the chain ending at tail, or start a new chain
+     * if tail is -1.
+     * @return offset of the new record, the new chain tail
+     */
+    public synchronized long append( long tail, UniMap order )
+    {
+        final ByteBuffer payload = encode( order );
+        final int length = HEADER_LENGTH + payload.remaining();
+
+        if( length > _segmentSize ) {
+            throw new IllegalStateException(
+                "Order record length " + length + " exceeds segment size" );
+        }
+
+        if( ( _current == null ) || ( _position + length > _segmentSize ) ) {
+            final Segment prior = _current;
+            _current = createSegment();
+            _position = 0;
+            if( ( prior != null ) && ( prior.live == 0 ) ) {
+                deleteSegment( prior );
+            }
+        }
+
+        final MappedByteBuffer buf = _current.buffer;
+        final int pos = _position;
+        buf.putInt( pos, payload.remaining() );
+        buf.putLong( pos + 4, -1L );
+        final ByteBuffer out = buf.duplicate();
+        out.position( pos + HEADER_LENGTH );
+        out.put( payload );
+
+        _position += length;
+        ++_current.live;
+        ++_liveCount;
+
+        final long offset = offset( _current.index, pos );
+        if( tail >= 0 ) {
+            segment( tail ).buffer.putLong( position( tail ) + 4, offset );
+        }
+        return offset;
+    }
+
+    /**
+     * Read and decode the order record at offset.
+     */
+    public synchronized UniMap read( long offset )
+    {
+        final ByteBuffer in = segment( offset ).buffer.duplicate();
+        final int pos = position( offset );
+        in.position( pos + HEADER_LENGTH );
+        in.limit( pos + HEADER_LENGTH + in.getInt( pos ) );
+        return _codec.decode( in.slice() );
+    }
+
+    /**
+     * Return the offset of the next record in chain after offset, or
+     * -1 if offset is the chain tail.
+     */
+    public synchronized long next( long offset )
+    {
+        return segment( offset ).buffer.getLong( position( offset ) + 4 );
+    }
+
+    /**
+     * Free the record at offset, after it has been read for the last
+     * time.
+     */
+    public synchronized void free( long offset )
+    {
+        final Segment seg = segment( offset );
+        --_liveCount;
+        if( ( --seg.live == 0 ) && ( seg != _current ) ) {
+            deleteSegment( seg );
+        }
+    }
+
+    /**
+     * Return the number of records not yet freed.
+     */
+    public synchronized int liveCount()
+    {
+        return _liveCount;
+    }
+
+    /**
+     * Return the number of segment files currently open.
+     */
+    public synchronized int segmentCount()
+    {
+        int count = 0;
+        for( Segment seg : _segments ) {
+            if( seg != null ) ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Delete all segment files and the directory, if empty.
+     */
+    @Override
+    public synchronized void close()
+    {
+        for( Segment seg : _segments ) {
+            if( seg != null ) deleteSegment( seg );
+        }
+        _current = null;
+        _liveCount = 0;
+        _directory.delete();
+    }
+
+    private ByteBuffer encode( UniMap order )
+    {
+        while( true ) {
+            try {
+                _encodeBuffer.clear();
+                _codec.encode( order, _encodeBuffer );
+                _encodeBuffer.flip();
+                return _encodeBuffer;
+            }
+            catch( BufferOverflowException x ) {
+                _encodeBuffer =
+                    ByteBuffer.allocate( _encodeBuffer.capacity() * 2 );
+            }
+        }
+    }
+
+    private Segment createSegment()
+    {
+        final int index = _segments.size();
+        final File file = new File( _directory,
+                                    String.format( "spill-%06d.seg", index ) );
+        try {
+            _directory.mkdirs();
+            RandomAccessFile rafile = new RandomAccessFile( file, "rw" );
+            try {
+                FileChannel channel = rafile.getChannel();
+                MappedByteBuffer buffer =
+                    channel.map( FileChannel.MapMode.READ_WRITE,
+                                 0, _segmentSize );
+                Segment seg = new Segment( index, file, buffer );
+                _segments.add( seg );
+                _log.debug( "Created segment {}", file );
+                return seg;
+            }
+            finally {
+                // Mapping remains valid after close
+                rafile.close();
+            }
+        }
+        catch( IOException x ) {
+            throw new RuntimeException( "Creating spill segment " + file, x );
+        }
+    }
+
+    /**
+     * Drop all references to the segment mapping and delete its file.
+     * The mapping itself is only released once its buffer is garbage
+     * collected, so disk space of the deleted file may not be reclaimed
+     * until then, and on some platforms the delete fails while mapped.
+     */
+    private void deleteSegment( Segment seg )
+    {
+        _segments.set( seg.index, null );
+        seg.buffer = null;
+        if( ! seg.file.delete() ) {
+            _log.warn( "Unable to delete spill segment {}", seg.file );
+        }
+    }
+
+    private Segment segment( long offset )
+    {
+        return _segments.get( (int) ( offset / _segmentSize ) );
+    }
+
+    private int position( long offset )
+    {
+        return (int) ( offset % _segmentSize );
+    }
+
+    private long offset( int index, int position )
+    {
+        return ( ( (long) index ) * _segmentSize ) + position;
+    }
+
+    private static final class Segment
+    {
+        Segment( int index, File file, MappedByteBuffer buffer )
+        {
+            this.index = index;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        final int index;
+        final File file;
+        MappedByteBuffer buffer;
+        int live = 0;
+    }
+
+    /**
+     * Return a new, unique spill directory under parent.
+     */
+    static File uniqueDirectory( File parent )
+    {
+        return new File( parent, String.format( "vq-%x-%d",
+                                                System.nanoTime(),
+                                                SEQUENCE.incrementAndGet() ) );
+    }
+
+    private static final int HEADER_LENGTH = 4 + 8;
+
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    private final File _directory;
+    private final OrderCodec _codec;
+    private final int _segmentSize;
+
+    private final List<Segment> _segments = new ArrayList<Segment>();
+    private Segment _current = null;
+    private int _position = 0;
+    private int _liveCount = 0;
+
+    private ByteBuffer _encodeBuffer = ByteBuffer.allocate( 1024 );
+
+    private final Logger _log = LoggerFactory.getLogger( getClass() );
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reversed-label trie of public suffix rules, compiled from the
+ * generated TLDSets, resolving the registration level domain of a
+ * host name in a single right-to-left pass over its chars, without
+ * intermediate Strings.
+ *
+ * Nodes are int indexes into parallel arrays, with labels packed into
+ * a single char array. Child edges are held in one open addressing
+ * table keyed by parent node and label hash, so each label costs one
+ * probe. Results are identical to the TLDSets based
+ * {@link Domains#registrationLevelDomainBySets(String)}.
+ */
+final class PublicSuffixTrie
+{
+    PublicSuffixTrie( Collection<String> knownTLDs,
+                      Collection<String> tldParents,
+                      Collection<String> regExceptions )
+    {
+        final Set<String> suffixes = new HashSet<String>( 16 * 1024 );
+        int chars = 0;
+        chars += addSuffixes( knownTLDs, suffixes );
+        chars += addSuffixes( tldParents, suffixes );
+        chars += addSuffixes( regExceptions, suffixes );
+
+        final int nodes = suffixes.size() + 1; // plus root
+        _parents = new int[ nodes ];
+        _hashes  = new int[ nodes ];
+        _offsets = new int[ nodes + 1 ];
+        _flags   = new byte[ nodes ];
+        _chars   = new char[ chars ];
+
+        int capacity = 16;
+        while( capacity < nodes * 2 ) capacity <<= 1;
+        _slots = new int[ capacity ];
+        _mask = capacity - 1;
+
+        add( knownTLDs, KNOWN );
+        add( tldParents, WILD );
+        add( regExceptions, EXCEPTION );
+    }
+
+    /**
+     * Return the registration level domain of name, as per
+     * {@link Domains#registrationLevelDomain(String)}.
+     */
+    String registrationLevelDomain( String name )
+    {
+        return find( name, false );
+    }
+
+    /**
+     * Return the number of trie nodes, including the root.
+     */
+    int size()
+    {
+        return _count;
+    }
+
+    private String find( final String name, final boolean lowered )
+    {
+        if( name == null ) return null;
+
+        int end = name.length();
+        if( ( end > 0 ) && ( name.charAt( end - 1 ) == '.' ) ) --end;
+        if( end == 0 ) return null;
+
+        int node = 0;          // Parent of the current label, root first
+        int match = -1;        // Start of deepest matching suffix
+        boolean exception = false;
+
+        int e = end;
+        while( true ) {
+            int h = 0;
+            int i = e;
+            while( i > 0 ) {
+                char c = name.charAt( i - 1 );
+                if( c == '.' ) break;
+                if( ( c >= 'A' ) && ( c <= 'Z' ) ) {
+                    c += ( 'a' - 'A' );
+                }
+                else if( ( c >= 0x80 ) && ! lowered && folds( c ) ) {
+                    return find( name.toLowerCase(), true );
+                }
+                h = 31 * h + c;
+                --i;
+            }
+
+            // Label [i,e) is the first of suffix [i,end). A known
+            // suffix takes precedence over a wildcard parent.
+            final int n = child( node, h, name, i, e );
+            if( ( n > 0 ) && ( ( _flags[n] & KNOWN ) != 0 ) ) {
+                match = i;
+                exception = false;
+            }
+            else if( ( _flags[node] & WILD ) != 0 ) {
+                match = i;
+                exception = ( n > 0 ) && ( ( _flags[n] & EXCEPTION ) != 0 );
+            }
+
+            if( ( n < 0 ) || ( i == 0 ) ) break;
+            node = n;
+            e = i - 1;
+        }
+
+        if( match < 0 ) return null;
+
+        // Unless an exception, the registration level domain is the
+        // matched suffix plus the next label, if any.
+        int start = match;
+        if( ! exception ) {
+            if( match == 0 ) return null;
+            start = name.lastIndexOf( '.', match - 2 ) + 1;
+        }
+
+        boolean upper = false;
+        for( int i = start; i < end; ++i ) {
+            final char c = name.charAt( i );
+            if( ( c >= 'A' ) && ( c <= 'Z' ) ) upper = true;
+            else if( ( c >= 0x80 ) && ! lowered && folds( c ) ) {
+                return find( name.toLowerCase(), true );
+            }
+        }
+
+        if( ! upper ) {
+            return ( ( start == 0 ) && ( end == name.length() ) ) ?
+                name : name.substring( start, end );
+        }
+
+        final char[] out = new char[ end - start ];
+        for( int i = start; i < end; ++i ) {
+            char c = name.charAt( i );
+            if( ( c >= 'A' ) && ( c <= 'Z' ) ) c += ( 'a' - 'A' );
+            out[ i - start ] = c;
+        }
+        return new String( out );
+    }
+
+    /**
+     * Return true if non-ASCII c may change via String.toLowerCase().
+     */
+    private static boolean folds( char c )
+    {
+        return ( Character.isHighSurrogate( c ) ||
+                 Character.isLowSurrogate( c ) ||
+                 ( Character.toLowerCase( c ) != c ) );
+    }
+
+    /**
+     * Return the child node of parent with label [start,end) of name,
+     * or -1 if not found.
+     */
+    private int child( int parent, int hash, String name, int start, int end )
+    {
+        int s = slot( parent, hash );
+        int n;
+        while( ( n = _slots[s] ) != 0 ) {
+            if( ( _hashes[n] == hash ) && ( _parents[n] == parent ) &&
+                labelEquals( n, name, start, end ) ) {
+                return n;
+            }
+            s = ( s + 1 ) & _mask;
+        }
+        return -1;
+    }
+
+    private boolean labelEquals( int node, String name, int start, int end )
+    {
+        int o = _offsets[node];
+        if( _offsets[node + 1] - o != end - start ) return false;
+
+        for( int i = start; i < end; ++i ) {
+            char c = name.charAt( i );
+            if( ( c >= 'A' ) && ( c <= 'Z' ) ) c += ( 'a' - 'A' );
+            if( c != _chars[o++] ) return false;
+        }
+        return true;
+    }
+
+    private int slot( int parent, int hash )
+    {
+        int h = ( hash + parent ) * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        return ( h ^ ( h >>> 13 ) ) & _mask;
+    }
+
+    private static int addSuffixes( Collection<String> names,
+                                    Set<String> suffixes )
+    {
+        int chars = 0;
+        for( String name : names ) {
+            int i = name.length();
+            while( i > 0 ) {
+                final int e = i;
+                i = name.lastIndexOf( '.', e - 1 ) + 1;
+                if( suffixes.add( name.substring( i ) ) ) chars += e - i;
+                --i;
+            }
+        }
+        return chars;
+    }
+
+    private void add( Collection<String> names, int flag )
+    {
+        for( String name : names ) {
+            int node = 0;
+            int e = name.length();
+            while( e > 0 ) {
+                final int i = name.lastIndexOf( '.', e - 1 ) + 1;
+                int h = 0;
+                for( int j = e; j > i; --j ) h = 31 * h + name.charAt( j - 1 );
+
+                int n = child( node, h, name, i, e );
+                if( n < 0 ) n = addNode( node, h, name, i, e );
+                node = n;
+                e = i - 1;
+            }
+            _flags[node] |= flag;
+        }
+    }
+
+    private int addNode( int parent, int hash, String name, int start, int end )
+    {
+        final int n = _count++;
+        _parents[n] = parent;
+        _hashes[n] = hash;
+        final int o = _offsets[n];
+        name.getChars( start, end, _chars, o );
+        _offsets[n + 1] = o + end - start;
+
+        int s = slot( parent, hash );
+        while( _slots[s] != 0 ) s = ( s + 1 ) & _mask;
+        _slots[s] = n;
+        return n;
+    }
+
+    private static final byte KNOWN     = 0x1;
+    private static final byte WILD      = 0x2;
+    private static final byte EXCEPTION = 0x4;
+
+    private final int[] _parents;
+    private final int[] _hashes;
+    private final int[] _offsets;
+    private final byte[] _flags;
+    private final char[] _chars;
+
+    private final int[] _slots;
+    private final int _mask;
+
+    private int _count = 1;
+}
@@ -0,0 +1,689 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * A VisitQueue partitioned into a fixed number of independently
+ * locked shards, by hash of the DomainKey domain. All HostQueues for
+ * a domain (including any typed keys) reside in the same shard, so
+ * per-host politeness is enforced exactly as with VisitQueue. The
+ * maxAccessTotal limit is enforced globally across all shards.
+ *
+ * Acquiring threads poll the shards round-robin without holding any
+ * global lock. Threads which find nothing available wait in
+ * leader/follower fashion: a single leader waits for the next
+ * sleeping host's visit time while others wait for a signal, and
+ * add/release signal a single waiter rather than all.
+ *
+ * Note that priority order is maintained within each shard, but not
+ * strictly across shards.
+ */
+public class ShardedVisitQueue extends VisitQueue
+{
+    /**
+     * Create a new, empty queue with shardCount shards, rounded up to
+     * the next power of two.
+     */
+    public ShardedVisitQueue( int shardCount )
+    {
+        this( createShards( shardCount ) );
+    }
+
+    /**
+     * Create a new queue with shardCount shards and the same defaults
+     * and host configuration as template.
+     * @throws IllegalStateException if template has orders already.
+     */
+    public ShardedVisitQueue( VisitQueue template, int shardCount )
+    {
+        this( shardCount );
+
+        if( template.orderCount() > 0 ) {
+            throw new IllegalStateException(
+                "Can't create ShardedVisitQueue from template with orders" );
+        }
+
+        setDefaultMinHostDelay( template.defaultMinHostDelay() );
+        setDefaultMaxAccessPerHost( template.defaultMaxAccessPerHost() );
+        setMaxAccessTotal( template.maxAccessTotal() );
+        setAdaptiveDelay( template.adaptiveDelay() );
+        setCompactOrders( template.compactOrders() );
+        setSchedule( template.schedule() );
+        setResolver( template.resolver() );
+        setAddressPoliteness( template.addressPoliteness() );
+        setListener( template.listener() );
+        setSpill( template.spillDirectory(), template.spillCodec() );
+        setMaxResidentPerHost( template.maxResidentPerHost() );
+        setSpillSegmentSize( template.spillSegmentSize() );
+
+        for( HostQueue hq : template.hosts() ) {
+            DomainKey key = hq.key();
+            shard( key.domain() ).configureHost( key.domain(),
+                                                 key.type(),
+                                                 hq.minHostDelay(),
+                                                 hq.maxAccessCount() );
+        }
+
+        for( Map.Entry<DomainKey,Float> e :
+                 template.hostWeights().entrySet() ) {
+            DomainKey key = e.getKey();
+            shard( key.domain() ).setHostWeight( key.domain(),
+                                                 key.type(),
+                                                 e.getValue() );
+        }
+        for( Map.Entry<String,Float> e :
+                 template.typeWeights().entrySet() ) {
+            setTypeWeight( e.getKey(), e.getValue() );
+        }
+        for( Map.Entry<String,KeyingConfig> e :
+                 template.keyings().entrySet() ) {
+            configureKeying( e.getKey(),
+                             e.getValue().keying(),
+                             e.getValue().maxSubQueues() );
+        }
+    }
+
+    public int shardCount()
+    {
+        return _shards.length;
+    }
+
+    @Override
+    public void setDefaultMinHostDelay( int defaultMinHostDelay )
+    {
+        super.setDefaultMinHostDelay( defaultMinHostDelay );
+        for( VisitQueue shard : _shards ) {
+            shard.setDefaultMinHostDelay( defaultMinHostDelay );
+        }
+    }
+
+    @Override
+    public void setDefaultMaxAccessPerHost( int defaultMaxAccessPerHost )
+    {
+        super.setDefaultMaxAccessPerHost( defaultMaxAccessPerHost );
+        for( VisitQueue shard : _shards ) {
+            shard.setDefaultMaxAccessPerHost( defaultMaxAccessPerHost );
+        }
+    }
+
+    @Override
+    public void setAdaptiveDelay( AdaptiveHostDelay adaptiveDelay )
+    {
+        super.setAdaptiveDelay( adaptiveDelay );
+        for( VisitQueue shard : _shards ) {
+            shard.setAdaptiveDelay( adaptiveDelay );
+        }
+    }
+
+    @Override
+    public void setSchedule( Schedule schedule )
+    {
+        super.setSchedule( schedule );
+        for( VisitQueue shard : _shards ) shard.setSchedule( schedule );
+    }
+
+    @Override
+    public void setHostWeight( String host, String type, float weight )
+    {
+        shard( configDomain( host ) ).setHostWeight( host, type, weight );
+    }
+
+    @Override
+    public void setTypeWeight( String type, float weight )
+    {
+        super.setTypeWeight( type, weight );
+        for( VisitQueue shard : _shards ) {
+            shard.setTypeWeight( type, weight );
+        }
+    }
+
+    @Override
+    Map<DomainKey,Float> hostWeights()
+    {
+        Map<DomainKey,Float> weights = new HashMap<DomainKey,Float>();
+        for( VisitQueue shard : _shards ) {
+            weights.putAll( shard.hostWeights() );
+        }
+        return weights;
+    }
+
+    @Override
+    public void setAddressPoliteness( boolean addressPoliteness )
+    {
+        super.setAddressPoliteness( addressPoliteness );
+        for( VisitQueue shard : _shards ) {
+            shard.setAddressPoliteness( addressPoliteness );
+        }
+    }
+
+    @Override
+    public void setListener( VisitQueueListener listener )
+    {
+        super.setListener( listener );
+        for( VisitQueue shard : _shards ) shard.setListener( listener );
+    }
+
+    @Override
+    public void setCompactOrders( boolean compactOrders )
+    {
+        super.setCompactOrders( compactOrders );
+        for( VisitQueue shard : _shards ) {
+            shard.setCompactOrders( compactOrders );
+        }
+    }
+
+    @Override
+    public void setSpill( File directory, OrderCodec codec )
+    {
+        super.setSpill( directory, codec );
+        for( VisitQueue shard : _shards ) shard.setSpill( directory, codec );
+    }
+
+    @Override
+    public void setMaxResidentPerHost( int maxResidentPerHost )
+    {
+        super.setMaxResidentPerHost( maxResidentPerHost );
+        for( VisitQueue shard : _shards ) {
+            shard.setMaxResidentPerHost( maxResidentPerHost );
+        }
+    }
+
+    @Override
+    public void setSpillSegmentSize( int spillSegmentSize )
+    {
+        super.setSpillSegmentSize( spillSegmentSize );
+        for( VisitQueue shard : _shards ) {
+            shard.setSpillSegmentSize( spillSegmentSize );
+        }
+    }
+
+    @Override
+    public int spilledCount()
+    {
+        int count = 0;
+        for( VisitQueue shard : _shards ) count += shard.spilledCount();
+        return count;
+    }
+
+    @Override
+    public void close()
+    {
+        for( VisitQueue shard : _shards ) shard.close();
+    }
+
+    @Override
+    public void configureHost( String host,
+                               String type,
+                               int minHostDelay,
+                               int maxAccessCount )
+    {
+        shard( configDomain( host ) ).configureHost( host, type,
+                                                     minHostDelay,
+                                                     maxAccessCount );
+    }
+
+    @Override
+    public void configureKeying( String host,
+                                 Keying keying,
+                                 int maxSubQueues )
+    {
+        // Also kept here, for keyDomain
+        super.configureKeying( host, keying, maxSubQueues );
+        shard( configDomain( host ) ).configureKeying( host, keying,
+                                                       maxSubQueues );
+    }
+
+    @Override
+    Map<String,KeyingConfig> keyings()
+    {
+        Map<String,KeyingConfig> keyings =
+            new HashMap<String,KeyingConfig>();
+        for( VisitQueue shard : _shards ) keyings.putAll( shard.keyings() );
+        return keyings;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The clone has the same number of shards.
+     */
+    @Override
+    public ShardedVisitQueue clone()
+    {
+        if( orderCount() > 0 ) {
+            throw new IllegalStateException(
+                "VisitQueue can't be cloned with orders" );
+        }
+
+        VisitQueue[] shards = new VisitQueue[ _shards.length ];
+        for( int i = 0; i < shards.length; ++i ) {
+            shards[i] = _shards[i].clone();
+        }
+
+        ShardedVisitQueue newQ = new ShardedVisitQueue( shards );
+        newQ.setDefaultMinHostDelay( defaultMinHostDelay() );
+        newQ.setDefaultMaxAccessPerHost( defaultMaxAccessPerHost() );
+        newQ.setMaxAccessTotal( maxAccessTotal() );
+        newQ.setAdaptiveDelay( adaptiveDelay() );
+        newQ.setCompactOrders( compactOrders() );
+        newQ.setSchedule( schedule() );
+        for( Map.Entry<String,Float> e : typeWeights().entrySet() ) {
+            newQ.setTypeWeight( e.getKey(), e.getValue() );
+        }
+        for( Map.Entry<String,KeyingConfig> e : keyings().entrySet() ) {
+            newQ.configureKeying( e.getKey(),
+                                  e.getValue().keying(),
+                                  e.getValue().maxSubQueues() );
+        }
+        newQ.setResolver( resolver() );
+        newQ.setAddressPoliteness( addressPoliteness() );
+        newQ.setListener( listener() );
+        newQ.setSpill( spillDirectory(), spillCodec() );
+        newQ.setMaxResidentPerHost( maxResidentPerHost() );
+        newQ.setSpillSegmentSize( spillSegmentSize() );
+
+        return newQ;
+    }
+
+    @Override
+    public void addAll( List<UniMap> orders )
+    {
+        // Resolve before routing by keyDomain; shards have no resolver
+        if( resolver() != null ) resolver().resolve( orders );
+
+        @SuppressWarnings("unchecked")
+        List<UniMap>[] batches = new List[ _shards.length ];
+
+        for( UniMap order : orders ) {
+            int s = shardIndex( order );
+            if( batches[s] == null ) batches[s] = new ArrayList<UniMap>();
+            batches[s].add( order );
+        }
+
+        for( int s = 0; s < batches.length; ++s ) {
+            if( batches[s] != null ) _shards[s].addAll( batches[s] );
+        }
+
+        signal( true );
+    }
+
+    @Override
+    public void add( UniMap order )
+    {
+        if( resolver() != null ) {
+            resolver().resolve( Collections.singletonList( order ) );
+        }
+        shard( order ).add( order );
+        signal( false );
+    }
+
+    @Override
+    public int orderCount()
+    {
+        int count = 0;
+        for( VisitQueue shard : _shards ) count += shard.orderCount();
+        return count;
+    }
+
+    @Override
+    public int acquiredCount()
+    {
+        int count = 0;
+        for( VisitQueue shard : _shards ) count += shard.acquiredCount();
+        return count;
+    }
+
+    @Override
+    public int hostCount()
+    {
+        int count = 0;
+        for( VisitQueue shard : _shards ) count += shard.hostCount();
+        return count;
+    }
+
+    @Override
+    public int readyHostCount()
+    {
+        int count = 0;
+        for( VisitQueue shard : _shards ) count += shard.readyHostCount();
+        return count;
+    }
+
+    @Override
+    public int sleepHostCount()
+    {
+        int count = 0;
+        for( VisitQueue shard : _shards ) count += shard.sleepHostCount();
+        return count;
+    }
+
+    @Override
+    public UniMap acquire( long maxWait ) throws InterruptedException
+    {
+        final long start = System.currentTimeMillis();
+        final int[] sizes = sampleSizes();
+        long now = start;
+        final long end = now + maxWait;
+
+        while( true ) {
+            if( reserveAccess() ) {
+                UniMap order = pollShards();
+                if( order != null ) {
+                    notifyWait( start, true, sizes );
+                    return order;
+                }
+                unreserveAccess();
+            }
+
+            if( now >= end ) break;
+
+            awaitReady( now, end );
+            now = System.currentTimeMillis();
+        }
+        notifyWait( start, false, sizes );
+        return null;
+    }
+
+    @Override
+    public int acquire( int max, long maxWait, Collection<UniMap> out )
+        throws InterruptedException
+    {
+        final long start = System.currentTimeMillis();
+        final int[] sizes = sampleSizes();
+        long now = start;
+        final long end = now + maxWait;
+
+        while( max > 0 ) {
+            final int permits = reserveAccess( max );
+            if( permits > 0 ) {
+                int count = pollShards( permits, out );
+                if( count < permits ) unreserveAccess( permits - count );
+                if( count > 0 ) {
+                    notifyWait( start, true, sizes );
+                    return count;
+                }
+            }
+
+            if( now >= end ) break;
+
+            awaitReady( now, end );
+            now = System.currentTimeMillis();
+        }
+        if( max > 0 ) notifyWait( start, false, sizes );
+        return 0;
+    }
+
+    @Override
+    public void release( UniMap acquired, UniMap newOrder )
+    {
+        if( acquired == null ) {
+            throw new NullPointerException( "Null release!" );
+        }
+
+        shard( acquired ).release( acquired, null );
+        if( newOrder != null ) {
+            if( resolver() != null ) resolver().resolveCached( newOrder );
+            shard( newOrder ).add( newOrder );
+        }
+
+        _accessTotal.decrementAndGet();
+        signal( false );
+    }
+
+    @Override
+    String dump()
+    {
+        StringBuilder out = new StringBuilder( 4096 );
+
+        out.append( String.format(
+            "ShardedVisitQueue@%x Dump, shards %d ::\n",
+            System.identityHashCode( this ),
+            _shards.length ) );
+
+        for( VisitQueue shard : _shards ) out.append( shard.dump() );
+
+        return out.toString();
+    }
+
+    @Override
+    List<HostQueue> hosts()
+    {
+        List<HostQueue> hosts = new ArrayList<HostQueue>();
+        for( VisitQueue shard : _shards ) hosts.addAll( shard.hosts() );
+        return hosts;
+    }
+
+    private ShardedVisitQueue( VisitQueue[] shards )
+    {
+        _shards = shards;
+        _mask = shards.length - 1;
+    }
+
+    private static VisitQueue[] createShards( int shardCount )
+    {
+        int count = 1;
+        while( count < shardCount ) count <<= 1;
+
+        VisitQueue[] shards = new VisitQueue[ count ];
+        for( int i = 0; i < count; ++i ) shards[i] = new VisitQueue();
+        return shards;
+    }
+
+    /**
+     * Return ready and sleeping host counts if a listener is set,
+     * otherwise null.
+     */
+    private int[] sampleSizes()
+    {
+        if( listener() == null ) return null;
+        return new int[] { readyHostCount(), sleepHostCount() };
+    }
+
+    private void notifyWait( long start, boolean acquired, int[] sizes )
+    {
+        final VisitQueueListener listener = listener();
+        if( ( listener != null ) && ( sizes != null ) ) {
+            listener.acquireWait( System.currentTimeMillis() - start,
+                                  acquired, sizes[0], sizes[1] );
+        }
+    }
+
+    /**
+     * Poll each shard once, round-robin from a rotating start.
+     */
+    private UniMap pollShards()
+    {
+        // Unsynchronized; a racy cursor only affects fairness.
+        final int start = _cursor++;
+
+        for( int i = 0; i < _shards.length; ++i ) {
+            UniMap order = _shards[ ( start + i ) & _mask ].poll();
+            if( order != null ) return order;
+        }
+        return null;
+    }
+
+    /**
+     * Poll each shard once for up to max orders total, round-robin
+     * from a rotating start.
+     * @return number of orders added to out
+     */
+    private int pollShards( int max, Collection<UniMap> out )
+    {
+        final int start = _cursor++;
+
+        int count = 0;
+        for( int i = 0; ( i < _shards.length ) && ( count < max ); ++i ) {
+            count += _shards[ ( start + i ) & _mask ].poll( max - count, out );
+        }
+        return count;
+    }
+
+    /**
+     * Return the earliest time any shard will have a ready host, or
+     * Long.MAX_VALUE if none or if maxAccessTotal is reached.
+     */
+    private long nextReady( long now, long end )
+    {
+        long next = Long.MAX_VALUE;
+        if( _accessTotal.get() < maxAccessTotal() ) {
+            for( VisitQueue shard : _shards ) {
+                next = Math.min( next, shard.nextReady( now ) );
+                if( next <= now ) break;
+            }
+        }
+        return Math.min( next, end );
+    }
+
+    private void awaitReady( long now, long end )
+        throws InterruptedException
+    {
+        _lock.lock();
+        try {
+            // Registered as a waiter before checking, so that any
+            // concurrent add or release will signal.
+            ++_waiters;
+            try {
+                final long next = nextReady( now, end );
+                if( next <= now ) return;
+
+                final Thread current = Thread.currentThread();
+                if( ( _leader == null ) && ( next < end ) ) {
+                    _leader = current;
+                    try {
+                        _ready.await( next - now, TimeUnit.MILLISECONDS );
+                    }
+                    finally {
+                        if( _leader == current ) _leader = null;
+                    }
+                }
+                else {
+                    _ready.await( end - now, TimeUnit.MILLISECONDS );
+                }
+            }
+            finally {
+                --_waiters;
+                // Pass leadership on to another waiter.
+                if( ( _leader == null ) && ( _waiters > 0 ) ) {
+                    _ready.signal();
+                }
+            }
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Signal one or all waiting threads (if any) of a possible change
+     * in ready hosts.
+     */
+    private void signal( boolean all )
+    {
+        if( _waiters > 0 ) {
+            _lock.lock();
+            try {
+                _leader = null;
+                if( all ) _ready.signalAll();
+                else _ready.signal();
+            }
+            finally {
+                _lock.unlock();
+            }
+        }
+    }
+
+    private boolean reserveAccess()
+    {
+        return ( reserveAccess( 1 ) > 0 );
+    }
+
+    /**
+     * Reserve up to count of the remaining maxAccessTotal.
+     * @return number reserved, possibly zero
+     */
+    private int reserveAccess( int count )
+    {
+        final int max = maxAccessTotal();
+        while( true ) {
+            int current = _accessTotal.get();
+            int reserve = Math.min( count, max - current );
+            if( reserve <= 0 ) return 0;
+            if( _accessTotal.compareAndSet( current, current + reserve ) ) {
+                return reserve;
+            }
+        }
+    }
+
+    private void unreserveAccess()
+    {
+        unreserveAccess( 1 );
+    }
+
+    private void unreserveAccess( int count )
+    {
+        if( _accessTotal.getAndAdd( -count ) >= maxAccessTotal() ) {
+            signal( false );
+        }
+    }
+
+    private VisitQueue shard( UniMap order )
+    {
+        return _shards[ shardIndex( order ) ];
+    }
+
+    private VisitQueue shard( String domain )
+    {
+        return _shards[ shardIndex( domain ) ];
+    }
+
+    private int shardIndex( UniMap order )
+    {
+        return shardIndex( keyDomain( order ) );
+    }
+
+    private int shardIndex( String domain )
+    {
+        int h = domain.hashCode();
+        h ^= ( h >>> 16 );
+        return ( h & _mask );
+    }
+
+    private final VisitQueue[] _shards;
+    private final int _mask;
+    private int _cursor = 0;
+
+    private final AtomicInteger _accessTotal = new AtomicInteger( 0 );
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _ready = _lock.newCondition();
+    private volatile int _waiters = 0;
+    private Thread _leader = null;
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-1 based URL and domain hashes, URL64 encoded. Each thread reuses
+ * its own MessageDigest, UTF-8 byte buffer, digest and char output,
+ * such that a hash allocates only its resulting String. Output is
+ * identical to a SHA-1 of the UTF-8 encoded input (with '?' replacing
+ * unpaired surrogates, as Charset.encode), encoded by
+ * com.gravitext.util.URL64 and truncated.
+ */
+final class URLHasher
+{
+    /**
+     * Return the 23-character URL64 encoded hash of url.
+     */
+    static String uhash( CharSequence url )
+    {
+        return STATE.get().hash( url, 23 );
+    }
+
+    /**
+     * Return the 6-character URL64 encoded hash of domain.
+     */
+    static String domainHash( CharSequence domain )
+    {
+        return STATE.get().hash( domain, 6 );
+    }
+
+    private static final class State
+    {
+        State()
+        {
+            try {
+                _md = MessageDigest.getInstance( "SHA-1" );
+            }
+            catch( NoSuchAlgorithmException x ) {
+                throw new RuntimeException( x ); //SHA-1 should be available
+            }
+        }
+
+        String hash( CharSequence in, int chars )
+        {
+            final int length = encodeUTF8( in );
+            _md.update( _bytes, 0, length );
+            try {
+                _md.digest( _digest, 0, _digest.length );
+            }
+            catch( DigestException x ) {
+                throw new RuntimeException( x );
+            }
+            return encodeURL64( chars );
+        }
+
+        private int encodeUTF8( CharSequence in )
+        {
+            final int end = in.length();
+            if( _bytes.length < end * 3 ) _bytes = new byte[ end * 3 ];
+
+            final byte[] b = _bytes;
+            int o = 0;
+            for( int i = 0; i < end; ++i ) {
+                final char c = in.charAt( i );
+                if( c < 0x80 ) {
+                    b[ o++ ] = (byte) c;
+                }
+                else if( c < 0x800 ) {
+                    b[ o++ ] = (byte) ( 0xc0 | ( c >> 6 ) );
+                    b[ o++ ] = (byte) ( 0x80 | ( c & 0x3f ) );
+                }
+                else if( Character.isHighSurrogate( c ) &&
+                         ( i + 1 < end ) &&
+                         Character.isLowSurrogate( in.charAt( i + 1 ) ) ) {
+                    final int cp = Character.toCodePoint( c, in.charAt( ++i ) );
+                    b[ o++ ] = (byte) ( 0xf0 | ( cp >> 18 ) );
+                    b[ o++ ] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3f ) );
+                    b[ o++ ] = (byte) ( 0x80 | ( ( cp >>  6 ) & 0x3f ) );
+                    b[ o++ ] = (byte) ( 0x80 | ( cp & 0x3f ) );
+                }
+                else if( Character.isHighSurrogate( c ) ||
+                         Character.isLowSurrogate( c ) ) {
+                    b[ o++ ] = (byte) '?';
+                }
+                else {
+                    b[ o++ ] = (byte) ( 0xe0 | ( c >> 12 ) );
+                    b[ o++ ] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+                    b[ o++ ] = (byte) ( 0x80 | ( c & 0x3f ) );
+                }
+            }
+            return o;
+        }
+
+        /**
+         * URL64 encode the leading digest bits to chars characters.
+         */
+        private String encodeURL64( final int chars )
+        {
+            final byte[] d = _digest;
+            final char[] out = _chars;
+            for( int i = 0, o = 0; o < chars; i += 3 ) {
+                final int bits = ( ( d[i] & 0xff ) << 16 ) |
+                                 ( ( d[i + 1] & 0xff ) << 8 ) |
+                                   ( d[i + 2] & 0xff );
+                out[ o++ ] = URL64[ bits >>> 18 ];
+                out[ o++ ] = URL64[ ( bits >>> 12 ) & 0x3f ];
+                out[ o++ ] = URL64[ ( bits >>>  6 ) & 0x3f ];
+                out[ o++ ] = URL64[ bits & 0x3f ];
+            }
+            return new String( out, 0, chars );
+        }
+
+        private final MessageDigest _md;
+        private byte[] _bytes = new byte[ 256 ];
+        private final byte[] _digest = new byte[ 20 ];
+        private final char[] _chars = new char[ 28 ];
+    }
+
+    private static final char[] URL64 =
+        ( "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz" +
+          "0123456789-_" ).toCharArray();
+
+    private static final ThreadLocal<State> STATE =
+        new ThreadLocal<State>() {
+            @Override
+            protected State initialValue()
+            {
+                return new State();
+            }
+        };
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+/**
+ * Single pass URL normalizer for the common case: an absolute HTTP(S)
+ * URL with a plain ASCII host name, optional port, and a path and
+ * query of legal ASCII characters, without dot segments. Produces the
+ * same canonical String as {@link VisitURL#normalizeByURI(CharSequence)}
+ * without any java.net.URI parsing.
+ *
+ * Any input outside this case, including invalid URLs, IPv4/IPv6
+ * hosts, user info, non-ASCII or whitespace (other than leading or
+ * trailing) characters, yields null, for normalization via URI.
+ */
+final class URLNormalizer
+{
+    /**
+     * Return the normalized form of raw, or null if raw is not of the
+     * common case.
+     */
+    static String normalize( final CharSequence raw )
+    {
+        int i = 0;
+        int end = raw.length();
+
+        // Trim leading/trailing ASCII controls and space, as
+        // VisitURL.preEncode
+        while( ( i < end ) && ( raw.charAt( i ) <= ' ' ) ) ++i;
+        while( ( end > i ) && ( raw.charAt( end - 1 ) <= ' ' ) ) --end;
+
+        // Scheme
+        if( ( end - i < 8 ) ||
+            ( ( raw.charAt( i++ ) | 0x20 ) != 'h' ) ||
+            ( ( raw.charAt( i++ ) | 0x20 ) != 't' ) ||
+            ( ( raw.charAt( i++ ) | 0x20 ) != 't' ) ||
+            ( ( raw.charAt( i++ ) | 0x20 ) != 'p' ) ) {
+            return null;
+        }
+        final boolean https = ( ( raw.charAt( i ) | 0x20 ) == 's' );
+        if( https ) ++i;
+        if( ( end - i < 4 ) ||
+            ( raw.charAt( i++ ) != ':' ) ||
+            ( raw.charAt( i++ ) != '/' ) ||
+            ( raw.charAt( i++ ) != '/' ) ) {
+            return null;
+        }
+
+        // Output is never longer than input, plus a '/' for an
+        // empty path.
+        final char[] out = new char[ end - i + 9 ];
+        int o = 0;
+        for( char c : ( https ? HTTPS : HTTP ) ) out[ o++ ] = c;
+
+        final int hend = hostEnd( raw, i, end );
+        if( hend < 0 ) return null;
+        for( ; i < hend; ++i ) {
+            final char c = raw.charAt( i );
+            out[ o++ ] = ( c >= 'A' && c <= 'Z' ) ? (char) ( c | 0x20 ) : c;
+        }
+        char c = ( i < end ) ? raw.charAt( i ) : 0;
+
+        // Port, dropped if the scheme default
+        if( ( i < end ) && ( c == ':' ) ) {
+            final int pstart = ++i;
+            int port = 0;
+            for( ; i < end; ++i ) {
+                c = raw.charAt( i );
+                if( c < '0' || c > '9' ) break;
+                port = ( port * 10 ) + ( c - '0' );
+                if( i - pstart >= 5 ) return null;
+            }
+            if( ( i == pstart ) || ( port == 0 ) || ( port > 65535 ) ) {
+                return null;
+            }
+            if( port != ( https ? 443 : 80 ) ) {
+                out[ o++ ] = ':';
+                o = appendInt( out, o, port );
+            }
+        }
+
+        // Path, '/' if empty
+        if( ( i < end ) && ( c == '/' ) ) {
+            int segment = i + 1;
+            out[ o++ ] = c;
+            for( ++i; i < end; ++i ) {
+                c = raw.charAt( i );
+                if( ( c == '/' ) || ( c == '?' ) || ( c == '#' ) ) {
+                    if( isDotSegment( raw, segment, i ) ) return null;
+                    if( c != '/' ) break;
+                    if( i == segment ) return null; // Empty segment
+                    segment = i + 1;
+                }
+                else if( ! isLegal( raw, i, end, PATH ) ) return null;
+                out[ o++ ] = c;
+            }
+            if( ( i == end ) && isDotSegment( raw, segment, i ) ) {
+                return null;
+            }
+        }
+        else {
+            out[ o++ ] = '/';
+        }
+
+        // Query, if not empty
+        if( ( i < end ) && ( c == '?' ) ) {
+            final int qstart = o;
+            out[ o++ ] = c;
+            for( ++i; i < end; ++i ) {
+                c = raw.charAt( i );
+                if( c == '#' ) break;
+                if( ! isLegal( raw, i, end, QUERY ) ) return null;
+                out[ o++ ] = c;
+            }
+            if( o == qstart + 1 ) o = qstart;
+        }
+
+        // Fragment, validated but dropped
+        if( ( i < end ) && ( c == '#' ) ) {
+            for( ++i; i < end; ++i ) {
+                if( ! isLegal( raw, i, end, QUERY ) ) return null;
+            }
+        }
+
+        if( i < end ) return null;
+
+        return new String( out, 0, o );
+    }
+
+    /**
+     * Return the normalized form of ref resolved against base, or null
+     * if not of the common case. In addition to absolute refs, handles
+     * absolute path ("/path") and network path ("//host/path") refs,
+     * which resolve by simple concatenation with the base scheme and
+     * authority.
+     */
+    static String resolve( String base, CharSequence ref )
+    {
+        final String url = normalize( ref );
+        if( ( url != null ) || ( base == null ) ||
+            ( ref.length() == 0 ) || ( ref.charAt( 0 ) != '/' ) ) {
+            return url;
+        }
+
+        final int scheme = base.indexOf( "://" );
+        if( scheme < 0 ) return null;
+
+        int end = scheme + 1;
+        if( ( ref.length() < 2 ) || ( ref.charAt( 1 ) != '/' ) ) {
+            // Absolute path: through authority
+            for( end = scheme + 3; end < base.length(); ++end ) {
+                final char c = base.charAt( end );
+                if( ( c == '/' ) || ( c == '?' ) || ( c == '#' ) ) break;
+            }
+        }
+
+        final StringBuilder b = new StringBuilder( end + ref.length() );
+        b.append( base, 0, end ).append( ref );
+        return normalize( b );
+    }
+
+    /**
+     * Return the end index of a host name starting at i of s, or -1 if
+     * not a valid host name. Host names are labels of alphanumerics
+     * and interior '-', separated by '.', with the last label starting
+     * with a letter.
+     */
+    static int hostEnd( CharSequence s, int i, final int end )
+    {
+        int label = i;
+        for( ; i < end; ++i ) {
+            final char c = s.charAt( i );
+            if( ( c >= 'a' && c <= 'z' ) || ( c >= '0' && c <= '9' ) ||
+                ( c >= 'A' && c <= 'Z' ) ) {
+                continue;
+            }
+            if( c == '-' ) {
+                if( i == label ) return -1;
+            }
+            else if( c == '.' ) {
+                if( ( i == label ) || ( s.charAt( i - 1 ) == '-' ) ) {
+                    return -1;
+                }
+                label = i + 1;
+            }
+            else break;
+        }
+        if( ( i == label ) || ( s.charAt( i - 1 ) == '-' ) ) return -1;
+
+        final char top = s.charAt( label );
+        if( !( ( top >= 'a' && top <= 'z' ) ||
+               ( top >= 'A' && top <= 'Z' ) ) ) {
+            return -1;
+        }
+        return i;
+    }
+
+    /**
+     * Return the host of an already normalized url, or null if it
+     * can't be simply determined without URI parsing: an authority of
+     * host name and optional port only.
+     */
+    static String host( String url )
+    {
+        final int start = url.indexOf( "://" ) + 3;
+        if( start < 3 ) return null;
+
+        final int end = url.length();
+        final int hend = hostEnd( url, start, end );
+        if( hend < 0 ) return null;
+
+        int i = hend;
+        if( ( i < end ) && ( url.charAt( i ) == ':' ) ) {
+            while( ( ++i < end ) &&
+                   ( url.charAt( i ) >= '0' ) && ( url.charAt( i ) <= '9' ) );
+        }
+        if( ( i < end ) && ( url.charAt( i ) != '/' ) &&
+            ( url.charAt( i ) != '?' ) && ( url.charAt( i ) != '#' ) ) {
+            return null;
+        }
+        return url.substring( start, hend );
+    }
+
+    /**
+     * Return true if the char at i of raw is legal in the given table,
+     * or is '%' followed by two hex digits.
+     */
+    private static boolean isLegal( CharSequence raw, int i, int end,
+                                    boolean[] table )
+    {
+        final char c = raw.charAt( i );
+        if( c < 128 && table[c] ) return true;
+        return ( ( c == '%' ) && ( i + 2 < end ) &&
+                 isHex( raw.charAt( i + 1 ) ) &&
+                 isHex( raw.charAt( i + 2 ) ) );
+    }
+
+    private static boolean isHex( char c )
+    {
+        return ( ( c >= '0' && c <= '9' ) ||
+                 ( c >= 'a' && c <= 'f' ) ||
+                 ( c >= 'A' && c <= 'F' ) );
+    }
+
+    private static boolean isDotSegment( CharSequence raw, int s, int e )
+    {
+        return ( ( ( e - s == 1 ) && ( raw.charAt( s ) == '.' ) ) ||
+                 ( ( e - s == 2 ) && ( raw.charAt( s ) == '.' ) &&
+                                     ( raw.charAt( s + 1 ) == '.' ) ) );
+    }
+
+    private static int appendInt( char[] out, int o, int value )
+    {
+        final int start = o;
+        do {
+            out[ o++ ] = (char) ( '0' + ( value % 10 ) );
+            value /= 10;
+        } while( value > 0 );
+
+        for( int l = start, r = o - 1; l < r; ++l, --r ) {
+            final char t = out[ l ];
+            out[ l ] = out[ r ];
+            out[ r ] = t;
+        }
+        return o;
+    }
+
+    private static boolean[] legal( String chars )
+    {
+        final boolean[] table = new boolean[ 128 ];
+        for( char c = 'a'; c <= 'z'; ++c ) table[ c ] = true;
+        for( char c = 'A'; c <= 'Z'; ++c ) table[ c ] = true;
+        for( char c = '0'; c <= '9'; ++c ) table[ c ] = true;
+        for( char c : chars.toCharArray() ) table[ c ] = true;
+        return table;
+    }
+
+    private static final char[] HTTP  = "http://".toCharArray();
+    private static final char[] HTTPS = "https://".toCharArray();
+
+    /**
+     * Unreserved and path reserved characters, excluding the '/'
+     * separator and '%' escapes, handled separately.
+     */
+    private static final boolean[] PATH  = legal( "-_.!~*'():@&=+$,;" );
+
+    /**
+     * Unreserved and reserved characters, excluding '[' and ']', as
+     * are legal in a query or fragment.
+     */
+    private static final boolean[] QUERY = legal( "-_.!~*'():@&=+$,;/?" );
+}
@@ -17,7 +17,19 @@
 package iudex.core;
 
 import iudex.filter.FilterContainer;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -33,6 +45,39 @@ import com.gravitext.util.Closeable;
 public class VisitManager
     implements Closeable, Runnable, VisitCounter
 {
+    /**
+     * Modes of dispatching acquired orders for visiting.
+     */
+    public enum Dispatch
+    {
+        /**
+         * The manager thread acquires each order from the VisitQueue
+         * and submits a visit task for it to the executor. This is the
+         * default.
+         */
+        EXECUTOR,
+
+        /**
+         * A fixed pool of maxThreads worker threads acquire orders
+         * directly from the VisitQueue, each blocking until signaled of
+         * a ready host, and visiting on the same thread. The manager
+         * thread only polls for work. The executor remains available
+         * for use by HTTP clients and filters.
+         */
+        WORKERS,
+
+        /**
+         * The manager thread acquires each order from the VisitQueue and
+         * visits it on a new virtual thread, where supported by the JVM
+         * (Java 21+), or otherwise on a thread from an unbounded cached
+         * pool. The number of concurrent visits is limited by
+         * maxConcurrentVisits, such that blocking (JDBC, BARC) filters
+         * do not occupy the fixed executor threads. The executor remains
+         * available for use by HTTP clients and filters.
+         */
+        VIRTUAL
+    }
+
     public VisitManager( WorkPollStrategy poller )
     {
         this( null, poller );
@@ -49,6 +94,50 @@ public class VisitManager
         _maxThreads = maxThreads;
     }
 
+    /**
+     * Set the dispatch mode (default: EXECUTOR). Must be set before
+     * start().
+     */
+    public void setDispatch( Dispatch dispatch )
+    {
+        _dispatch = dispatch;
+    }
+
+    public Dispatch dispatch()
+    {
+        return _dispatch;
+    }
+
+    /**
+     * Set the maximum number of orders acquired from the VisitQueue at
+     * once by the manager thread in EXECUTOR or VIRTUAL dispatch modes
+     * (default: 32).
+     * @see VisitQueue#acquire(int, long, java.util.Collection)
+     */
+    public void setMaxDispatchBatch( int maxDispatchBatch )
+    {
+        _maxDispatchBatch = maxDispatchBatch;
+    }
+
+    public int maxDispatchBatch()
+    {
+        return _maxDispatchBatch;
+    }
+
+    /**
+     * Set the maximum number of concurrently running visits in VIRTUAL
+     * dispatch mode (default: 1000). Must be set before start().
+     */
+    public void setMaxConcurrentVisits( int maxConcurrentVisits )
+    {
+        _maxConcurrentVisits = maxConcurrentVisits;
+    }
+
+    public int maxConcurrentVisits()
+    {
+        return _maxConcurrentVisits;
+    }
+
     public void setMaxShutdownWait( long maxShutdownWait )
     {
         _maxShutdownWait = maxShutdownWait;
@@ -59,6 +148,29 @@ public class VisitManager
         _doWaitOnGeneration = doWaitOnGeneration;
     }
 
+    /**
+     * If true, when the WorkPollStrategy requests a replacement queue,
+     * fill the next generation VisitQueue on a background thread while
+     * continuing to visit from the current queue, then swap it in
+     * without awaiting completion of visits in progress. Orders
+     * acquired from a replaced queue are released against it, and it
+     * is discarded once all are released or after maxShutdownWait
+     * (default: false, await each generation per doWaitOnGeneration).
+     *
+     * Note that work polled while the prior generation is still being
+     * visited may include orders in progress, unless the work poller
+     * excludes them, for example by reservation.
+     */
+    public void setContinuousRefill( boolean continuousRefill )
+    {
+        _continuousRefill = continuousRefill;
+    }
+
+    public boolean continuousRefill()
+    {
+        return _continuousRefill;
+    }
+
     public void setMaxGenerationsToShutdown( int generations )
     {
         _maxGenerationsToShutdown = generations;
@@ -100,6 +212,20 @@ public class VisitManager
         }
 
         _shutdown = false;
+        _running = true;
+
+        if( _dispatch == Dispatch.VIRTUAL ) {
+            _visitExecutor = createPerTaskExecutor();
+            _visitPermits = new Semaphore( _maxConcurrentVisits );
+        }
+
+        if( _dispatch == Dispatch.WORKERS ) {
+            _workers = new Thread[ _maxThreads ];
+            for( int i = 0; i < _workers.length; ++i ) {
+                _workers[i] = new Thread( new VisitWorker(), "visitor-" + i );
+                _workers[i].start();
+            }
+        }
 
         _manager.start();
     }
@@ -147,11 +273,57 @@ public class VisitManager
         _visitQ.add( order );
     }
 
+    /**
+     * {@inheritDoc}
+     * The acquired order is released against the VisitQueue it was
+     * acquired from, which may be a replaced, prior generation. In
+     * that case any newOrder is added to the current queue. A late
+     * release to a prior generation already discarded after
+     * maxShutdownWait is dropped. Releases without any current queue
+     * (i.e. racing startup or shutdown) are also dropped.
+     */
     @Override
     public void release( UniMap acquired, UniMap newOrder )
     {
-        //FIXME: Risk of null, or need for synchronization?
-        _visitQ.release( acquired, newOrder );
+        final VisitQueue current = _visitQ;
+        final VisitQueue origin =
+            _continuousRefill ? _origins.remove( acquired ) : null;
+
+        if( ( origin == null ) || ( origin == current ) ) {
+            if( current != null ) {
+                current.release( acquired, newOrder );
+            }
+            else {
+                _log.warn( "Dropping release without a visit queue: {}",
+                           acquired.get( ContentKeys.URL ) );
+            }
+            return;
+        }
+
+        VisitQueue target = current;
+        if( checkDiscarded( origin ) ) {
+            _log.warn( "Dropping late release to discarded queue: {}",
+                       acquired.get( ContentKeys.URL ) );
+        }
+        else {
+            origin.release( acquired, null );
+            if( target == null ) target = origin;
+        }
+
+        if( ( newOrder != null ) && ( target != null ) ) {
+            target.add( newOrder );
+        }
+    }
+
+    /**
+     * Return true if origin was discarded with orders unreleased,
+     * forgetting it once the last of these is released.
+     */
+    private boolean checkDiscarded( VisitQueue origin )
+    {
+        if( ! _discarded.contains( origin ) ) return false;
+        if( ! _origins.containsValue( origin ) ) _discarded.remove( origin );
+        return true;
     }
 
     @Override
@@ -178,16 +350,11 @@ public class VisitManager
                     return;
                 }
 
-                UniMap order = _visitQ.acquire( 50 );
-                if( _running && ( order != null ) ) {
-                    now = order.get( ContentKeys.VISIT_START ).getTime();
-                    _executor.execute( new VisitTask( order ) );
-                    _log.debug( "Queued order for rldomain {}, depth: {}",
-                                order.get( ContentKeys.URL ).domain(),
-                                _executor.getQueue().size() );
+                if( _dispatch == Dispatch.WORKERS ) {
+                    now = awaitNextCheckWorkPoll();
                 }
                 else {
-                    now = System.currentTimeMillis();
+                    now = dispatchOrders();
                 }
             }
             cleanupOnManagerExit();
@@ -202,6 +369,74 @@ public class VisitManager
         }
     }
 
+    /**
+     * Acquire a batch of available orders and execute a VisitTask for
+     * each.
+     * @return current time in milliseconds
+     */
+    private long dispatchOrders() throws InterruptedException
+    {
+        int max = _maxDispatchBatch;
+
+        if( _visitPermits != null ) {
+            if( ! _visitPermits.tryAcquire( 50, TimeUnit.MILLISECONDS ) ) {
+                return System.currentTimeMillis();
+            }
+            int extra = Math.min( max - 1,
+                                  _visitPermits.availablePermits() );
+            if( ( extra > 0 ) && ! _visitPermits.tryAcquire( extra ) ) {
+                extra = 0;
+            }
+            max = extra + 1;
+        }
+
+        final VisitQueue vq = _visitQ;
+        _batch.clear();
+        int count = vq.acquire( max, 50, _batch );
+
+        if( ( _visitPermits != null ) && ( count < max ) ) {
+            _visitPermits.release( max - count );
+        }
+
+        long now;
+        if( _running && ( count > 0 ) ) {
+            now = _batch.get( 0 ).get( ContentKeys.VISIT_START ).getTime();
+            for( UniMap order : _batch ) {
+                if( _continuousRefill ) _origins.put( order, vq );
+                if( _visitExecutor != null ) {
+                    _visitExecutor.execute( new VisitTask( order ) );
+                    _log.debug( "Started visit for rldomain {}",
+                                order.get( ContentKeys.URL ).domain() );
+                }
+                else {
+                    _executor.execute( new VisitTask( order ) );
+                    _log.debug( "Queued order for rldomain {}, depth: {}",
+                                order.get( ContentKeys.URL ).domain(),
+                                _executor.getQueue().size() );
+                }
+            }
+        }
+        else {
+            if( _visitPermits != null ) _visitPermits.release( count );
+            now = System.currentTimeMillis();
+        }
+        _batch.clear();
+
+        return now;
+    }
+
+    /**
+     * Wait until the next check for work polling is due, or notified.
+     * @return current time in milliseconds
+     */
+    private synchronized long awaitNextCheckWorkPoll()
+        throws InterruptedException
+    {
+        long delay = _nextCheckWorkPoll - System.currentTimeMillis();
+        if( _running && ( delay > 0 ) ) wait( delay );
+        return System.currentTimeMillis();
+    }
+
     /**
      * Check if work needs to be polled by delegating to the
      * WorkPollStrategy. If strategy returns a new VisitQueue, then await
@@ -213,10 +448,18 @@ public class VisitManager
         long delta = 0;
         boolean doShutdown = false;
 
-        if( _shutdown || now < _nextCheckWorkPoll ) {
+        if( _shutdown ) return doShutdown;
+
+        if( ! _retired.isEmpty() ) checkRetired( now );
+
+        if( _refill != null ) {
+            if( _refill.isDone() ) swapRefill();
+            else _nextCheckWorkPoll = now + _maxWorkerWait;
             return doShutdown;
         }
 
+        if( now < _nextCheckWorkPoll ) return doShutdown;
+
         if( _visitQ != null ) {
             delta = _poller.nextPollWork( _visitQ, now - _lastPollTime );
         }
@@ -225,19 +468,36 @@ public class VisitManager
 
             if( ( _visitQ == null ) || _poller.shouldReplaceQueue( _visitQ ) ) {
 
+                if( _continuousRefill && ( _visitQ != null ) &&
+                    ! lastGeneration() ) {
+                    startRefill();
+                    _nextCheckWorkPoll = now + _maxWorkerWait;
+                    return doShutdown;
+                }
+
                 if( ( _visitQ != null ) ) {
-                    if( _doWaitOnGeneration ) awaitExecutorEmpty();
-                    _poller.discard( _visitQ );
+                    _dispatchQ = null;
+                    if( _doWaitOnGeneration ) {
+                        if( _dispatch == Dispatch.EXECUTOR ) {
+                            awaitExecutorEmpty();
+                        }
+                        else {
+                            awaitReleased( _visitQ );
+                        }
+                    }
+                    discard( _visitQ );
                     _visitQ = null;
                 }
 
-                if( ( _maxGenerationsToShutdown > 0 ) &&
-                    ( _generation >= _maxGenerationsToShutdown ) ) {
+                if( lastGeneration() ) {
                     doShutdown = true;
                 }
                 else {
                     ++_generation;
                     _visitQ = _poller.pollWork( null );
+                    _dispatchQ = _visitQ;
+                    notifyGeneration( _visitQ );
+                    notifyAll();
                 }
             }
             else {
@@ -254,6 +514,163 @@ public class VisitManager
         return doShutdown;
     }
 
+    /**
+     * Notify any listener of vq that it is now the live generation.
+     */
+    private void notifyGeneration( VisitQueue vq )
+    {
+        final VisitQueueListener listener =
+            ( vq != null ) ? vq.listener() : null;
+        if( listener != null ) listener.generation( vq );
+    }
+
+    /**
+     * Discard vq via the WorkPollStrategy, then close it.
+     */
+    private void discard( VisitQueue vq )
+    {
+        _poller.discard( vq );
+        vq.close();
+    }
+
+    private boolean lastGeneration()
+    {
+        return ( ( _maxGenerationsToShutdown > 0 ) &&
+                 ( _generation >= _maxGenerationsToShutdown ) );
+    }
+
+    /**
+     * Start filling the next generation VisitQueue on a background
+     * thread.
+     */
+    private void startRefill()
+    {
+        _refill = new Refill();
+        Thread thread = new Thread( _refill, "refill" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    /**
+     * Swap in the completed refill queue as the next generation, and
+     * retire the current queue. On failure, the current queue is kept
+     * and another refill is attempted after REFILL_RETRY_DELAY.
+     */
+    private void swapRefill()
+    {
+        final VisitQueue next = _refill.result();
+        _refill = null;
+
+        long now = System.currentTimeMillis();
+
+        if( next != null ) {
+            final VisitQueue prior = _visitQ;
+            ++_generation;
+            _visitQ = next;
+            _dispatchQ = next;
+            notifyGeneration( next );
+            _retired.add( new Retired( prior, now ) );
+            notifyAll();
+
+            _log.info( "Swapped in generation {}; retired queue has {} " +
+                       "acquired, {} unvisited orders",
+                       _generation, prior.acquiredCount(),
+                       prior.orderCount() - prior.acquiredCount() );
+            _lastPollTime = now;
+            _nextCheckWorkPoll = now + _poller.nextPollWork( _visitQ, 0 );
+        }
+        else {
+            _nextCheckWorkPoll = now + REFILL_RETRY_DELAY;
+        }
+    }
+
+    /**
+     * Discard any retired queues with no remaining acquired orders, or
+     * which have been retired for longer than maxShutdownWait.
+     */
+    private void checkRetired( long now )
+    {
+        Iterator<Retired> iter = _retired.iterator();
+        while( iter.hasNext() ) {
+            Retired r = iter.next();
+            final int acquired = r.queue.acquiredCount();
+            if( ( acquired == 0 ) ||
+                ( now - r.since >= _maxShutdownWait ) ) {
+                if( acquired > 0 ) {
+                    _log.warn( "{} acquired orders not released after {}ms",
+                               acquired, _maxShutdownWait );
+                }
+                discard( r.queue );
+                if( acquired > 0 ) {
+                    // Keep origins of unreleased orders, to drop any
+                    // late release
+                    _discarded.add( r.queue );
+                }
+                else {
+                    _origins.values().removeAll(
+                        Collections.singleton( r.queue ) );
+                }
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Fills the next generation VisitQueue via the WorkPollStrategy.
+     */
+    private final class Refill implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            VisitQueue next = null;
+            try {
+                next = _poller.pollWork( null );
+            }
+            catch( RuntimeException x ) {
+                _log.error( "On refill work poll: ", x );
+            }
+
+            synchronized( VisitManager.this ) {
+                if( _refill == this ) {
+                    _result = next;
+                    _done = true;
+                    _nextCheckWorkPoll = 0;
+                    VisitManager.this.notifyAll();
+                }
+                else if( next != null ) {
+                    // Abandoned on shutdown
+                    discard( next );
+                }
+            }
+        }
+
+        boolean isDone()
+        {
+            return _done;
+        }
+
+        VisitQueue result()
+        {
+            return _result;
+        }
+
+        private VisitQueue _result = null;
+        private boolean _done = false;
+    }
+
+    private static final class Retired
+    {
+        Retired( VisitQueue queue, long since )
+        {
+            this.queue = queue;
+            this.since = since;
+        }
+
+        final VisitQueue queue;
+        final long since;
+    }
+
     private class VisitTask implements Runnable
     {
         public VisitTask( UniMap order )
@@ -265,18 +682,118 @@ public class VisitManager
         public void run()
         {
             try {
-                _chain.filter( _order );
+                visit( _order );
             }
-            catch( RuntimeException x ) {
-                _log.error( "While processing: ", x );
-                //FIXME: Add this as executor thread error handler? InterOp
-                //with http clients?
+            finally {
+                if( _visitPermits != null ) _visitPermits.release();
             }
         }
 
         private final UniMap _order;
     }
 
+    private class VisitWorker implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try {
+                while( _running ) {
+                    VisitQueue vq = awaitDispatchQueue();
+                    if( vq == null ) continue;
+
+                    UniMap order = vq.acquire( _maxWorkerWait );
+                    if( order == null ) continue;
+
+                    if( vq != _dispatchQ ) {
+                        // Queue replaced or shutdown while acquiring:
+                        // Return the order unvisited.
+                        vq.release( order, order );
+                        continue;
+                    }
+
+                    if( _continuousRefill ) _origins.put( order, vq );
+                    visit( order );
+                }
+            }
+            catch( InterruptedException x ) {
+                _log.warn( "Worker run loop: " + x );
+            }
+        }
+    }
+
+    private void visit( UniMap order )
+    {
+        try {
+            _chain.filter( order );
+        }
+        catch( RuntimeException x ) {
+            _log.error( "While processing: ", x );
+            //FIXME: Add this as executor thread error handler? InterOp
+            //with http clients?
+        }
+    }
+
+    /**
+     * Return a new virtual thread per task executor via reflection, if
+     * supported by the running JVM, or a cached thread pool otherwise.
+     */
+    private ExecutorService createPerTaskExecutor()
+    {
+        try {
+            Method create = Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor" );
+            ExecutorService exec = (ExecutorService) create.invoke( null );
+            _log.info( "Using virtual thread per visit executor" );
+            return exec;
+        }
+        catch( NoSuchMethodException x ) {
+            _log.info( "Virtual threads not supported, " +
+                       "using cached thread pool for visits" );
+        }
+        catch( Exception x ) {
+            _log.warn( "Virtual thread executor not available: " + x );
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Return the current VisitQueue for dispatch, waiting up to
+     * maxWorkerWait if there is none.
+     */
+    private VisitQueue awaitDispatchQueue() throws InterruptedException
+    {
+        VisitQueue vq = _dispatchQ;
+        if( vq == null ) {
+            synchronized( this ) {
+                if( _running && ( _dispatchQ == null ) ) {
+                    wait( _maxWorkerWait );
+                }
+                vq = _dispatchQ;
+            }
+        }
+        return vq;
+    }
+
+    /**
+     * Wait up to maxShutdownWait for all orders acquired from vq to be
+     * released.
+     */
+    private synchronized void awaitReleased( VisitQueue vq )
+        throws InterruptedException
+    {
+        long now = System.currentTimeMillis();
+        long end = now + _maxShutdownWait;
+        while( ( vq.acquiredCount() > 0 ) && ( now < end ) ) {
+            wait( Math.min( 50, end - now ) );
+            now = System.currentTimeMillis();
+        }
+        if( vq.acquiredCount() > 0 ) {
+            _log.warn( "{} acquired orders not released after {}ms",
+                       vq.acquiredCount(), _maxShutdownWait );
+        }
+    }
+
     private synchronized void awaitExecutorEmpty() throws InterruptedException
     {
         // FIXME:
@@ -339,6 +856,35 @@ public class VisitManager
             }
         }
 
+        Thread[] workers = null;
+        synchronized( this ) {
+            workers = _workers;
+            _workers = null;
+        }
+
+        if( workers != null ) {
+            _log.debug( "Awaiting worker exit" );
+            for( Thread worker : workers ) {
+                worker.join( _maxShutdownWait );
+                if( worker.isAlive() ) {
+                    _log.warn( "Worker {} not exiting: interrupt",
+                               worker.getName() );
+                    worker.interrupt();
+                }
+            }
+        }
+
+        if( _visitExecutor != null ) {
+            _log.debug( "Shutdown and await visit executor" );
+            _visitExecutor.shutdown();
+            if( ! _visitExecutor.awaitTermination( _maxShutdownWait,
+                                                   TimeUnit.MILLISECONDS ) ) {
+                _log.warn( "Visit executor did not shutdown cleanly" );
+            }
+            _visitExecutor = null;
+            _visitPermits = null;
+        }
+
         _log.debug( "Shutdown and await executor" );
         _executor.shutdown();
         if( _executor.awaitTermination( _maxShutdownWait,
@@ -353,9 +899,23 @@ public class VisitManager
     private synchronized void cleanupOnManagerExit()
         throws InterruptedException
     {
+        if( _refill != null ) {
+            // If not yet done, Refill will discard on completion
+            if( _refill.isDone() && ( _refill.result() != null ) ) {
+                discard( _refill.result() );
+            }
+            _refill = null;
+        }
+
+        for( Retired r : _retired ) discard( r.queue );
+        _retired.clear();
+        _origins.clear();
+        _discarded.clear();
+
         if( _visitQ != null ) {
+            _dispatchQ = null;
             _log.debug( "Visit Queue discard" );
-            _poller.discard( _visitQ );
+            discard( _visitQ );
 
             if( _log.isDebugEnabled() ) {
                 _log.debug( _visitQ.dump() );
@@ -389,25 +949,64 @@ public class VisitManager
     private FilterContainer _chain;
     private final WorkPollStrategy _poller;
     private ThreadPoolExecutor _executor = null;
+    private ExecutorService _visitExecutor = null;
+    private volatile Semaphore _visitPermits = null;
 
     private long _nextCheckWorkPoll = 0;
 
     private int  _maxThreads              = 10;
     private long _maxShutdownWait         = 19 * 1000; //19s
     private boolean _doWaitOnGeneration   = true;
+    private boolean _continuousRefill     = false;
     private boolean _doShutdownHook       = true;
     private int   _maxExecQueueCapacity   = Integer.MAX_VALUE;
     private int   _maxGenerationsToShutdown = 0;
+    private Dispatch _dispatch            = Dispatch.EXECUTOR;
+    private long  _maxWorkerWait          = 500; //ms
+    private int   _maxConcurrentVisits    = 1000;
+    private int   _maxDispatchBatch       = 32;
 
     private Thread _manager               = null;
+    private Thread[] _workers             = null;
     private ShutdownHook _shutdownHook    = null;
     private volatile boolean _running     = false;
     private volatile boolean _shutdown    = true;
 
+    private final List<UniMap> _batch     = new ArrayList<UniMap>();
+
+    private Refill _refill                = null;
+    private final List<Retired> _retired  = new ArrayList<Retired>( 2 );
+
     private long _lastPollTime            = 0;
     private int _generation               = 0;
 
-    private VisitQueue _visitQ            = null;
+    /**
+     * The current VisitQueue, read without lock on release.
+     */
+    private volatile VisitQueue _visitQ   = null;
+
+    /**
+     * The VisitQueue from which workers acquire orders, or null when
+     * unavailable or being replaced.
+     */
+    private volatile VisitQueue _dispatchQ = null;
+
+    /**
+     * The VisitQueue each dispatched order was acquired from, by order
+     * identity, with continuous refill. Kept apart from the order,
+     * which may be concurrently in use by filters on release.
+     */
+    private final Map<UniMap,VisitQueue> _origins =
+        Collections.synchronizedMap( new IdentityHashMap<UniMap,VisitQueue>() );
+
+    /**
+     * Retired queues discarded with acquired orders not yet released.
+     */
+    private final Set<VisitQueue> _discarded =
+        Collections.synchronizedSet( Collections.newSetFromMap(
+            new IdentityHashMap<VisitQueue,Boolean>() ) );
+
+    private static final long REFILL_RETRY_DELAY = 5 * 1000; //5s
 
     private Logger _log = LoggerFactory.getLogger( getClass() );
 }
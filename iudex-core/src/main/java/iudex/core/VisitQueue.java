@@ -15,7 +15,9 @@
  */
 package iudex.core;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,11 +27,109 @@ import com.gravitext.htmap.UniMap;
 /**
  * A prioritized queue of ready and sleeping HostQueues. The ready
  * hosts queue is prioritized by the top priority order in each ready
- * host. The sleeping hosts queue is prioritized by least next visit
- * time.
+ * host, or by weighted fair share, per {@link Schedule}. The sleeping
+ * hosts are scheduled by next visit time in a timing wheel.
  */
 public class VisitQueue implements VisitCounter
 {
+    /**
+     * Policies for ordering ready hosts.
+     */
+    public enum Schedule
+    {
+        /**
+         * Take the ready host with the highest priority top order.
+         * Sleeping hosts are only made ready once no ready hosts
+         * remain. This is the default.
+         */
+        PRIORITY,
+
+        /**
+         * Weighted fair scheduling across hosts, by start-time fair
+         * queuing: take the ready host which has received the least
+         * weighted service, with ties broken by top order priority.
+         * Each take advances the host's virtual time by the inverse of
+         * the host weight times the type weight of the order taken.
+         * Hosts becoming ready start no earlier than the virtual time
+         * of the last take, so idle hosts accrue no credit. Sleeping
+         * hosts are made ready on each take, as soon as their next
+         * visit time has passed.
+         * @see VisitQueue#setHostWeight(String, String, float)
+         * @see VisitQueue#setTypeWeight(String, float)
+         */
+        FAIR
+    }
+
+    /**
+     * Modes of keying HostQueues, and thus politeness, within a
+     * registration level domain.
+     * @see VisitQueue#configureKeying(String, Keying, int)
+     */
+    public enum Keying
+    {
+        /**
+         * A single HostQueue for the registration level domain. This
+         * is the default.
+         */
+        DOMAIN,
+
+        /**
+         * A HostQueue per full host name.
+         */
+        HOST,
+
+        /**
+         * A HostQueue per resolved IP address, as given by the order
+         * ContentKeys.ADDRESS, or per full host name where not given.
+         */
+        ADDRESS
+    }
+
+    /**
+     * A Keying and maximum number of sub-queues for a domain.
+     */
+    static final class KeyingConfig
+    {
+        KeyingConfig( Keying keying, int maxSubQueues )
+        {
+            _keying = keying;
+            _maxSubQueues = maxSubQueues;
+        }
+
+        Keying keying()
+        {
+            return _keying;
+        }
+
+        int maxSubQueues()
+        {
+            return _maxSubQueues;
+        }
+
+        /**
+         * Return the sub-key name of bucket i of domain, created once.
+         */
+        String bucket( String domain, int i )
+        {
+            String[] buckets = _buckets;
+            if( buckets == null ) {
+                _buckets = buckets = new String[ _maxSubQueues ];
+            }
+            String name = buckets[i];
+            if( name == null ) buckets[i] = name = domain + '#' + i;
+            return name;
+        }
+
+        private final Keying _keying;
+        private final int _maxSubQueues;
+
+        /**
+         * Lazily created bucket names. Racy use across clones is
+         * benign, as names are immutable and equal.
+         */
+        private String[] _buckets = null;
+    }
+
     public int defaultMinHostDelay()
     {
         return _defaultMinHostDelay;
@@ -60,6 +160,204 @@ public class VisitQueue implements VisitCounter
         _maxAccessTotal = maxAccessTotal;
     }
 
+    public AdaptiveHostDelay adaptiveDelay()
+    {
+        return _adaptiveDelay;
+    }
+
+    /**
+     * Set an AdaptiveHostDelay to adapt each host's delay and maximum
+     * access count on release, from the response time and status of
+     * the released order (default: null, not adaptive).
+     */
+    public void setAdaptiveDelay( AdaptiveHostDelay adaptiveDelay )
+    {
+        _adaptiveDelay = adaptiveDelay;
+    }
+
+    /**
+     * Set a listener to receive scheduling events, or null for none
+     * (default). The listener is shared with clones.
+     * @see VisitQueueMetrics
+     */
+    public void setListener( VisitQueueListener listener )
+    {
+        _listener = listener;
+    }
+
+    public VisitQueueListener listener()
+    {
+        return _listener;
+    }
+
+    /**
+     * Set the policy for ordering ready hosts (default:
+     * Schedule.PRIORITY).
+     * @throws IllegalStateException if this VisitQueue has orders
+     * already.
+     */
+    public synchronized void setSchedule( Schedule schedule )
+    {
+        if( _orderCount > 0 ) {
+            throw new IllegalStateException(
+                "VisitQueue schedule can't be set with orders" );
+        }
+        _schedule = schedule;
+        _readyHosts = createReadyHosts( schedule );
+    }
+
+    public Schedule schedule()
+    {
+        return _schedule;
+    }
+
+    /**
+     * Set the relative share of takes for host and type with
+     * Schedule.FAIR (default: 1.0). As with configureHost, a non-null
+     * type separates orders of that type into their own HostQueue.
+     * @throws IllegalArgumentException if weight is not positive
+     */
+    public synchronized void setHostWeight( String host,
+                                            String type,
+                                            float weight )
+    {
+        checkWeight( weight );
+        _hostWeights.put( configKey( host, type ), weight );
+    }
+
+    public void setHostWeight( String host, float weight )
+    {
+        setHostWeight( host, null, weight );
+    }
+
+    /**
+     * Set the relative share of takes for orders of the given TYPE,
+     * with Schedule.FAIR (default: 1.0). This is a multiple of any
+     * host weight.
+     * @throws IllegalArgumentException if weight is not positive
+     */
+    public synchronized void setTypeWeight( String type, float weight )
+    {
+        checkWeight( weight );
+        _typeWeights.put( type, weight );
+    }
+
+    /**
+     * Return the configured weight of a host key, or 1.0 if not set.
+     */
+    synchronized float hostWeight( DomainKey key )
+    {
+        Float weight = _hostWeights.get( key );
+        if( ( weight == null ) && ( key.subKey() != null ) ) {
+            weight = _hostWeights.get( new DomainKey( key.domain(),
+                                                      key.type() ) );
+        }
+        return ( weight != null ) ? weight : 1.0f;
+    }
+
+    synchronized Map<DomainKey,Float> hostWeights()
+    {
+        return new HashMap<DomainKey,Float>( _hostWeights );
+    }
+
+    synchronized Map<String,Float> typeWeights()
+    {
+        return new HashMap<String,Float>( _typeWeights );
+    }
+
+    /**
+     * Set whether to hold queued orders in compact form, in primitive
+     * arrays per host, materializing a new UniMap on acquire
+     * (default: false). Only orders with no keys other than URL,
+     * PRIORITY, TYPE, NEXT_VISIT_AFTER, LAST_VISIT and ETAG are
+     * compacted, covering the default work poller keys. Orders with
+     * other keys are held as UniMap, without benefit.
+     * @see CompactOrderHeap
+     */
+    public void setCompactOrders( boolean compactOrders )
+    {
+        _compactOrders = compactOrders;
+    }
+
+    public boolean compactOrders()
+    {
+        return _compactOrders;
+    }
+
+    /**
+     * Enable spilling of orders to disk, beyond maxResidentPerHost
+     * orders held in memory for each host, in a new unique
+     * subdirectory of directory. The spill files are deleted once
+     * drained or on close(). A null directory disables spilling
+     * (default). Only orders with no keys other than those of codec
+     * (by default, the OrderCodec default keys) are spilled; any
+     * others are kept in memory.
+     * @see OrderSpill
+     */
+    public void setSpill( File directory, OrderCodec codec )
+    {
+        _spillDirectory = directory;
+        _spillCodec = codec;
+    }
+
+    public File spillDirectory()
+    {
+        return _spillDirectory;
+    }
+
+    public OrderCodec spillCodec()
+    {
+        return _spillCodec;
+    }
+
+    /**
+     * Set the maximum orders to hold in memory per host when spill is
+     * enabled (default: 256).
+     */
+    public void setMaxResidentPerHost( int maxResidentPerHost )
+    {
+        _maxResidentPerHost = maxResidentPerHost;
+    }
+
+    public int maxResidentPerHost()
+    {
+        return _maxResidentPerHost;
+    }
+
+    /**
+     * Set the size in bytes of each spill segment file
+     * (default: 64MiB).
+     */
+    public void setSpillSegmentSize( int spillSegmentSize )
+    {
+        _spillSegmentSize = spillSegmentSize;
+    }
+
+    public int spillSegmentSize()
+    {
+        return _spillSegmentSize;
+    }
+
+    /**
+     * Return the number of orders currently spilled to disk.
+     */
+    public synchronized int spilledCount()
+    {
+        return ( _spill != null ) ? _spill.liveCount() : 0;
+    }
+
+    /**
+     * Release any resources held by this queue, deleting any spill
+     * files. Any remaining orders should first be discarded.
+     */
+    public synchronized void close()
+    {
+        if( _spill != null ) {
+            _spill.close();
+            _spill = null;
+        }
+    }
+
     public synchronized void configureHost( String host,
                                             int minHostDelay,
                                             int maxAccessCount )
@@ -81,7 +379,77 @@ public class VisitQueue implements VisitCounter
                 " already configured." );
         }
 
-        _hosts.put( key, new HostQueue( key, minHostDelay, maxAccessCount ) );
+        hq = new HostQueue( key, minHostDelay, maxAccessCount );
+        _hosts.put( key, hq );
+        _index.put( hq );
+    }
+
+    /**
+     * Configure HostQueue keying below the registration level domain
+     * of host, to allow parallel access to the distinct hosts or IP
+     * addresses of large multi-tenant domains. Each sub-queue has the
+     * delay and maximum access count of the domain, as configured via
+     * configureHost or by default. Orders of a type configured via
+     * configureHost( host, type, ... ) remain keyed by domain and
+     * type.
+     * @param maxSubQueues if positive, the sub-keys are hashed to at
+     * most this many HostQueues, bounding concurrent access to the
+     * domain at maxSubQueues times the maximum access count.
+     * Otherwise the number of sub-queues is unbounded.
+     */
+    public synchronized void configureKeying( String host,
+                                              Keying keying,
+                                              int maxSubQueues )
+    {
+        _keyings.put( configDomain( host ),
+                      new KeyingConfig( keying, maxSubQueues ) );
+    }
+
+    /**
+     * Set a HostResolver to set ContentKeys.ADDRESS on orders, in bulk
+     * via add and addAll, before this queue is locked, or only from
+     * cache for new orders on release (default: null). The resolver
+     * is shared with clones, but not closed by this queue.
+     */
+    public void setResolver( HostResolver resolver )
+    {
+        _resolver = resolver;
+    }
+
+    public HostResolver resolver()
+    {
+        return _resolver;
+    }
+
+    /**
+     * Set whether to key orders with a resolved ContentKeys.ADDRESS by
+     * that address alone, such that politeness applies per IP address
+     * across all domains sharing it (default: false). Domains with a
+     * configured keying (configureKeying) are excepted. Hosts may be
+     * configured by address via configureHost. Type specific
+     * configuration is not applied to address keyed orders.
+     *
+     * Keying is sticky per host for the life of the queue: the first
+     * order of a host determines whether its orders are keyed by
+     * address (and which), or by domain if not yet resolved. Later
+     * orders of the host missing an ADDRESS (e.g. a lookup exceeding
+     * the resolver maxWait or TTL) or resolved differently are keyed
+     * the same, so a host is never split across HostQueues.
+     * @see #setResolver(HostResolver)
+     */
+    public synchronized void setAddressPoliteness( boolean addressPoliteness )
+    {
+        _addressPoliteness = addressPoliteness;
+    }
+
+    public boolean addressPoliteness()
+    {
+        return _addressPoliteness;
+    }
+
+    synchronized Map<String,KeyingConfig> keyings()
+    {
+        return new HashMap<String,KeyingConfig>( _keyings );
     }
 
     /**
@@ -103,27 +471,53 @@ public class VisitQueue implements VisitCounter
         newQ._defaultMaxAccessPerHost = _defaultMaxAccessPerHost;
         newQ._typedDomainKeys         = _typedDomainKeys;
         newQ._maxAccessTotal          = _maxAccessTotal;
+        newQ._adaptiveDelay           = _adaptiveDelay;
+        newQ._compactOrders           = _compactOrders;
+        newQ._schedule                = _schedule;
+        newQ._readyHosts              = createReadyHosts( _schedule );
+        newQ._hostWeights.putAll( _hostWeights );
+        newQ._typeWeights.putAll( _typeWeights );
+        newQ._keyings.putAll( _keyings );
+        newQ._resolver                = _resolver;
+        newQ._addressPoliteness       = _addressPoliteness;
+        newQ._listener                = _listener;
+        newQ._spillDirectory          = _spillDirectory;
+        newQ._spillCodec              = _spillCodec;
+        newQ._maxResidentPerHost      = _maxResidentPerHost;
+        newQ._spillSegmentSize        = _spillSegmentSize;
 
         //Very important to deep clone the host queues
         for( HostQueue hq : _hosts.values() ) {
-            newQ._hosts.put( hq.key(), hq.clone() );
+            HostQueue newHQ = hq.clone();
+            newQ._hosts.put( newHQ.key(), newHQ );
+            newQ._index.put( newHQ );
         }
 
         return newQ;
     }
 
-    public synchronized void addAll( List<UniMap> orders )
+    public void addAll( List<UniMap> orders )
     {
-        for( UniMap order : orders ) {
-            privAdd( order );
+        if( _resolver != null ) _resolver.resolve( orders );
+
+        synchronized( this ) {
+            for( UniMap order : orders ) {
+                privAdd( order );
+            }
+            notifyAll();
         }
-        notifyAll();
     }
 
-    public synchronized void add( UniMap order )
+    public void add( UniMap order )
     {
-        privAdd( order );
-        notifyAll();
+        if( _resolver != null ) {
+            _resolver.resolve( Collections.singletonList( order ) );
+        }
+
+        synchronized( this ) {
+            privAdd( order );
+            notifyAll();
+        }
     }
 
     /**
@@ -151,6 +545,22 @@ public class VisitQueue implements VisitCounter
         return _hostCount;
     }
 
+    /**
+     * Return the number of hosts ready for immediate acquire.
+     */
+    public synchronized int readyHostCount()
+    {
+        return _readyHosts.size();
+    }
+
+    /**
+     * Return the number of hosts with orders sleeping, for politeness.
+     */
+    public synchronized int sleepHostCount()
+    {
+        return _sleepHosts.size();
+    }
+
     /**
      * Returns the highest priority of the available visit orders. May block
      * up to maxWait milliseconds. Caller must call the
@@ -160,27 +570,68 @@ public class VisitQueue implements VisitCounter
     public synchronized UniMap acquire( long maxWait )
         throws InterruptedException
     {
+        final long start = ( _listener != null ) ?
+            System.currentTimeMillis() : 0;
+        final int ready = _readyHosts.size();
+        final int sleep = _sleepHosts.size();
+
         UniMap job = null;
         HostQueue hq = take( maxWait );
-        if( hq != null ) {
-            _log.debug( "Take: {}", hq.key() );
-
-            if( ! hq.isAvailable() ) {
-                throw new IllegalStateException( "Unavailable host take!");
-            }
+        if( hq != null ) job = acquireFrom( hq );
 
-            job = hq.remove();
-
-            untakeImpl( hq );
-            ++_acquiredCount;
+        if( _listener != null ) {
+            _listener.acquireWait( System.currentTimeMillis() - start,
+                                   ( job != null ), ready, sleep );
         }
         return job;
     }
 
+    /**
+     * Acquire up to max of the highest priority available visit
+     * orders, each from a distinct host, in a single lock
+     * acquisition. May block up to maxWait milliseconds for the first
+     * order, but not for subsequent orders. Caller must call
+     * {@link #release(UniMap, UniMap)} for each order when done
+     * processing.
+     * @param out receives the acquired orders in priority order
+     * @return the number of orders added to out, 0 if maxWait was
+     * exceeded
+     */
+    public synchronized int acquire( int max,
+                                     long maxWait,
+                                     Collection<UniMap> out )
+        throws InterruptedException
+    {
+        int count = 0;
+        if( max > 0 ) {
+            final long start = ( _listener != null ) ?
+                System.currentTimeMillis() : 0;
+            final int ready = _readyHosts.size();
+            final int sleep = _sleepHosts.size();
+
+            HostQueue hq = take( maxWait );
+            if( hq != null ) {
+                List<HostQueue> taken = new ArrayList<HostQueue>();
+                out.add( removeFrom( hq ) );
+                taken.add( hq );
+                count = 1 + drain( System.currentTimeMillis(),
+                                   max - 1, _maxAccessTotal, taken, out );
+            }
+            if( _listener != null ) {
+                _listener.acquireWait( System.currentTimeMillis() - start,
+                                       ( count > 0 ), ready, sleep );
+            }
+        }
+        return count;
+    }
+
     @Override
     public synchronized void release( UniMap acquired, UniMap newOrder )
     {
-        if( newOrder != null ) privAdd( newOrder );
+        if( newOrder != null ) {
+            if( _resolver != null ) _resolver.resolveCached( newOrder );
+            privAdd( newOrder );
+        }
         --_orderCount;
         --_acquiredCount;
 
@@ -188,43 +639,187 @@ public class VisitQueue implements VisitCounter
             throw new NullPointerException( "Null release!" );
         }
 
-        DomainKey key = orderKey( acquired );
-        HostQueue queue = _hosts.get( key );
+        HostQueue queue = findHost( acquired );
 
         if( queue == null ) {
             throw new IllegalStateException( "Host order key [" +
-                                             key + "] not found" );
+                                             probeKey() + "] not found" );
+        }
+
+        if( _log.isDebugEnabled() ) {
+            _log.debug( "Release: {} {}", queue.key(), queue.size() );
         }
 
-        _log.debug( "Release: {} {}", queue.key(), queue.size() );
+        // A host with orders is ready or sleeping iff available
+        final boolean scheduled = queue.isAvailable() && ( queue.size() > 0 );
+
+        queue.release();
+
+        if( _adaptiveDelay != null ) {
+            // Keep a scheduled host available; any reduction in access
+            // beyond that applies on subsequent releases.
+            int minAccess = scheduled ? ( queue.accessCount() + 1 ) : 1;
+            _adaptiveDelay.update( queue, acquired, minAccess );
+        }
 
-        if( queue.release() && ( queue.size() > 0 ) ) addSleep( queue );
+        if( ! scheduled && queue.isAvailable() && ( queue.size() > 0 ) ) {
+            addSleep( queue );
+        }
 
         checkRemove( queue );
         notifyAll();
     }
 
+    /**
+     * Return the DomainKey of order. This is the interned key of the
+     * existing HostQueue, if any, such that no DomainKey is allocated.
+     * Caller must hold this lock.
+     */
     protected DomainKey orderKey( UniMap order )
     {
-        final String domain = order.get( ContentKeys.URL ).domain();
+        final HostQueue hq = findHost( order );
+        return ( hq != null ) ? hq.key() : probeKey();
+    }
+
+    /**
+     * Return the existing HostQueue of order, or null if none. Either
+     * way, the probe fields are left set for the order's key.
+     */
+    private HostQueue findHost( UniMap order )
+    {
+        probe( order );
+
+        if( _probeTyped != null ) return _hosts.get( _probeTyped );
+
+        HostQueue hq = _index.get( _probeDomain, _probeSubKey );
+        if( hq == null ) {
+            // Not indexed, on sub-key collision across domains
+            hq = _hosts.get( probeKey() );
+        }
+        return hq;
+    }
+
+    /**
+     * Set the probe fields to the components of the order's key,
+     * without allocation: either an interned typed key, or the domain
+     * and sub-key of an untyped key.
+     */
+    private void probe( UniMap order )
+    {
+        final VisitURL url = order.get( ContentKeys.URL );
+        final String domain = url.domain();
+
+        _probeTyped = null;
+        _probeSubKey = null;
+
+        if( _addressPoliteness ) {
+            final String address = addressKey( domain, order );
+            if( address != null ) {
+                _probeDomain = address;
+                return;
+            }
+        }
+        _probeDomain = domain;
 
         List<DomainKey> typedKeys = _typedDomainKeys.get( domain );
         if( typedKeys != null ) {
-            DomainKey key = new DomainKey( domain,
-                                           order.get( ContentKeys.TYPE ) );
-            for( DomainKey old : typedKeys ) {
-                if( old.equals( key ) ) return old;
+            final String type = order.get( ContentKeys.TYPE );
+            if( type != null ) {
+                for( DomainKey old : typedKeys ) {
+                    if( type.equals( old.type() ) ) {
+                        _probeTyped = old;
+                        return;
+                    }
+                }
             }
         }
 
-        return new DomainKey( domain, null );
+        if( ! _keyings.isEmpty() ) {
+            KeyingConfig config = _keyings.get( domain );
+            if( config != null ) _probeSubKey = subKey( config, url, order );
+        }
     }
 
-    protected DomainKey configKey( String host, String type )
+    /**
+     * Return the key of the last probe, allocating if untyped.
+     */
+    private DomainKey probeKey()
+    {
+        if( _probeTyped != null ) return _probeTyped;
+        return new DomainKey( _probeDomain, null, _probeSubKey );
+    }
+
+    /**
+     * Return the DomainKey domain of order: the order ADDRESS if keyed
+     * by address, otherwise the registration level domain.
+     */
+    protected String keyDomain( UniMap order )
+    {
+        final String domain = order.get( ContentKeys.URL ).domain();
+        if( _addressPoliteness ) {
+            final String address = addressKey( domain, order );
+            if( address != null ) return address;
+        }
+        return domain;
+    }
+
+    /**
+     * Return the address order is keyed by, or null if keyed by domain,
+     * sticky per host.
+     */
+    private String addressKey( String domain, UniMap order )
+    {
+        if( _keyings.containsKey( domain ) ) return null;
+
+        final String host = order.get( ContentKeys.URL ).host();
+        String key = _hostKeys.get( host );
+        if( key == null ) {
+            final String address = order.get( ContentKeys.ADDRESS );
+            key = ( address != null ) ? address : domain;
+            final String prior = _hostKeys.putIfAbsent( host, key );
+            if( prior != null ) key = prior;
+        }
+        return ( key.equals( domain ) ) ? null : key;
+    }
+
+    private static String subKey( KeyingConfig config,
+                                  VisitURL url,
+                                  UniMap order )
+    {
+        String subKey = null;
+        switch( config.keying() ) {
+        case DOMAIN:
+            return null;
+        case ADDRESS:
+            subKey = order.get( ContentKeys.ADDRESS );
+            //fall through if no address
+        case HOST:
+            if( subKey == null ) subKey = url.host();
+        }
+
+        final int max = config.maxSubQueues();
+        if( max > 0 ) {
+            int h = subKey.hashCode();
+            h ^= ( h >>> 16 );
+            subKey = config.bucket( url.domain(), ( h & 0x7fffffff ) % max );
+        }
+        return subKey;
+    }
+
+    /**
+     * Return the (registration level) domain for a configured host
+     * name, as used in the DomainKey.
+     */
+    protected static String configDomain( String host )
     {
         host = Domains.normalize( host.trim() );
         String domain = Domains.registrationLevelDomain( host );
-        if( domain == null ) domain = host;
+        return ( domain != null ) ? domain : host;
+    }
+
+    protected DomainKey configKey( String host, String type )
+    {
+        String domain = configDomain( host );
 
         if( type != null ) type = type.intern();
 
@@ -267,7 +862,7 @@ public class VisitQueue implements VisitCounter
                 hq.key(),
                 hq.size(),
                 hq.accessCount(),
-                hq.minHostDelay(),
+                hq.currentDelay(),
                 hq.nextVisit() - now,
                 ( isReady ? 'R' : ' ' ),
                 ( isSleep ? 'S' : ' ' ) ) );
@@ -281,6 +876,51 @@ public class VisitQueue implements VisitCounter
         return new ArrayList<HostQueue>( _hosts.values() );
     }
 
+    /**
+     * Non-blocking acquire of the highest priority order currently
+     * available, ignoring maxAccessTotal. Caller must call
+     * {@link #release(UniMap, UniMap)} when done processing this order.
+     * @return UniMap visit order or null if none is currently available
+     */
+    synchronized UniMap poll()
+    {
+        // Current time as of lock, for consistent politeness
+        final long now = System.currentTimeMillis();
+        UniMap job = null;
+        HostQueue hq = takeReady( now );
+        if( hq != null ) {
+            hq.setLastTake( now );
+            job = acquireFrom( hq );
+        }
+        return job;
+    }
+
+    /**
+     * Non-blocking batch variant of {@link #poll()}, acquiring up to max
+     * orders from distinct hosts.
+     * @return the number of orders added to out
+     */
+    synchronized int poll( int max, Collection<UniMap> out )
+    {
+        return drain( System.currentTimeMillis(), max, Integer.MAX_VALUE,
+                      new ArrayList<HostQueue>(), out );
+    }
+
+    /**
+     * Return the time at or after now at which the next host will be
+     * ready, ignoring maxAccessTotal, or Long.MAX_VALUE if there are no
+     * available hosts.
+     */
+    synchronized long nextReady( long now )
+    {
+        if( ! _readyHosts.isEmpty() ) return now;
+
+        long next = _sleepHosts.nextVisit();
+        if( next == Long.MAX_VALUE ) return next;
+
+        return Math.max( now, next );
+    }
+
     /**
      * Take the next ready/highest priority host queue. May block up
      * to maxWait for the next ready queue.
@@ -292,24 +932,16 @@ public class VisitQueue implements VisitCounter
     {
         long now = System.currentTimeMillis();
         HostQueue ready = null;
-        wait_loop: while( ready == null && maxWait > 0 ) {
-            HostQueue next = null;
+        while( ready == null && maxWait > 0 ) {
+            long next = Long.MAX_VALUE;
             if( _acquiredCount < _maxAccessTotal ) {
-                ready = _readyHosts.poll();
-                if( ready == null ) {
-                    while( ( next = _sleepHosts.peek() ) != null ) {
-                        if( ( now - next.nextVisit() ) >= 0 ) {
-                            addReady( _sleepHosts.remove() );
-                        }
-                        else break;
-                    }
-                    if( ! _readyHosts.isEmpty() ) continue wait_loop;
-                }
+                ready = takeReady( now );
+                if( ready == null ) next = _sleepHosts.nextVisit();
             }
             if( ready == null ) {
                 long delay = maxWait;
-                if( next != null ) {
-                    delay = Math.min( next.nextVisit() - now + 1, maxWait );
+                if( next != Long.MAX_VALUE ) {
+                    delay = Math.min( next - now + 1, maxWait );
                 }
                 wait( delay );
                 long nextNow = System.currentTimeMillis();
@@ -322,14 +954,142 @@ public class VisitQueue implements VisitCounter
         return ready;
     }
 
+    /**
+     * Move any sleeping hosts whose next visit time has passed to
+     * ready, then remove and return the highest priority ready host,
+     * or null if none is ready.
+     */
+    private HostQueue takeReady( long now )
+    {
+        if( _schedule == Schedule.FAIR ) expire( now );
+
+        HostQueue ready = _readyHosts.poll();
+        if( ready == null ) {
+            expire( now );
+            ready = _readyHosts.poll();
+        }
+        return ready;
+    }
+
+    private void expire( long now )
+    {
+        _sleepHosts.expire( now, _expired );
+        for( HostQueue hq : _expired ) addReady( hq );
+        _expired.clear();
+    }
+
+    /**
+     * Take and remove orders from up to max ready hosts, as long as
+     * acquired count is less than maxAccess. The hosts in taken, plus
+     * those taken here, are only put to sleep once done, so that each
+     * host is taken at most once.
+     * @return number of orders added to out
+     */
+    private int drain( long now,
+                       int max,
+                       int maxAccess,
+                       List<HostQueue> taken,
+                       Collection<UniMap> out )
+    {
+        int count = 0;
+        while( ( count < max ) && ( _acquiredCount < maxAccess ) ) {
+            HostQueue hq = takeReady( now );
+            if( hq == null ) break;
+            hq.setLastTake( now );
+            out.add( removeFrom( hq ) );
+            taken.add( hq );
+            ++count;
+        }
+
+        for( HostQueue hq : taken ) untakeImpl( hq );
+
+        return count;
+    }
+
+    private UniMap acquireFrom( HostQueue hq )
+    {
+        UniMap job = removeFrom( hq );
+        untakeImpl( hq );
+        return job;
+    }
+
+    private UniMap removeFrom( HostQueue hq )
+    {
+        _log.debug( "Take: {}", hq.key() );
+
+        if( ! hq.isAvailable() ) {
+            throw new IllegalStateException( "Unavailable host take!");
+        }
+
+        UniMap job = hq.remove();
+        ++_acquiredCount;
+
+        if( _schedule == Schedule.FAIR ) charge( hq, job );
+
+        if( _listener != null ) notifyAcquired( hq, job );
+
+        return job;
+    }
+
+    /**
+     * Advance the virtual clock to the start of this take, and the
+     * host's virtual time by the inverse of its weight for order.
+     */
+    private void charge( HostQueue hq, UniMap order )
+    {
+        final double start = hq.virtualTime();
+        if( start > _virtualTime ) _virtualTime = start;
+
+        float weight = 1.0f;
+        if( ! _hostWeights.isEmpty() ) weight = hostWeight( hq.key() );
+        if( ! _typeWeights.isEmpty() ) {
+            final String type = order.get( ContentKeys.TYPE );
+            final Float typeWeight =
+                ( type != null ) ? _typeWeights.get( type ) : null;
+            if( typeWeight != null ) weight *= typeWeight;
+        }
+
+        hq.setVirtualTime( start + ( 1.0d / weight ) );
+    }
+
+    private static void checkWeight( float weight )
+    {
+        if( !( weight > 0.0f ) ) {
+            throw new IllegalArgumentException(
+                "Weight must be positive: " + weight );
+        }
+    }
+
+    private static PriorityQueue<HostQueue> createReadyHosts( Schedule s )
+    {
+        Comparator<HostQueue> comparator = ( s == Schedule.FAIR ) ?
+            new HostQueue.FairComparator() :
+            new HostQueue.TopOrderComparator();
+        return new PriorityQueue<HostQueue>( 1024, comparator );
+    }
+
+    @SuppressWarnings("deprecation")
+    private void notifyAcquired( HostQueue hq, UniMap order )
+    {
+        final long now = hq.lastTake();
+        final Date next = order.get( ContentKeys.NEXT_VISIT_AFTER );
+        _listener.acquired( hq,
+                            now - hq.readySince(),
+                            ( next != null ) ? ( now - next.getTime() ) : -1 );
+    }
+
     private void checkRemove( HostQueue queue )
     {
         if( ( queue.accessCount() == 0 ) && ( queue.size() == 0 ) ) {
             --_hostCount;
-            if( ( queue.key().type() == null ) &&
-                ( queue.minHostDelay() == _defaultMinHostDelay ) &&
-                ( queue.maxAccessCount() == _defaultMaxAccessPerHost ) ) {
+            final DomainKey key = queue.key();
+            if( ( key.subKey() != null ) ||
+                ( ( key.type() == null ) &&
+                  ( queue.currentDelay() == _defaultMinHostDelay ) &&
+                  ( queue.currentMaxAccess() ==
+                    _defaultMaxAccessPerHost ) ) ) {
                 _hosts.remove( queue.key() );
+                _index.remove( queue );
             }
         }
     }
@@ -337,26 +1097,50 @@ public class VisitQueue implements VisitCounter
     private void untakeImpl( HostQueue queue )
     {
         if( queue.isAvailable() && ( queue.size() > 0 ) ) {
+            long next = _sleepHosts.nextVisit();
             addSleep( queue );
-            notifyAll();
+
+            // Only waiting threads with a later wake time need notify
+            if( queue.nextVisit() < next ) notifyAll();
         }
     }
 
     private void privAdd( UniMap order )
     {
-        DomainKey key = orderKey( order );
-
-        HostQueue queue = _hosts.get( key );
+        HostQueue queue = findHost( order );
         if( queue == null ) {
-            queue = new HostQueue( key,
-                                   _defaultMinHostDelay,
-                                   _defaultMaxAccessPerHost );
+            final DomainKey key = probeKey();
+            HostQueue parent = null;
+            if( key.subKey() != null ) {
+                parent = _index.get( key.domain(), null );
+            }
+            if( parent != null ) {
+                queue = new HostQueue( key,
+                                       parent.minHostDelay(),
+                                       parent.maxAccessCount() );
+            }
+            else {
+                queue = new HostQueue( key,
+                                       _defaultMinHostDelay,
+                                       _defaultMaxAccessPerHost );
+            }
             _hosts.put( key, queue );
+            _index.put( queue );
+        }
+
+        if( queue.size() == 0 ) {
+            queue.setCompact( _compactOrders );
+            if( _spillDirectory != null ) {
+                queue.setSpill( spill(), _maxResidentPerHost );
+            }
         }
 
         queue.add( order );
 
         if( ( queue.size() == 1 ) && ( queue.isAvailable() ) ) {
+            if( _listener != null ) {
+                queue.setReadySince( System.currentTimeMillis() );
+            }
             addReady( queue );
         }
         if( ( queue.size() == 1 ) && ( queue.accessCount() == 0 ) ) {
@@ -366,6 +1150,17 @@ public class VisitQueue implements VisitCounter
         ++_orderCount;
     }
 
+    private OrderSpill spill()
+    {
+        if( _spill == null ) {
+            _spill = new OrderSpill(
+                OrderSpill.uniqueDirectory( _spillDirectory ),
+                ( _spillCodec != null ) ? _spillCodec : new OrderCodec(),
+                _spillSegmentSize );
+        }
+        return _spill;
+    }
+
     private void addReady( HostQueue queue )
     {
         if( _log.isDebugEnabled() ) {
@@ -377,6 +1172,11 @@ public class VisitQueue implements VisitCounter
             throw new IllegalStateException( "Unavailable addReady!");
         }
 
+        if( ( _schedule == Schedule.FAIR ) &&
+            ( queue.virtualTime() < _virtualTime ) ) {
+            queue.setVirtualTime( _virtualTime );
+        }
+
         _readyHosts.add( queue );
     }
 
@@ -391,6 +1191,13 @@ public class VisitQueue implements VisitCounter
             throw new IllegalStateException( "Unavailable addSleep!");
         }
 
+        if( _listener != null ) {
+            final long now = System.currentTimeMillis();
+            final long next = queue.nextVisit();
+            queue.setReadySince( Math.max( next, now ) );
+            _listener.slept( queue, Math.max( 0, next - now ) );
+        }
+
         _sleepHosts.add( queue );
     }
 
@@ -411,6 +1218,26 @@ public class VisitQueue implements VisitCounter
     private int _defaultMinHostDelay     = 500; //ms
     private int _defaultMaxAccessPerHost =   1;
     private int _maxAccessTotal = Integer.MAX_VALUE;
+    private AdaptiveHostDelay _adaptiveDelay = null;
+    private boolean _compactOrders = false;
+    private Schedule _schedule = Schedule.PRIORITY;
+    private double _virtualTime = 0.0d;
+    private VisitQueueListener _listener = null;
+    private HostResolver _resolver = null;
+    private boolean _addressPoliteness = false;
+
+    /**
+     * Address, or domain if keyed by domain, by host, with
+     * addressPoliteness. Concurrent for use by keyDomain without lock.
+     */
+    private final ConcurrentHashMap<String,String> _hostKeys =
+        new ConcurrentHashMap<String,String>( 256 );
+
+    private File _spillDirectory = null;
+    private OrderCodec _spillCodec = null;
+    private int _maxResidentPerHost = 256;
+    private int _spillSegmentSize = 64 * 1024 * 1024;
+    private OrderSpill _spill = null;
 
     private int _orderCount = 0;
     private int _acquiredCount = 0;
@@ -419,14 +1246,31 @@ public class VisitQueue implements VisitCounter
     private final Map<DomainKey, HostQueue> _hosts      =
         new HashMap<DomainKey, HostQueue>( 2048 );
 
+    private final HostIndex _index = new HostIndex();
+
+    // Results of probe( order ), only valid under lock
+    private DomainKey _probeTyped = null;
+    private String _probeDomain = null;
+    private String _probeSubKey = null;
+
     private Map<String,List<DomainKey>> _typedDomainKeys =
         new HashMap<String,List<DomainKey>>( 16 );
 
+    private final Map<DomainKey,Float> _hostWeights =
+        new HashMap<DomainKey,Float>( 16 );
+
+    private final Map<String,Float> _typeWeights =
+        new HashMap<String,Float>( 8 );
+
+    private final Map<String,KeyingConfig> _keyings =
+        new HashMap<String,KeyingConfig>( 8 );
+
     private PriorityQueue<HostQueue>     _readyHosts =
-        new PriorityQueue<HostQueue>( 1024, new HostQueue.TopOrderComparator());
+        createReadyHosts( Schedule.PRIORITY );
+
+    private final HostTimerWheel _sleepHosts = new HostTimerWheel();
 
-    private PriorityQueue<HostQueue>     _sleepHosts =
-        new PriorityQueue<HostQueue>( 128, new HostQueue.NextVisitComparator());
+    private final List<HostQueue> _expired = new ArrayList<HostQueue>( 64 );
 
     private Logger _log = LoggerFactory.getLogger( getClass() );
 }
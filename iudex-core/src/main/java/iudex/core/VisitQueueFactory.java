@@ -23,6 +23,23 @@ public class VisitQueueFactory
         _template = template.clone();
     }
 
+    /**
+     * Create factory of ShardedVisitQueue with the specified number of
+     * shards, and the same defaults and host configuration as
+     * template. A shards value of 1 or less is equivalent to
+     * {@link #VisitQueueFactory(VisitQueue)}.
+     * @see ShardedVisitQueue
+     */
+    public VisitQueueFactory( VisitQueue template, int shards )
+    {
+        if( shards > 1 ) {
+            _template = new ShardedVisitQueue( template, shards );
+        }
+        else {
+            _template = template.clone();
+        }
+    }
+
     public VisitQueueFactory()
     {
         _template = new VisitQueue();
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+/**
+ * Receives scheduling events from a VisitQueue, as set via
+ * {@link VisitQueue#setListener(VisitQueueListener)}. Events may be
+ * sent concurrently from multiple threads, so implementations must be
+ * thread safe. The acquired and slept events, and acquireWait from a
+ * plain VisitQueue, are sent with the VisitQueue (or ShardedVisitQueue
+ * shard) lock held, so implementations must be fast and must not call
+ * back into the VisitQueue. The acquireWait event of a
+ * ShardedVisitQueue, and generation, are sent without any queue lock.
+ * All times are in milliseconds.
+ * @see VisitQueueMetrics
+ */
+public interface VisitQueueListener
+{
+    /**
+     * Receive a new VisitQueue generation, from VisitManager as it is
+     * swapped in for dispatch.
+     */
+    void generation( VisitQueue queue );
+
+    /**
+     * Receive an acquire event.
+     * @param host the HostQueue the order was taken from
+     * @param hostWait time the host was ready (not limited by
+     * politeness) before being taken
+     * @param orderAge time since the order NEXT_VISIT_AFTER, or -1 if
+     * not set
+     */
+    void acquired( HostQueue host, long hostWait, long orderAge );
+
+    /**
+     * Receive the time a caller blocked in acquire, on return.
+     * @param acquired true if any order was acquired, false if the
+     * maximum wait was exceeded
+     * @param readyHosts number of ready hosts on entry to acquire
+     * @param sleepHosts number of hosts sleeping for politeness, on
+     * entry to acquire
+     */
+    void acquireWait( long wait,
+                      boolean acquired,
+                      int readyHosts,
+                      int sleepHosts );
+
+    /**
+     * Receive a host with orders put to sleep.
+     * @param idle time until the host is ready again, due to its
+     * politeness delay
+     */
+    void slept( HostQueue host, long idle );
+}
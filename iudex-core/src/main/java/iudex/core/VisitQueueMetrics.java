@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A VisitQueueListener collecting per-generation histograms of host
+ * wait, politeness idle, acquire wait, order age, and ready and
+ * sleeping host counts. Also a JMX MBean, see
+ * {@link #register(String)}. Set on the template VisitQueue of the
+ * VisitQueueFactory, such that it is shared by all generations. A
+ * summary of each generation is logged at INFO when the next starts.
+ *
+ * The summary includes a rough indication of what bounds
+ * throughput: "threads" when callers of acquire rarely wait,
+ * "politeness" when they wait on sleeping hosts, or "polling" when
+ * they wait for lack of work. Ready and sleeping host counts are
+ * sampled on entry to each acquire call.
+ */
+public class VisitQueueMetrics
+    implements VisitQueueListener, VisitQueueMetricsMBean
+{
+    /**
+     * Histogram of non-negative long values in power of 2 buckets.
+     * Percentiles are approximate, as the upper bound of the bucket.
+     * Thread safe.
+     */
+    public static final class Histogram
+    {
+        public void record( long value )
+        {
+            if( value < 0 ) value = 0;
+            _buckets.incrementAndGet( bucket( value ) );
+            _count.incrementAndGet();
+            _sum.addAndGet( value );
+
+            long max;
+            while( value > ( max = _max.get() ) ) {
+                if( _max.compareAndSet( max, value ) ) break;
+            }
+        }
+
+        public long count()
+        {
+            return _count.get();
+        }
+
+        public double mean()
+        {
+            final long count = _count.get();
+            return ( count > 0 ) ? ( (double) _sum.get() / count ) : 0.0d;
+        }
+
+        public long max()
+        {
+            return _max.get();
+        }
+
+        /**
+         * Return the approximate value at percentile p in [0.0,1.0].
+         */
+        public long percentile( double p )
+        {
+            final long count = _count.get();
+            if( count == 0 ) return 0;
+
+            final long target = Math.max( 1, (long) Math.ceil( p * count ) );
+            long seen = 0;
+            for( int b = 0; b < BUCKETS; ++b ) {
+                seen += _buckets.get( b );
+                if( seen >= target ) {
+                    return Math.min( upperBound( b ), _max.get() );
+                }
+            }
+            return _max.get();
+        }
+
+        private static int bucket( long value )
+        {
+            return 64 - Long.numberOfLeadingZeros( value );
+        }
+
+        private static long upperBound( int bucket )
+        {
+            return ( bucket == 0 ) ? 0 : ( ( 1L << bucket ) - 1 );
+        }
+
+        private static final int BUCKETS = 65;
+
+        private final AtomicLongArray _buckets = new AtomicLongArray( BUCKETS );
+        private final AtomicLong _count = new AtomicLong();
+        private final AtomicLong _sum = new AtomicLong();
+        private final AtomicLong _max = new AtomicLong();
+    }
+
+    /**
+     * Histograms of a single generation.
+     */
+    public static final class Generation
+    {
+        Generation( int number )
+        {
+            _number = number;
+        }
+
+        public int number()
+        {
+            return _number;
+        }
+
+        public Histogram hostWait()    { return _hostWait; }
+        public Histogram idle()        { return _idle; }
+        public Histogram acquireWait() { return _acquireWait; }
+        public Histogram orderAge()    { return _orderAge; }
+        public Histogram readyHosts()  { return _readyHosts; }
+        public Histogram sleepHosts()  { return _sleepHosts; }
+
+        /**
+         * Return the number of acquire calls which timed out.
+         */
+        public long acquireTimeouts()
+        {
+            return _timeouts.get();
+        }
+
+        /**
+         * Return "idle" if nothing was acquired, "threads" if acquire
+         * callers wait less than 1ms on average, otherwise
+         * "politeness" or "polling" by which accounts for the most
+         * acquire wait time: waits with hosts sleeping, or without.
+         */
+        public String boundBy()
+        {
+            if( _hostWait.count() == 0 )       return "idle";
+            if( _acquireWait.mean() < 1.0d )   return "threads";
+            if( _politeWait.get() >= _pollWait.get() ) return "politeness";
+            return "polling";
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(
+                "Generation %d: acquired %d (%s bound), " +
+                "host wait ms mean %.1f p50 %d max %d, " +
+                "idle ms mean %.1f p50 %d p99 %d, " +
+                "acquire wait ms mean %.1f p99 %d timeouts %d, " +
+                "order age ms mean %.1f p99 %d, " +
+                "hosts ready %.1f sleep %.1f",
+                _number, _hostWait.count(), boundBy(),
+                _hostWait.mean(), _hostWait.percentile( 0.5 ),
+                _hostWait.max(),
+                _idle.mean(), _idle.percentile( 0.5 ),
+                _idle.percentile( 0.99 ),
+                _acquireWait.mean(), _acquireWait.percentile( 0.99 ),
+                _timeouts.get(),
+                _orderAge.mean(), _orderAge.percentile( 0.99 ),
+                _readyHosts.mean(), _sleepHosts.mean() );
+        }
+
+        private final int _number;
+        private final Histogram _hostWait    = new Histogram();
+        private final Histogram _idle        = new Histogram();
+        private final Histogram _acquireWait = new Histogram();
+        private final Histogram _orderAge    = new Histogram();
+        private final Histogram _readyHosts  = new Histogram();
+        private final Histogram _sleepHosts  = new Histogram();
+        private final AtomicLong _timeouts   = new AtomicLong();
+        private final AtomicLong _politeWait = new AtomicLong();
+        private final AtomicLong _pollWait   = new AtomicLong();
+    }
+
+    /**
+     * Register this as an MBean with the platform MBeanServer, under
+     * name "iudex.core:type=VisitQueueMetrics,name=&lt;name&gt;".
+     */
+    public synchronized void register( String name ) throws JMException
+    {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        _objectName = new ObjectName(
+            "iudex.core:type=VisitQueueMetrics,name=" + name );
+        server.registerMBean( this, _objectName );
+    }
+
+    public synchronized void unregister() throws JMException
+    {
+        if( _objectName != null ) {
+            ManagementFactory.getPlatformMBeanServer().
+                unregisterMBean( _objectName );
+            _objectName = null;
+        }
+    }
+
+    /**
+     * Return the histograms of the current generation.
+     */
+    public Generation current()
+    {
+        return _current;
+    }
+
+    /**
+     * Return the histograms of the prior generation, or null.
+     */
+    public Generation prior()
+    {
+        return _prior;
+    }
+
+    @Override
+    public synchronized void generation( VisitQueue queue )
+    {
+        _queue = queue;
+        reset();
+    }
+
+    @Override
+    public synchronized void reset()
+    {
+        final Generation last = _current;
+        if( last.hostWait().count() > 0 ) {
+            _log.info( last.toString() );
+        }
+        _prior = last;
+        _current = new Generation( last.number() + 1 );
+    }
+
+    @Override
+    public void acquired( HostQueue host, long hostWait, long orderAge )
+    {
+        final Generation g = _current;
+        g._hostWait.record( hostWait );
+        if( orderAge >= 0 ) g._orderAge.record( orderAge );
+    }
+
+    @Override
+    public void acquireWait( long wait,
+                             boolean acquired,
+                             int readyHosts,
+                             int sleepHosts )
+    {
+        final Generation g = _current;
+        g._acquireWait.record( wait );
+        if( ! acquired ) g._timeouts.incrementAndGet();
+        g._readyHosts.record( readyHosts );
+        g._sleepHosts.record( sleepHosts );
+        if( wait > 0 ) {
+            if( sleepHosts > 0 ) g._politeWait.addAndGet( wait );
+            else g._pollWait.addAndGet( wait );
+        }
+    }
+
+    @Override
+    public void slept( HostQueue host, long idle )
+    {
+        _current._idle.record( idle );
+    }
+
+    @Override
+    public int getGeneration()
+    {
+        return _current.number();
+    }
+
+    @Override
+    public int getOrderCount()
+    {
+        final VisitQueue q = _queue;
+        return ( q != null ) ? q.orderCount() : 0;
+    }
+
+    @Override
+    public int getAcquiredCount()
+    {
+        final VisitQueue q = _queue;
+        return ( q != null ) ? q.acquiredCount() : 0;
+    }
+
+    @Override
+    public int getHostCount()
+    {
+        final VisitQueue q = _queue;
+        return ( q != null ) ? q.hostCount() : 0;
+    }
+
+    @Override
+    public int getReadyHostCount()
+    {
+        final VisitQueue q = _queue;
+        return ( q != null ) ? q.readyHostCount() : 0;
+    }
+
+    @Override
+    public int getSleepHostCount()
+    {
+        final VisitQueue q = _queue;
+        return ( q != null ) ? q.sleepHostCount() : 0;
+    }
+
+    @Override
+    public long getAcquireCount()
+    {
+        return _current.hostWait().count();
+    }
+
+    @Override
+    public double getHostWaitMean()
+    {
+        return _current.hostWait().mean();
+    }
+
+    @Override
+    public long getHostWaitP50()
+    {
+        return _current.hostWait().percentile( 0.5 );
+    }
+
+    @Override
+    public long getHostWaitP99()
+    {
+        return _current.hostWait().percentile( 0.99 );
+    }
+
+    @Override
+    public long getHostWaitMax()
+    {
+        return _current.hostWait().max();
+    }
+
+    @Override
+    public double getIdleMean()
+    {
+        return _current.idle().mean();
+    }
+
+    @Override
+    public long getIdleP50()
+    {
+        return _current.idle().percentile( 0.5 );
+    }
+
+    @Override
+    public long getIdleP99()
+    {
+        return _current.idle().percentile( 0.99 );
+    }
+
+    @Override
+    public double getAcquireWaitMean()
+    {
+        return _current.acquireWait().mean();
+    }
+
+    @Override
+    public long getAcquireWaitP99()
+    {
+        return _current.acquireWait().percentile( 0.99 );
+    }
+
+    @Override
+    public long getAcquireTimeouts()
+    {
+        return _current.acquireTimeouts();
+    }
+
+    @Override
+    public double getOrderAgeMean()
+    {
+        return _current.orderAge().mean();
+    }
+
+    @Override
+    public long getOrderAgeP99()
+    {
+        return _current.orderAge().percentile( 0.99 );
+    }
+
+    @Override
+    public double getReadyHostsMean()
+    {
+        return _current.readyHosts().mean();
+    }
+
+    @Override
+    public double getSleepHostsMean()
+    {
+        return _current.sleepHosts().mean();
+    }
+
+    @Override
+    public String getSummary()
+    {
+        return _current.toString();
+    }
+
+    private volatile Generation _current = new Generation( 0 );
+    private volatile Generation _prior = null;
+    private volatile VisitQueue _queue = null;
+    private ObjectName _objectName = null;
+
+    private final Logger _log = LoggerFactory.getLogger( getClass() );
+}
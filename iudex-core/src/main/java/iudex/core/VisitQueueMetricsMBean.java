@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+/**
+ * JMX interface of VisitQueueMetrics. Gauges reflect the current
+ * VisitQueue generation. Histogram statistics are for the current
+ * generation, in milliseconds, except ready and sleep host counts.
+ */
+public interface VisitQueueMetricsMBean
+{
+    int getGeneration();
+
+    int getOrderCount();
+    int getAcquiredCount();
+    int getHostCount();
+    int getReadyHostCount();
+    int getSleepHostCount();
+
+    long getAcquireCount();
+
+    double getHostWaitMean();
+    long getHostWaitP50();
+    long getHostWaitP99();
+    long getHostWaitMax();
+
+    double getIdleMean();
+    long getIdleP50();
+    long getIdleP99();
+
+    double getAcquireWaitMean();
+    long getAcquireWaitP99();
+    long getAcquireTimeouts();
+
+    double getOrderAgeMean();
+    long getOrderAgeP99();
+
+    double getReadyHostsMean();
+    double getSleepHostsMean();
+
+    /**
+     * One line summary of the current generation.
+     */
+    String getSummary();
+
+    /**
+     * Start a new generation of histograms, without a new VisitQueue.
+     */
+    void reset();
+}
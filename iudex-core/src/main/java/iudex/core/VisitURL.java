@@ -15,17 +15,11 @@
  */
 package iudex.core;
 
-import static com.gravitext.util.Charsets.UTF_8;
 import iudex.util.Characters;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.CharBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
-import com.gravitext.util.URL64;
 
 /**
  * Immutable URL representation encapsulates URL/URI parsing,
@@ -58,7 +52,7 @@ public final class VisitURL
         if( hash == null ) {
             throw new NullPointerException( "fromHash( null )" );
         }
-        return new VisitURL( null, hash );
+        return new VisitURL( (String) null, hash );
     }
 
     /**
@@ -76,12 +70,27 @@ public final class VisitURL
 
     /**
      * Return VisitURL from normalizing rawURL as from an untrusted
-     * source (i.e. the web).
+     * source (i.e. the web). Common case URLs are normalized in a
+     * single pass, without java.net.URI parsing.
      * @throws SyntaxException if rawURL can not be salvaged/parsed as
      *         a valid HTTP URL.
      */
     public static VisitURL normalize( CharSequence rawURL )
         throws SyntaxException
+    {
+        final String url = URLNormalizer.normalize( rawURL );
+        if( url != null ) return new VisitURL( url, null );
+
+        return normalizeByURI( rawURL );
+    }
+
+    /**
+     * Equivalent to {@link #normalize(CharSequence)}, but always by
+     * java.net.URI parsing. Retained as reference for testing and
+     * benchmarks.
+     */
+    public static VisitURL normalizeByURI( CharSequence rawURL )
+        throws SyntaxException
     {
         try {
             String raw = preEncode( rawURL );
@@ -94,7 +103,7 @@ public final class VisitURL
 
     public boolean hasUrl()
     {
-        return ( _uri != null );
+        return ( _url != null );
     }
 
     public String url()
@@ -103,7 +112,7 @@ public final class VisitURL
             throw new RuntimeException( "url() on VisitURL with only uhash " +
                                         uhash() );
         }
-        return _uri.toString();
+        return _url;
     }
 
     public String host()
@@ -113,7 +122,11 @@ public final class VisitURL
                                         uhash() );
         }
 
-        return _uri.getHost();
+        if( _host == null ) {
+            _host = ( _uri == null ) ? URLNormalizer.host( _url ) : null;
+            if( _host == null ) _host = uri().getHost();
+        }
+        return _host;
     }
 
     /**
@@ -134,14 +147,31 @@ public final class VisitURL
     public String uhash()
     {
         //lazy init
-        if( _uhash == null ) _uhash = hashURL( url() ).toString();
+        if( _uhash == null ) _uhash = URLHasher.uhash( url() );
+        return _uhash;
+    }
+
+    /**
+     * Return the uhash if already computed, or null.
+     */
+    String cachedUHash()
+    {
         return _uhash;
     }
 
+    /**
+     * Return other, normalized and resolved against this URL. The URI
+     * of this URL is parsed once, on first use, and only as needed for
+     * relative other references.
+     * @see LinkResolver for resolving batches of links
+     */
     public VisitURL resolve( CharSequence other ) throws SyntaxException
     {
+        final String url = URLNormalizer.resolve( _url, other );
+        if( url != null ) return new VisitURL( url, null );
+
         try {
-            URI uri = normalize( _uri.resolve( preEncode( other ) ) );
+            URI uri = normalize( uri().resolve( preEncode( other ) ) );
             return new VisitURL( uri );
         }
         catch( IllegalArgumentException x ) {
@@ -177,30 +207,37 @@ public final class VisitURL
 
     public String toString()
     {
-        return ( hasUrl() ? _uri.toString() : uhash() );
+        return ( hasUrl() ? _url : uhash() );
     }
 
     VisitURL( URI preParsed )
     {
-        _uri = preParsed;
+        this( preParsed, null );
     }
 
     VisitURL( URI preParsed, String hash )
     {
+        _url = ( preParsed != null ) ? preParsed.toString() : null;
         _uri = preParsed;
         _uhash = hash;
     }
 
+    /**
+     * Construct from an already normalized or trusted url String,
+     * parsed as a URI only if needed.
+     */
+    VisitURL( String url, String hash )
+    {
+        _url = url;
+        _uhash = hash;
+    }
+
     /**
      * Return a 23-character URL64 encoded hash of the complete URL.
      */
     static CharSequence hashURL( CharSequence url )
     {
-        byte[] sha = hash( url );
-        char[] chars = URL64.encode( sha, 0, 18 );
-        CharBuffer cbuff = CharBuffer.wrap( chars );
-        cbuff.limit( 23 );
-        return cbuff;
+        return URLHasher.uhash( url );
     }
 
     /**
@@ -208,11 +245,7 @@ public final class VisitURL
      */
     static CharSequence hashDomain( CharSequence domain )
     {
-        byte[] sha = hash( domain );
-        char[] chars = URL64.encode( sha, 0, 5 );
-        CharBuffer cbuff = CharBuffer.wrap( chars );
-        cbuff.limit( 6 );
-        return cbuff;
+        return URLHasher.domainHash( domain );
     }
 
     static URI normalize( URI uri ) throws URISyntaxException, SyntaxException
@@ -295,20 +328,25 @@ public final class VisitURL
         return Characters.replaceCtrlWS( in, "%20" ).toString();
     }
 
-    private static byte[] hash( CharSequence input )
+    /**
+     * Return the URI of this URL, parsed on first use if not already.
+     */
+    private URI uri()
     {
-        try {
-            MessageDigest md = MessageDigest.getInstance( "SHA-1" );
-            md.update( UTF_8.encode( CharBuffer.wrap( input ) ) );
-            return md.digest();
-
-        }
-        catch( NoSuchAlgorithmException x ) {
-            throw new RuntimeException( x ); //SHA-1 should be available
+        if( _uri == null ) {
+            try {
+                _uri = new URI( _url );
+            }
+            catch( URISyntaxException x ) {
+                throw new RuntimeException( x );
+            }
         }
+        return _uri;
     }
 
-    private final URI _uri;
+    private final String _url;
+    private volatile URI _uri = null;
+    private String _host = null;
     private String _uhash = null;
     private String _domain = null;
 }
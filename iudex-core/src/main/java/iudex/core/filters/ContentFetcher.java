@@ -150,7 +150,8 @@ public class ContentFetcher implements AsyncFilterContainer
         session.setMaxContentLength( _maxContentLength );
         session.setAcceptedContentTypes( _acceptedContentTypes );
 
-        _client.request( session, new Handler( content ) );
+        _client.request( session,
+                         new Handler( content, System.currentTimeMillis() ) );
 
         return true;
     }
@@ -169,9 +170,10 @@ public class ContentFetcher implements AsyncFilterContainer
 
     private final class Handler implements ResponseHandler
     {
-        public Handler( UniMap content )
+        public Handler( UniMap content, long start )
         {
             _content = content;
+            _start = start;
         }
 
         @Override
@@ -198,6 +200,8 @@ public class ContentFetcher implements AsyncFilterContainer
         private void recordSession( HTTPSession session )
         {
             _content.set( STATUS, session.statusCode() );
+            _content.set( RESPONSE_TIME,
+                          (int) ( System.currentTimeMillis() - _start ) );
             _content.set( REQUEST_HEADERS, session.requestHeaders() );
             _content.set( RESPONSE_HEADERS, session.responseHeaders() );
 
@@ -247,6 +251,7 @@ public class ContentFetcher implements AsyncFilterContainer
         }
 
         private final UniMap _content;
+        private final long _start;
     }
 
     private final class FilterTask implements Runnable
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import static iudex.core.TestOrders.order;
+import static org.junit.Assert.*;
+
+import iudex.http.HTTPSession;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.gravitext.htmap.UniMap;
+
+public class AdaptiveHostDelayTest
+{
+    @Test
+    public void testBackoffAndRecovery()
+    {
+        AdaptiveHostDelay ad = new AdaptiveHostDelay();
+        HostQueue hq = host( 500, 1 );
+
+        ad.update( hq, visit( 503, 100 ), 1 );
+        assertEquals( 1100, hq.currentDelay() );
+        assertEquals( 1, hq.currentMaxAccess() );
+
+        ad.update( hq, visit( HTTPSession.TIMEOUT, 30000 ), 1 );
+        assertEquals( 32200, hq.currentDelay() );
+
+        ad.update( hq, visit( HTTPSession.TIMEOUT, 60000 ), 1 );
+        assertEquals( ad.maxDelay(), hq.currentDelay() );
+
+        int last = hq.currentDelay();
+        for( int i = 0; i < 100; ++i ) {
+            ad.update( hq, visit( 200, 20 ), 1 );
+            assertTrue( hq.currentDelay() <= last );
+            last = hq.currentDelay();
+        }
+        assertEquals( ad.minDelay(), hq.currentDelay() );
+    }
+
+    @Test
+    public void testSlowHost()
+    {
+        AdaptiveHostDelay ad = new AdaptiveHostDelay();
+        HostQueue hq = host( 500, 1 );
+
+        ad.update( hq, visit( 200, 2000 ), 1 );
+        assertEquals( 4000, hq.currentDelay() );
+
+        // Not a host failure
+        ad.update( hq, visit( 404, 2000 ), 1 );
+        assertEquals( 4000, hq.currentDelay() );
+    }
+
+    @Test
+    public void testAccessIncrease()
+    {
+        AdaptiveHostDelay ad = new AdaptiveHostDelay();
+        ad.setMaxAccessLimit( 3 );
+        ad.setIncreaseInterval( 4 );
+        HostQueue hq = host( 100, 1 );
+
+        for( int i = 0; i < 3; ++i ) ad.update( hq, visit( 200, 10 ), 1 );
+        assertEquals( 1, hq.currentMaxAccess() );
+        ad.update( hq, visit( 200, 10 ), 1 );
+        assertEquals( 2, hq.currentMaxAccess() );
+
+        for( int i = 0; i < 100; ++i ) ad.update( hq, visit( 200, 10 ), 1 );
+        assertEquals( 3, hq.currentMaxAccess() );
+
+        ad.update( hq, visit( 500, 10 ), 1 );
+        assertEquals( 1, hq.currentMaxAccess() );
+
+        hq = host( 100, 3 );
+        ad.update( hq, visit( 500, 10 ), 3 );
+        assertEquals( 3, hq.currentMaxAccess() );
+    }
+
+    @Test
+    public void testNotVisited()
+    {
+        AdaptiveHostDelay ad = new AdaptiveHostDelay();
+        HostQueue hq = host( 500, 1 );
+
+        UniMap order = new UniMap();
+        order.set( ContentKeys.STATUS, 503 );
+        ad.update( hq, order, 1 );
+        assertEquals( 500, hq.currentDelay() );
+    }
+
+    @Test
+    public void testVisitQueue() throws Exception
+    {
+        VisitQueue vq = new VisitQueue();
+        vq.setDefaultMinHostDelay( 0 );
+        vq.setDefaultMaxAccessPerHost( 2 );
+
+        AdaptiveHostDelay ad = new AdaptiveHostDelay();
+        ad.setMinDelay( 0 );
+        ad.setMaxDelay( 5 );
+        ad.setMaxAccessLimit( 4 );
+        ad.setIncreaseInterval( 2 );
+        vq.setAdaptiveDelay( ad );
+
+        vq = vq.clone();
+        assertSame( ad, vq.adaptiveDelay() );
+
+        final Random rand = new Random( 4321 );
+        int count = 0;
+        for( int h = 0; h < 5; ++h ) {
+            for( int i = 0; i < 100; ++i ) {
+                vq.add( order( "h" + h, i ) );
+                ++count;
+            }
+        }
+
+        UniMap[] held = new UniMap[ 6 ];
+        while( count > 0 ) {
+            int s = rand.nextInt( held.length );
+            if( held[s] != null ) {
+                int status = ( rand.nextInt( 4 ) == 0 ) ? 503 : 200;
+                held[s].set( ContentKeys.STATUS, status );
+                held[s].set( ContentKeys.RESPONSE_TIME, rand.nextInt( 3 ) );
+                vq.release( held[s], null );
+                held[s] = null;
+                --count;
+            }
+            else {
+                held[s] = vq.acquire( 10 );
+            }
+            for( HostQueue hq : vq.hosts() ) {
+                assertTrue( hq.accessCount() <= 4 );
+            }
+        }
+
+        assertEquals( 0, vq.orderCount() );
+        assertEquals( 0, vq.acquiredCount() );
+        assertEquals( 0, vq.hostCount() );
+    }
+
+    private static HostQueue host( int delay, int maxAccess )
+    {
+        return new HostQueue( new DomainKey( "h", null ), delay, maxAccess );
+    }
+
+    private static UniMap visit( int status, int time )
+    {
+        UniMap order = new UniMap();
+        order.set( ContentKeys.STATUS, status );
+        order.set( ContentKeys.RESPONSE_TIME, time );
+        return order;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import static iudex.core.TestOrders.order;
+import static org.junit.Assert.*;
+
+import iudex.http.HTTPKeys;
+
+import java.util.Date;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.gravitext.htmap.UniMap;
+
+public class CompactOrderHeapTest
+{
+    @Test
+    public void testRoundTrip() throws VisitURL.SyntaxException
+    {
+        CompactOrderHeap heap = new CompactOrderHeap( 1 );
+
+        UniMap order = order( "h", 1, 2.5f );
+        order.set( ContentKeys.TYPE, "FEED" );
+        order.set( ContentKeys.NEXT_VISIT_AFTER, new Date( 1000L ) );
+        order.set( ContentKeys.LAST_VISIT, new Date( 500L ) );
+        order.set( HTTPKeys.ETAG, "\"abc\"" );
+        String uhash = order.get( ContentKeys.URL ).uhash();
+        heap.add( order );
+
+        UniMap full = order( "h", 2, 1.0f );
+        full.set( ContentKeys.STATUS, 200 );
+        heap.add( full );
+
+        assertEquals( 2, heap.size() );
+        assertEquals( 2.5f, heap.topPriority(), 0.0f );
+
+        UniMap out = heap.poll();
+        assertNotSame( order, out );
+        assertEquals( order.get( ContentKeys.URL ).toString(),
+                      out.get( ContentKeys.URL ).toString() );
+        assertEquals( uhash, out.get( ContentKeys.URL ).cachedUHash() );
+        assertEquals( "FEED", out.get( ContentKeys.TYPE ) );
+        assertEquals( new Date( 1000L ),
+                      out.get( ContentKeys.NEXT_VISIT_AFTER ) );
+        assertEquals( new Date( 500L ), out.get( ContentKeys.LAST_VISIT ) );
+        assertEquals( "\"abc\"", out.get( HTTPKeys.ETAG ).toString() );
+
+        // Orders with other keys are held as is
+        assertSame( full, heap.poll() );
+        assertNull( heap.poll() );
+    }
+
+    @Test
+    public void testOrder() throws VisitURL.SyntaxException
+    {
+        CompactOrderHeap heap = new CompactOrderHeap();
+        Random rand = new Random( 1234 );
+        for( int i = 0; i < 1000; ++i ) {
+            heap.add( order( "h", i, rand.nextFloat() ) );
+        }
+
+        int count = 0;
+        for( UniMap o : heap ) {
+            assertNotNull( o.get( ContentKeys.URL ) );
+            ++count;
+        }
+        assertEquals( 1000, count );
+
+        float last = Float.MAX_VALUE;
+        while( heap.size() > 0 ) {
+            float p = heap.topPriority();
+            assertTrue( p <= last );
+            assertEquals( p, heap.remove().get( ContentKeys.PRIORITY ), 0.0f );
+            last = p;
+        }
+    }
+
+    @Test
+    public void testVisitQueue() throws Exception
+    {
+        VisitQueue vq = new VisitQueue();
+        vq.setDefaultMinHostDelay( 0 );
+        vq.setCompactOrders( true );
+        vq = vq.clone();
+
+        for( int i = 0; i < 100; ++i ) vq.add( order( "h", i, i ) );
+
+        for( HostQueue hq : vq.hosts() ) assertTrue( hq.isCompact() );
+
+        float last = Float.MAX_VALUE;
+        UniMap o;
+        while( ( o = vq.acquire( 100 ) ) != null ) {
+            float p = o.get( ContentKeys.PRIORITY );
+            assertTrue( p <= last );
+            assertNotNull( o.get( ContentKeys.VISIT_START ) );
+            vq.release( o, null );
+            last = p;
+        }
+        assertEquals( 0, vq.orderCount() );
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import static iudex.core.TestOrders.url;
+import static org.junit.Assert.*;
+
+import iudex.core.VisitQueue.Keying;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.gravitext.htmap.UniMap;
+
+public class DomainKeyingTest
+{
+    @Test
+    public void testDomain() throws Exception
+    {
+        VisitQueue vq = new VisitQueue();
+        addHosts( vq, 4, null );
+        assertEquals( 1, vq.hostCount() );
+        assertEquals( 1, acquireAll( vq, 8 ) );
+    }
+
+    @Test
+    public void testHost() throws Exception
+    {
+        VisitQueue vq = new VisitQueue();
+        vq.configureHost( "example.com", 100, 2 );
+        vq.configureKeying( "www.example.com", Keying.HOST, 0 );
+        addHosts( vq, 4, null );
+        assertEquals( 4, vq.hostCount() );
+
+        for( HostQueue hq : vq.hosts() ) {
+            if( hq.key().subKey() != null ) {
+                assertEquals( 100, hq.minHostDelay() );
+                assertEquals( 2, hq.maxAccessCount() );
+            }
+        }
+
+        assertEquals( 4, acquireAll( vq, 8 ) );
+        assertEquals( 0, vq.orderCount() );
+
+        // Empty sub-queues are removed, the configured domain remains
+        assertEquals( 1, vq.hosts().size() );
+    }
+
+    @Test
+    public void testMaxSubQueues() throws Exception
+    {
+        VisitQueue vq = new VisitQueue();
+        vq.configureKeying( "example.com", Keying.HOST, 2 );
+        addHosts( vq, 20, null );
+        assertTrue( vq.hostCount() <= 2 );
+        assertTrue( acquireAll( vq, 40 ) <= 2 );
+    }
+
+    @Test
+    public void testAddress() throws Exception
+    {
+        VisitQueue vq = new VisitQueue();
+        vq.configureKeying( "example.com", Keying.ADDRESS, 0 );
+        addHosts( vq, 4, "192.0.2.1" );
+        addHosts( vq, 1, null );
+        assertEquals( 2, vq.hostCount() );
+        assertEquals( 2, acquireAll( vq, 8 ) );
+    }
+
+    @Test
+    public void testSharded() throws Exception
+    {
+        VisitQueue template = new VisitQueue();
+        template.configureKeying( "example.com", Keying.HOST, 0 );
+
+        VisitQueue vq = new ShardedVisitQueue( template, 4 ).clone();
+        addHosts( vq, 4, null );
+        assertEquals( 4, vq.hostCount() );
+        assertEquals( 4, acquireAll( vq, 8 ) );
+    }
+
+    @Test
+    public void testInterned() throws Exception
+    {
+        VisitQueue vq = new VisitQueue();
+        vq.configureHost( "example.com", "FEED", 100, 1 );
+        vq.configureKeying( "other.com", Keying.HOST, 2 );
+
+        UniMap a = url( "http://a.example.com/1" );
+        UniMap b = url( "http://b.example.com/2" );
+        UniMap c = url( "http://c.other.com/" );
+        vq.add( a );
+        vq.add( c );
+
+        // Keys of existing HostQueues are interned
+        DomainKey key = vq.orderKey( a );
+        assertSame( key, vq.orderKey( b ) );
+        assertEquals( new DomainKey( "example.com", null ), key );
+
+        b.set( ContentKeys.TYPE, "FEED" );
+        assertEquals( "FEED", vq.orderKey( b ).type() );
+        assertSame( vq.orderKey( b ), vq.orderKey( b ) );
+
+        DomainKey subKey = vq.orderKey( c );
+        assertEquals( "other.com", subKey.domain() );
+        assertNotNull( subKey.subKey() );
+        assertSame( subKey, vq.orderKey( url( "http://c.other.com/x" ) ) );
+
+        assertEquals( 2, acquireAll( vq, 2 ) );
+
+        // Default keys are removed with their HostQueue
+        assertNotSame( key, vq.orderKey( a ) );
+        assertEquals( key, vq.orderKey( a ) );
+        assertNotSame( subKey, vq.orderKey( c ) );
+    }
+
+    private static void addHosts( VisitQueue vq, int hosts, String address )
+        throws VisitURL.SyntaxException
+    {
+        for( int h = 0; h < hosts; ++h ) {
+            String host = ( ( address != null ) ? "a" : "h" ) + h;
+            UniMap order = url( "http://" + host + ".example.com/" );
+            if( address != null ) order.set( ContentKeys.ADDRESS, address );
+            vq.add( order );
+        }
+    }
+
+    /**
+     * Acquire up to max orders concurrently, then release all.
+     * @return the number of orders acquired
+     */
+    private static int acquireAll( VisitQueue vq, int max )
+        throws InterruptedException
+    {
+        List<UniMap> acquired = new ArrayList<UniMap>();
+        UniMap order;
+        while( ( acquired.size() < max ) &&
+               ( ( order = vq.acquire( 50 ) ) != null ) ) {
+            acquired.add( order );
+        }
+        for( UniMap o : acquired ) vq.release( o, null );
+        return acquired.size();
+    }
+}
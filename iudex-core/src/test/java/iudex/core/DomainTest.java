@@ -19,6 +19,10 @@ package iudex.core;
 import static org.junit.Assert.*;
 import iudex.core.Domains;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.Test;
 
 public class DomainTest
@@ -49,6 +53,42 @@ public class DomainTest
         return Domains.registrationLevelDomain( name );
     }
 
+    @Test
+    public void testTrieMatchesSets()
+    {
+        List<String> rules = new ArrayList<String>();
+        rules.addAll( TLDSets.KNOWN_TLDS );
+        rules.addAll( TLDSets.TLD_PARENTS );
+        rules.addAll( TLDSets.REG_EXCEPTIONS );
+
+        final String[] prefixes = { "", "a.", "www.b-c.", "X.Yz.", ".", "a.." };
+        final Random rand = new Random( 1234L );
+
+        for( String rule : rules ) {
+            for( String prefix : prefixes ) {
+                assertSameRLD( prefix + rule );
+                assertSameRLD( prefix + rule + "." );
+                assertSameRLD( ( prefix + rule ).toUpperCase() );
+            }
+            assertSameRLD( rule.substring( rand.nextInt( rule.length() ) ) );
+        }
+
+        final String[] odd = { null, "", ".", "..", "...", "a", "A.", ".com",
+                               "a..com", "a.com..", "COM", "www.Foo.CO.uk",
+                               "x.y.ck", "www.ck", "a.www.ck", "a..ck",
+                               "W.City.Kawasaki.JP", "WWW.\u00C9TAT.FR",
+                               "\u0130.com", "a.\u03A3\u03A3.gr",
+                               "foo.\u4E2A\u4EBA.hk", "\uD801\uDC00.org" };
+        for( String name : odd ) assertSameRLD( name );
+    }
+
+    private void assertSameRLD( String name )
+    {
+        assertEquals( name,
+                      Domains.registrationLevelDomainBySets( name ),
+                      Domains.registrationLevelDomain( name ) );
+    }
+
     @Test
     public void testParent()
     {
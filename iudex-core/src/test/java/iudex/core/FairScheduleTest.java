@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import static iudex.core.TestOrders.orders;
+import static org.junit.Assert.*;
+
+import iudex.core.VisitQueue.Schedule;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.gravitext.htmap.UniMap;
+
+public class FairScheduleTest
+{
+    @Test
+    public void testLongTail() throws Exception
+    {
+        VisitQueue vq = createQueue();
+        add( vq, "big.com", 20, 9.0f );
+        for( int h = 0; h < 9; ++h ) add( vq, "tail" + h + ".com", 2, 1.0f );
+
+        // Every host is taken once before any host is taken twice
+        Set<String> first = new HashSet<String>();
+        for( int i = 0; i < 10; ++i ) {
+            assertTrue( first.add( takeRelease( vq ) ) );
+        }
+    }
+
+    @Test
+    public void testWeights() throws Exception
+    {
+        VisitQueue vq = createQueue();
+        vq.setHostWeight( "a.com", 3.0f );
+        vq.setTypeWeight( "FEED", 2.0f );
+
+        add( vq, "a.com", 100, 1.0f );
+        add( vq, "b.com", 100, 5.0f );
+        add( vq, "c.com", 100, 1.0f );
+        for( UniMap o : orders( "d.com", 100, 1.0f ) ) {
+            o.set( ContentKeys.TYPE, "FEED" );
+            vq.add( o );
+        }
+
+        Map<String,Integer> counts = takeRelease( vq, 70 );
+        assertEquals( 30, counts.get( "a.com" ), 1 );
+        assertEquals( 10, counts.get( "b.com" ), 1 );
+        assertEquals( 10, counts.get( "c.com" ), 1 );
+        assertEquals( 20, counts.get( "d.com" ), 1 );
+    }
+
+    @Test
+    public void testNewHost() throws Exception
+    {
+        VisitQueue vq = createQueue();
+        add( vq, "a.com", 100, 1.0f );
+        add( vq, "b.com", 100, 1.0f );
+        takeRelease( vq, 40 );
+
+        // A host added late starts at the current virtual time, and
+        // has no backlog of credit
+        add( vq, "c.com", 100, 1.0f );
+        Map<String,Integer> counts = takeRelease( vq, 30 );
+        assertEquals( 10, counts.get( "c.com" ), 1 );
+        assertEquals( 10, counts.get( "a.com" ), 1 );
+    }
+
+    @Test
+    public void testClone()
+    {
+        VisitQueue template = createQueue();
+        template.setHostWeight( "a.com", "FEED", 2.0f );
+        template.setTypeWeight( "PAGE", 0.5f );
+
+        VisitQueue vq = template.clone();
+        assertEquals( Schedule.FAIR, vq.schedule() );
+        assertEquals( 2.0f, vq.hostWeight( new DomainKey( "a.com", "FEED" ) ),
+                      0.0f );
+        assertEquals( 1.0f, vq.hostWeight( new DomainKey( "a.com", null ) ),
+                      0.0f );
+
+        ShardedVisitQueue sq = new ShardedVisitQueue( template, 4 );
+        assertEquals( Schedule.FAIR, sq.schedule() );
+        assertEquals( 2.0f,
+            sq.hostWeights().get( new DomainKey( "a.com", "FEED" ) ),
+            0.0f );
+        assertEquals( 0.5f, sq.clone().typeWeights().get( "PAGE" ), 0.0f );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testBadWeight()
+    {
+        new VisitQueue().setTypeWeight( "PAGE", 0.0f );
+    }
+
+    private static VisitQueue createQueue()
+    {
+        VisitQueue vq = new VisitQueue();
+        vq.setDefaultMinHostDelay( 0 );
+        vq.setSchedule( Schedule.FAIR );
+        return vq;
+    }
+
+    /**
+     * Take and release orders, with a pause before each such that all
+     * hosts are ready, and thus contending.
+     */
+    private static Map<String,Integer> takeRelease( VisitQueue vq, int n )
+        throws InterruptedException
+    {
+        Map<String,Integer> counts = new HashMap<String,Integer>();
+        for( int i = 0; i < n; ++i ) {
+            String host = takeRelease( vq );
+            Integer c = counts.get( host );
+            counts.put( host, ( c == null ) ? 1 : ( c + 1 ) );
+        }
+        return counts;
+    }
+
+    private static String takeRelease( VisitQueue vq )
+        throws InterruptedException
+    {
+        Thread.sleep( 2 );
+        UniMap order = vq.acquire( 100 );
+        assertNotNull( order );
+        vq.release( order, null );
+        return order.get( ContentKeys.URL ).host();
+    }
+
+    private static void add( VisitQueue vq,
+                             String host,
+                             int count,
+                             float priority )
+        throws VisitURL.SyntaxException
+    {
+        vq.addAll( orders( host, count, priority ) );
+    }
+}
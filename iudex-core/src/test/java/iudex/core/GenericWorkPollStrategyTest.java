@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import static iudex.core.TestOrders.order;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.gravitext.htmap.UniMap;
+
+public class GenericWorkPollStrategyTest
+{
+    @Test
+    public void testAsyncReplace() throws Exception
+    {
+        TestPoller poller = new TestPoller( true );
+        poller.setAsyncPoll( true );
+
+        VisitQueue first = poller.pollWork( null );
+        assertEquals( 10, first.orderCount() );
+        assertEquals( 1, poller.pollCount() );
+
+        // Empty queue: poll is due, so start async poll
+        drain( first );
+        long wait = poller.nextPollWork( first, 20 * 1000 );
+        assertTrue( wait > 0 );
+        assertTrue( poller.isPolling() );
+
+        wait = awaitDone( poller, first );
+        assertEquals( 0, wait );
+        assertEquals( 10, poller.stagedOrderCount() );
+        assertTrue( poller.lastPollLatency() >= 100 );
+
+        VisitQueue second = poller.pollWork( null );
+        assertNotSame( first, second );
+        assertEquals( 10, second.orderCount() );
+        assertEquals( 0, poller.stagedOrderCount() );
+        assertEquals( 2, poller.pollCount() );
+
+        poller.shutdown();
+    }
+
+    @Test
+    public void testAsyncAdd() throws Exception
+    {
+        TestPoller poller = new TestPoller( false );
+        poller.setAsyncPoll( true );
+
+        VisitQueue vq = poller.pollWork( null );
+        drain( vq );
+
+        assertTrue( poller.nextPollWork( vq, 20 * 1000 ) > 0 );
+        assertEquals( 0, awaitDone( poller, vq ) );
+
+        // Staged, then added to the current queue on pollWork
+        assertEquals( 10, poller.stagedOrderCount() );
+        assertEquals( 0, vq.orderCount() );
+        assertSame( vq, poller.pollWork( vq ) );
+        assertEquals( 10, vq.orderCount() );
+        assertEquals( 0, poller.stagedOrderCount() );
+        assertEquals( 2, poller.pollCount() );
+
+        poller.shutdown();
+    }
+
+    @Test
+    public void testAsyncAddThenReplace() throws Exception
+    {
+        TestPoller poller = new TestPoller( false );
+        poller.setAsyncPoll( true );
+
+        VisitQueue vq = poller.pollWork( null );
+        drain( vq );
+
+        assertTrue( poller.nextPollWork( vq, 20 * 1000 ) > 0 );
+        assertEquals( 0, awaitDone( poller, vq ) );
+
+        // Replacement now required: staged orders become the new queue
+        // without polling again.
+        poller.setReplace( true );
+        VisitQueue next = poller.pollWork( vq );
+        assertNotSame( vq, next );
+        assertEquals( 10, next.orderCount() );
+        assertEquals( 0, poller.stagedOrderCount() );
+        assertEquals( 2, poller.pollCount() );
+        assertEquals( 2, poller.batches() );
+
+        poller.shutdown();
+        assertEquals( 0, poller.discarded );
+    }
+
+    @Test
+    public void testShutdownDiscard() throws Exception
+    {
+        TestPoller poller = new TestPoller( true );
+        poller.setAsyncPoll( true );
+
+        VisitQueue vq = poller.pollWork( null );
+        drain( vq );
+        poller.nextPollWork( vq, 20 * 1000 );
+        awaitDone( poller, vq );
+
+        poller.shutdown();
+        assertEquals( 10, poller.discarded );
+        assertEquals( 0, poller.stagedOrderCount() );
+    }
+
+    @Test
+    public void testAbandonHung() throws Exception
+    {
+        TestPoller poller = new TestPoller( true );
+        poller.setAsyncPoll( true );
+        poller.setMaxAsyncWait( 50 );
+
+        VisitQueue vq = poller.pollWork( null );
+        drain( vq );
+
+        poller.hangNext();
+        assertTrue( poller.nextPollWork( vq, 20 * 1000 ) > 0 );
+        assertTrue( poller.isPolling() );
+
+        // Async poll abandoned after maxAsyncWait, polling synchronously
+        VisitQueue next = poller.pollWork( vq );
+        assertNotSame( vq, next );
+        assertEquals( 10, next.orderCount() );
+        assertFalse( poller.isPolling() );
+        assertEquals( 0, poller.stagedOrderCount() );
+
+        // Abandoned orders are discarded once the hung poll completes
+        poller.unhang();
+        for( int i = 0; ( poller.discarded < 10 ) && ( i < 100 ); ++i ) {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 10, poller.discarded );
+
+        poller.shutdown();
+    }
+
+    private static long awaitDone( TestPoller poller, VisitQueue vq )
+        throws InterruptedException
+    {
+        long wait;
+        while( ( wait = poller.nextPollWork( vq, 20 * 1000 ) ) > 0 ) {
+            assertTrue( wait <= 100 );
+            Thread.sleep( wait );
+        }
+        return wait;
+    }
+
+    private static void drain( VisitQueue vq ) throws InterruptedException
+    {
+        List<UniMap> out = new ArrayList<UniMap>();
+        while( vq.orderCount() > 0 ) {
+            vq.acquire( 100, 50, out );
+            for( UniMap o : out ) vq.release( o, null );
+            out.clear();
+        }
+    }
+
+    private static final class TestPoller extends GenericWorkPollStrategy
+    {
+        TestPoller( boolean replace )
+        {
+            _replace = replace;
+            VisitQueue template = new VisitQueue();
+            template.setDefaultMinHostDelay( 0 );
+            setVisitQueueFactory( new VisitQueueFactory( template ) );
+        }
+
+        void setReplace( boolean replace )
+        {
+            _replace = replace;
+        }
+
+        int batches()
+        {
+            return _batch;
+        }
+
+        /**
+         * Block the next poll until unhang.
+         */
+        void hangNext()
+        {
+            _hang.set( true );
+        }
+
+        void unhang()
+        {
+            _unhang.countDown();
+        }
+
+        @Override
+        public boolean shouldReplaceQueue( VisitQueue current )
+        {
+            return _replace;
+        }
+
+        @Override
+        public void pollWorkImpl( VisitQueue out )
+        {
+            if( _hang.compareAndSet( true, false ) ) {
+                try {
+                    _unhang.await();
+                }
+                catch( InterruptedException x ) {
+                    // Continue, as a poll completing on shutdown
+                }
+            }
+
+            ++_batch;
+            if( _batch > 1 ) {
+                try {
+                    Thread.sleep( 100 );
+                }
+                catch( InterruptedException x ) {
+                    return;
+                }
+            }
+
+            List<UniMap> orders = new ArrayList<UniMap>();
+            try {
+                for( int i = 0; i < 10; ++i ) {
+                    orders.add( order( "h" + i, _batch ) );
+                }
+            }
+            catch( VisitURL.SyntaxException x ) {
+                throw new RuntimeException( x );
+            }
+            out.addAll( orders );
+        }
+
+        @Override
+        public void discard( VisitQueue current )
+        {
+            discarded += current.orderCount();
+        }
+
+        volatile int discarded = 0;
+        private volatile boolean _replace;
+        private volatile int _batch = 0;
+        private final AtomicBoolean _hang = new AtomicBoolean( false );
+        private final CountDownLatch _unhang = new CountDownLatch( 1 );
+    }
+}
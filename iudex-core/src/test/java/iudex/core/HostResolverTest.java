@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import static iudex.core.TestOrders.rootOrders;
+import static org.junit.Assert.*;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.gravitext.htmap.UniMap;
+
+public class HostResolverTest
+{
+    @After
+    public void close()
+    {
+        _resolver.close();
+    }
+
+    @Test
+    public void testResolve() throws Exception
+    {
+        List<UniMap> orders =
+            rootOrders( "a.com", "b.com", "a.com", "bad.com" );
+        assertEquals( 3, _resolver.resolve( orders ) );
+        assertEquals( 3, _resolver._lookups.get() );
+
+        assertEquals( "192.0.2.1", orders.get( 0 ).get( ContentKeys.ADDRESS ) );
+        assertEquals( "192.0.2.1", orders.get( 1 ).get( ContentKeys.ADDRESS ) );
+        assertNull( orders.get( 3 ).get( ContentKeys.ADDRESS ) );
+
+        // Cached, including failure
+        assertEquals( 3, _resolver.resolve(
+            rootOrders( "a.com", "b.com", "a.com", "bad.com" ) ) );
+        assertEquals( 3, _resolver._lookups.get() );
+
+        UniMap order = rootOrders( "b.com" ).get( 0 );
+        assertTrue( _resolver.resolveCached( order ) );
+        assertFalse(
+            _resolver.resolveCached( rootOrders( "c.com" ).get( 0 ) ) );
+    }
+
+    @Test
+    public void testExpire() throws Exception
+    {
+        _resolver.setTTL( 10 );
+        _resolver.resolve( rootOrders( "a.com" ) );
+        Thread.sleep( 20 );
+        assertNull( _resolver.cachedAddress( "a.com" ) );
+        _resolver.resolve( rootOrders( "a.com" ) );
+        assertEquals( 2, _resolver._lookups.get() );
+    }
+
+    @Test
+    public void testMaxWait() throws Exception
+    {
+        _resolver.setMaxWait( 10 );
+        List<UniMap> orders = rootOrders( "slow.com", "a.com" );
+        assertEquals( 1, _resolver.resolve( orders ) );
+        assertNull( orders.get( 0 ).get( ContentKeys.ADDRESS ) );
+
+        // Lookup completes in background
+        Thread.sleep( 300 );
+        assertEquals( "192.0.2.9", _resolver.cachedAddress( "slow.com" ) );
+    }
+
+    @Test
+    public void testAddressPoliteness() throws Exception
+    {
+        runAddressPoliteness( new VisitQueue() );
+        runAddressPoliteness( new ShardedVisitQueue( 4 ) );
+    }
+
+    private void runAddressPoliteness( VisitQueue template ) throws Exception
+    {
+        template.setResolver( _resolver );
+        template.setAddressPoliteness( true );
+        template.configureKeying( "c.com", VisitQueue.Keying.DOMAIN, 0 );
+        template.configureHost( "192.0.2.1", 0, 2 );
+
+        VisitQueue vq = template.clone();
+        vq.addAll( rootOrders( "a.com", "www.b.com", "c.com", "bad.com" ) );
+        vq.add( rootOrders( "a.com" ).get( 0 ) );
+
+        // a.com and b.com share an address, c.com excepted
+        assertEquals( 3, vq.hostCount() );
+        assertEquals( 5, vq.orderCount() );
+
+        List<UniMap> acquired = new ArrayList<UniMap>();
+        UniMap order;
+        while( ( order = vq.acquire( 50 ) ) != null ) acquired.add( order );
+        assertEquals( 4, acquired.size() );
+
+        UniMap next = rootOrders( "www.b.com" ).get( 0 );
+        vq.release( acquired.get( 0 ), next );
+        assertEquals( "192.0.2.1", next.get( ContentKeys.ADDRESS ) );
+        for( UniMap o : acquired.subList( 1, 4 ) ) vq.release( o, null );
+        assertEquals( 2, vq.orderCount() );
+    }
+
+    @Test
+    public void testStickyAddressKeying() throws Exception
+    {
+        runStickyAddressKeying( new VisitQueue() );
+        runStickyAddressKeying( new ShardedVisitQueue( 4 ) );
+    }
+
+    private void runStickyAddressKeying( VisitQueue template )
+        throws Exception
+    {
+        template.setAddressPoliteness( true );
+        VisitQueue vq = template.clone();
+
+        // As if resolved, then expired or exceeding maxWait
+        List<UniMap> orders = rootOrders( "a.com", "a.com", "b.com", "b.com" );
+        orders.get( 0 ).set( ContentKeys.ADDRESS, "192.0.2.1" );
+        orders.get( 3 ).set( ContentKeys.ADDRESS, "192.0.2.2" );
+        for( UniMap o : orders ) vq.add( o );
+
+        // Each host keyed as its first order
+        assertEquals( 2, vq.hostCount() );
+        assertEquals( 4, vq.orderCount() );
+
+        List<UniMap> acquired = new ArrayList<UniMap>();
+        UniMap order;
+        while( ( order = vq.acquire( 50 ) ) != null ) acquired.add( order );
+        assertEquals( 2, acquired.size() );
+
+        for( UniMap o : acquired ) vq.release( o, null );
+        assertEquals( 2, vq.orderCount() );
+    }
+
+    private static final class TestResolver extends HostResolver
+    {
+        TestResolver()
+        {
+            super( 4 );
+        }
+
+        @Override
+        protected String lookup( String host ) throws UnknownHostException
+        {
+            _lookups.incrementAndGet();
+            if( host.equals( "slow.com" ) ) {
+                try {
+                    Thread.sleep( 100 );
+                }
+                catch( InterruptedException x ) {
+                    throw new UnknownHostException( host );
+                }
+                return "192.0.2.9";
+            }
+            if( ! host.startsWith( "bad" ) ) return "192.0.2.1";
+            throw new UnknownHostException( host );
+        }
+
+        final AtomicInteger _lookups = new AtomicInteger();
+    }
+
+    private final TestResolver _resolver = new TestResolver();
+}
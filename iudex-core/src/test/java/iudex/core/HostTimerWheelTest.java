@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HostTimerWheelTest
+{
+    @Test
+    public void testBasic()
+    {
+        HostTimerWheel wheel = new HostTimerWheel( 1000 );
+        assertEquals( Long.MAX_VALUE, wheel.nextVisit() );
+
+        HostQueue h1 = host( "h1", 1000, 500 );
+        HostQueue h2 = host( "h2", 1000, 50 );
+        wheel.add( h1 );
+        wheel.add( h2 );
+        assertTrue( wheel.contains( h1 ) );
+        assertEquals( 2, wheel.size() );
+        assertEquals( 1050, wheel.nextVisit() );
+
+        List<HostQueue> out = new ArrayList<HostQueue>();
+        wheel.expire( 1049, out );
+        assertTrue( out.isEmpty() );
+
+        wheel.expire( 1050, out );
+        assertEquals( 1, out.size() );
+        assertSame( h2, out.get( 0 ) );
+        assertFalse( wheel.contains( h2 ) );
+        assertEquals( 1500, wheel.nextVisit() );
+
+        out.clear();
+        wheel.expire( 99999, out );
+        assertSame( h1, out.get( 0 ) );
+        assertTrue( wheel.isEmpty() );
+    }
+
+    @Test
+    public void testRandomAgainstPriorityQueue()
+    {
+        final Random rand = new Random( 1234 );
+        long now = 7777;
+
+        HostTimerWheel wheel = new HostTimerWheel( now );
+        PriorityQueue<HostQueue> pq =
+            new PriorityQueue<HostQueue>( 64,
+                                          new HostQueue.NextVisitComparator() );
+        List<HostQueue> out = new ArrayList<HostQueue>();
+
+        for( int i = 0; i < 20000; ++i ) {
+            if( rand.nextInt( 3 ) > 0 ) {
+                int delay = delay( rand );
+                HostQueue hq = host( "h" + i, now, delay );
+                wheel.add( hq );
+                pq.add( hq );
+            }
+            else {
+                now += rand.nextInt( 5000 );
+            }
+
+            out.clear();
+            wheel.expire( now, out );
+            for( HostQueue hq : out ) {
+                assertTrue( hq.nextVisit() <= now );
+                assertTrue( pq.remove( hq ) );
+            }
+            if( ! pq.isEmpty() ) {
+                assertTrue( pq.peek().nextVisit() > now );
+                assertEquals( pq.peek().nextVisit(), wheel.nextVisit() );
+            }
+            else {
+                assertEquals( Long.MAX_VALUE, wheel.nextVisit() );
+            }
+            assertEquals( pq.size(), wheel.size() );
+        }
+    }
+
+    private static int delay( Random rand )
+    {
+        switch( rand.nextInt( 4 ) ) {
+        case 0:  return rand.nextInt( 64 );
+        case 1:  return rand.nextInt( 5000 );
+        case 2:  return rand.nextInt( 300 * 1000 );
+        default: return rand.nextInt( 6 * 60 * 60 * 1000 );
+        }
+    }
+
+    private static HostQueue host( String name, long now, int delay )
+    {
+        HostQueue hq = new HostQueue( new DomainKey( name, null ), delay, 1 );
+        hq.setLastTake( now );
+        return hq;
+    }
+}
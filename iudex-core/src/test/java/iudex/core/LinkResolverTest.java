@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.gravitext.htmap.UniMap;
+
+public class LinkResolverTest
+{
+    @Test
+    public void testReferences() throws Exception
+    {
+        LinkResolver resolver =
+            new LinkResolver( VisitURL.normalize( "http://h.c/foo/x" ) );
+
+        List<UniMap> refs = resolver.references( Arrays.asList(
+            "bar", "/foo/bar", "http://h.c/foo/bar#a", "//o.c/a",
+            "HTTP://O.C/a", "http://[h/", "../b?q=1", "ftp://h.c/" ) );
+
+        assertEquals( 3, refs.size() );
+        assertEquals( "http://h.c/foo/bar",
+                      refs.get( 0 ).get( ContentKeys.URL ).url() );
+        assertEquals( "http://o.c/a",
+                      refs.get( 1 ).get( ContentKeys.URL ).url() );
+        assertEquals( "http://h.c/b?q=1",
+                      refs.get( 2 ).get( ContentKeys.URL ).url() );
+        assertEquals( 3, resolver.duplicates() );
+        assertEquals( 2, resolver.invalid() );
+    }
+
+    @Test
+    public void testNoBase() throws Exception
+    {
+        LinkResolver resolver = new LinkResolver( null );
+        assertEquals( "http://h.c/",
+                      resolver.resolve( "http://H.C" ).url() );
+        assertNull( resolver.resolve( "http://h.c/" ) );
+        try {
+            resolver.resolve( "/foo" );
+            fail();
+        }
+        catch( VisitURL.SyntaxException x ) {}
+    }
+
+    /**
+     * Compare VisitURL.resolve to resolution via URI, over combinations
+     * of bases and refs.
+     */
+    @Test
+    public void testResolveMatchesURI() throws Exception
+    {
+        final String[] bases = { "http://h.c/", "http://h.c/foo",
+                                 "http://h.c/foo/", "http://h.c/foo/x/y",
+                                 "https://H.c:8443/a?q=1",
+                                 "http://h.c:8080", "http://u@h.c/a/b" };
+        final String[] refs = { "", " ", ".", "..", "bar", "./bar",
+                                "../bar", "bar?q=1", "?q=2", "#f",
+                                "/", "/bar", "/bar/../baz", "/a b",
+                                " /bar", "/bar?q=1#f", "/%zz", "//",
+                                "//o.c", "//O.c:80/a", "//u@o.c/",
+                                "///a", "http://o.c/a", "HTTPS://o.c",
+                                "ftp://o.c/", "c d", "/a|b" };
+        for( String b : bases ) {
+            final VisitURL base = VisitURL.trust( b );
+            for( String ref : refs ) {
+                String expected = null;
+                try {
+                    expected = new VisitURL( VisitURL.normalize(
+                        new URI( b ).resolve( VisitURL.preEncode( ref ) ) ) )
+                        .url();
+                }
+                catch( Exception x ) {}
+
+                String actual = null;
+                try {
+                    actual = base.resolve( ref ).url();
+                }
+                catch( VisitURL.SyntaxException x ) {}
+
+                assertEquals( b + " + " + ref, expected, actual );
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import static iudex.core.TestOrders.order;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.gravitext.htmap.UniMap;
+
+public class OrderSpillTest
+{
+    @Test
+    public void testCodec() throws VisitURL.SyntaxException
+    {
+        OrderCodec codec = new OrderCodec();
+        UniMap order = order( "h", 3, 0.5f );
+        order.set( ContentKeys.NEXT_VISIT_AFTER, new Date( 1234567L ) );
+        order.set( ContentKeys.REFERER, order( "o", 1, 0f ) ); // Not coded
+
+        ByteBuffer buf = ByteBuffer.allocate( 256 );
+        codec.encode( order, buf );
+        buf.flip();
+        UniMap out = codec.decode( buf );
+
+        assertEquals( 0, buf.remaining() );
+        assertEquals( order.get( ContentKeys.URL ),
+                      out.get( ContentKeys.URL ) );
+        assertEquals( 0.5f, out.get( ContentKeys.PRIORITY ), 0.0f );
+        assertEquals( new Date( 1234567L ),
+                      out.get( ContentKeys.NEXT_VISIT_AFTER ) );
+        assertNull( out.get( ContentKeys.LAST_VISIT ) );
+        assertNull( out.get( ContentKeys.REFERER ) );
+
+        assertFalse( codec.canEncode( order ) );
+        assertTrue( codec.canEncode( out ) );
+    }
+
+    @Test
+    public void testUncodedResident() throws Exception
+    {
+        File dir = new File( "./target/test_spill_uncoded" );
+
+        VisitQueue vq = new VisitQueue();
+        vq.setDefaultMinHostDelay( 0 );
+        vq.setSpill( dir, new OrderCodec() );
+        vq.setMaxResidentPerHost( 2 );
+        vq = vq.clone();
+
+        UniMap referer = order( "o", 1, 0f );
+        for( int i = 0; i < 6; ++i ) {
+            UniMap o = order( "h", i, 6 - i );
+            if( i % 2 == 1 ) o.set( ContentKeys.REFERER, referer );
+            vq.add( o );
+        }
+        // Orders with REFERER (not coded) are kept resident
+        assertEquals( 6, vq.orderCount() );
+        assertEquals( 2, vq.spilledCount() );
+
+        int withReferer = 0;
+        UniMap order;
+        while( ( order = vq.acquire( 100 ) ) != null ) {
+            if( order.get( ContentKeys.REFERER ) != null ) ++withReferer;
+            vq.release( order, null );
+        }
+        assertEquals( 3, withReferer );
+        assertEquals( 0, vq.orderCount() );
+        vq.close();
+    }
+
+    @Test
+    public void testVisitQueue() throws Exception
+    {
+        File dir = new File( "./target/test_spill" );
+
+        VisitQueue vq = new VisitQueue();
+        vq.setDefaultMinHostDelay( 0 );
+        vq.setSpill( dir, new OrderCodec() );
+        vq.setMaxResidentPerHost( 4 );
+        vq.setSpillSegmentSize( 1024 );
+        vq = vq.clone();
+
+        final int hosts = 3;
+        final int perHost = 200;
+        for( int h = 0; h < hosts; ++h ) {
+            for( int i = 0; i < perHost; ++i ) {
+                vq.add( order( "h" + h, i, perHost - i ) );
+            }
+        }
+
+        assertEquals( hosts * perHost, vq.orderCount() );
+        assertEquals( hosts * ( perHost - 4 ), vq.spilledCount() );
+
+        int[] next = new int[ hosts ];
+        int count = 0;
+        UniMap order;
+        while( ( order = vq.acquire( 100 ) ) != null ) {
+            String path = order.get( ContentKeys.URL ).toString();
+            int h = path.charAt( "http://h".length() ) - '0';
+            assertEquals( "http://h" + h + ".com/" + next[h], path );
+            ++next[h];
+            ++count;
+            vq.release( order, null );
+        }
+
+        assertEquals( hosts * perHost, count );
+        assertEquals( 0, vq.orderCount() );
+        assertEquals( 0, vq.spilledCount() );
+
+        vq.close();
+        File[] remaining = dir.listFiles();
+        assertTrue( ( remaining == null ) || ( remaining.length == 0 ) );
+    }
+
+    @Test
+    public void testSegments() throws Exception
+    {
+        File dir = OrderSpill.uniqueDirectory( new File( "./target" ) );
+        OrderSpill spill = new OrderSpill( dir, new OrderCodec(), 256 );
+
+        long head = -1L, tail = -1L;
+        for( int i = 0; i < 20; ++i ) {
+            tail = spill.append( tail, order( "h", i, 1.0f ) );
+            if( head < 0 ) head = tail;
+        }
+        assertEquals( 20, spill.liveCount() );
+        assertTrue( spill.segmentCount() > 1 );
+
+        for( int i = 0; i < 20; ++i ) {
+            UniMap order = spill.read( head );
+            assertEquals( "http://h.com/" + i,
+                          order.get( ContentKeys.URL ).toString() );
+            long next = spill.next( head );
+            spill.free( head );
+            head = next;
+        }
+        assertEquals( -1L, head );
+        assertEquals( 0, spill.liveCount() );
+        assertEquals( 1, spill.segmentCount() );
+
+        spill.close();
+        assertFalse( dir.exists() );
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import static iudex.core.TestOrders.order;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.gravitext.htmap.UniMap;
+
+public class ShardedVisitQueueTest
+{
+    @Test
+    public void testPriorityPerHost() throws Exception
+    {
+        ShardedVisitQueue vq = new ShardedVisitQueue( 4 );
+        vq.setDefaultMinHostDelay( 0 );
+
+        vq.add( order( "h1", 1, 1.1f ) );
+        vq.add( order( "h1", 2, 1.3f ) );
+        vq.add( order( "h1", 3, 1.2f ) );
+
+        assertEquals( 1, vq.hostCount() );
+        assertEquals( 3, vq.orderCount() );
+
+        float last = Float.MAX_VALUE;
+        for( int i = 0; i < 3; ++i ) {
+            UniMap o = vq.acquire( 100 );
+            assertNotNull( o );
+            float p = o.get( ContentKeys.PRIORITY );
+            assertTrue( p < last );
+            last = p;
+            vq.release( o, null );
+        }
+        assertNull( vq.acquire( 10 ) );
+        assertEquals( 0, vq.orderCount() );
+        assertEquals( 0, vq.hostCount() );
+    }
+
+    @Test
+    public void testConfigure() throws Exception
+    {
+        VisitQueue template = new VisitQueue();
+        template.configureHost( "www.h2.com", 0, 2 );
+        template.configureHost( "h3.com", "ALT", 0, 1 );
+
+        ShardedVisitQueue vq = new ShardedVisitQueue( template, 8 );
+        assertEquals( 8, vq.shardCount() );
+
+        vq = vq.clone();
+        vq.add( order( "h2", 1, 1.0f ) );
+        vq.add( order( "h2", 2, 1.0f ) );
+
+        UniMap o1 = vq.acquire( 100 );
+        UniMap o2 = vq.acquire( 100 );
+        assertNotNull( o1 );
+        assertNotNull( o2 );
+        assertEquals( 2, vq.acquiredCount() );
+
+        vq.release( o1, null );
+        vq.release( o2, null );
+        assertEquals( 0, vq.acquiredCount() );
+
+        boolean found = false;
+        for( HostQueue hq : vq.hosts() ) {
+            if( "ALT".equals( hq.key().type() ) ) found = true;
+        }
+        assertTrue( found );
+    }
+
+    @Test
+    public void testBatchAcquire() throws Exception
+    {
+        ShardedVisitQueue vq = new ShardedVisitQueue( 4 );
+        vq.setDefaultMinHostDelay( 0 );
+        vq.setMaxAccessTotal( 5 );
+
+        for( int h = 0; h < 8; ++h ) {
+            for( int i = 0; i < 2; ++i ) {
+                vq.add( order( "h" + h, i, 1.0f ) );
+            }
+        }
+
+        List<UniMap> batch = new ArrayList<UniMap>();
+        assertEquals( 5, vq.acquire( 10, 100, batch ) );
+        assertEquals( 5, batch.size() );
+        assertEquals( 5, vq.acquiredCount() );
+
+        Set<String> domains = new HashSet<String>();
+        for( UniMap o : batch ) {
+            assertTrue( domains.add( o.get( ContentKeys.URL ).domain() ) );
+        }
+
+        List<UniMap> more = new ArrayList<UniMap>();
+        assertEquals( 0, vq.acquire( 10, 10, more ) );
+
+        for( UniMap o : batch ) vq.release( o, null );
+        assertEquals( 0, vq.acquiredCount() );
+
+        int total = 0;
+        int count;
+        while( ( count = vq.acquire( 10, 100, more ) ) > 0 ) {
+            total += count;
+            for( UniMap o : more ) vq.release( o, null );
+            more.clear();
+        }
+        assertEquals( 11, total );
+        assertEquals( 0, vq.orderCount() );
+    }
+
+    @Test
+    public void testConcurrent() throws Exception
+    {
+        final ShardedVisitQueue vq = new ShardedVisitQueue( 8 );
+        vq.setDefaultMinHostDelay( 2 );
+        vq.setMaxAccessTotal( 5 );
+
+        final int hosts = 50;
+        final int perHost = 20;
+        List<UniMap> orders = new ArrayList<UniMap>();
+        for( int h = 0; h < hosts; ++h ) {
+            for( int i = 0; i < perHost; ++i ) {
+                orders.add( order( "h" + h, i, (float) i ) );
+            }
+        }
+        vq.addAll( orders );
+        assertEquals( hosts, vq.hostCount() );
+
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final Set<String> seen = new HashSet<String>();
+        final Map<String,Long> lastTake = new HashMap<String,Long>();
+        final List<String> errors = new ArrayList<String>();
+
+        Thread[] threads = new Thread[ 12 ];
+        for( int t = 0; t < threads.length; ++t ) {
+            threads[t] = new Thread() {
+                public void run()
+                {
+                    try {
+                        UniMap o;
+                        while( ( o = vq.acquire( 200 ) ) != null ) {
+                            int a = active.incrementAndGet();
+                            synchronized( maxActive ) {
+                                if( a > maxActive.get() ) maxActive.set( a );
+                            }
+                            check( o );
+                            active.decrementAndGet();
+                            vq.release( o, null );
+                        }
+                    }
+                    catch( InterruptedException x ) {
+                        synchronized( errors ) {
+                            errors.add( x.toString() );
+                        }
+                    }
+                }
+
+                private void check( UniMap o )
+                {
+                    String url = o.get( ContentKeys.URL ).url();
+                    String domain = o.get( ContentKeys.URL ).domain();
+                    long start = o.get( ContentKeys.VISIT_START ).getTime();
+                    synchronized( seen ) {
+                        if( ! seen.add( url ) ) errors.add( "dupe " + url );
+                        Long last = lastTake.put( domain, start );
+                        if( ( last != null ) && ( start - last < 2 ) ) {
+                            errors.add( "impolite " + domain );
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for( Thread t : threads ) t.join();
+
+        assertEquals( "[]", errors.toString() );
+        assertEquals( hosts * perHost, seen.size() );
+        assertTrue( maxActive.get() <= 5 );
+        assertEquals( 0, vq.orderCount() );
+        assertEquals( 0, vq.acquiredCount() );
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.gravitext.htmap.UniMap;
+
+/**
+ * Visit order factory shared by tests.
+ */
+final class TestOrders
+{
+    /**
+     * Return an order for URL "http://{host}.com/{i}" with priority 1.0.
+     */
+    static UniMap order( String host, int i )
+        throws VisitURL.SyntaxException
+    {
+        return order( host, i, 1.0f );
+    }
+
+    /**
+     * Return an order for URL "http://{host}.com/{i}" with the given
+     * priority.
+     */
+    static UniMap order( String host, int i, float priority )
+        throws VisitURL.SyntaxException
+    {
+        return url( "http://" + host + ".com/" + i, priority );
+    }
+
+    /**
+     * Return count orders for URLs "http://{host}/{i}", i in
+     * [0,count), with the given priority.
+     */
+    static List<UniMap> orders( String host, int count, float priority )
+        throws VisitURL.SyntaxException
+    {
+        List<UniMap> orders = new ArrayList<UniMap>( count );
+        for( int i = 0; i < count; ++i ) {
+            orders.add( url( "http://" + host + "/" + i, priority ) );
+        }
+        return orders;
+    }
+
+    /**
+     * Return an order for each host, with URL "http://{host}/" and
+     * priority 1.0.
+     */
+    static List<UniMap> rootOrders( String... hosts )
+        throws VisitURL.SyntaxException
+    {
+        List<UniMap> orders = new ArrayList<UniMap>( hosts.length );
+        for( String host : hosts ) {
+            orders.add( url( "http://" + host + "/", 1.0f ) );
+        }
+        return orders;
+    }
+
+    /**
+     * Return an order for the raw url, normalized, with priority 1.0.
+     */
+    static UniMap url( String url ) throws VisitURL.SyntaxException
+    {
+        return url( url, 1.0f );
+    }
+
+    /**
+     * Return an order for the raw url, normalized, with the given
+     * priority.
+     */
+    static UniMap url( String url, float priority )
+        throws VisitURL.SyntaxException
+    {
+        UniMap o = new UniMap();
+        o.set( ContentKeys.URL, VisitURL.normalize( url ) );
+        o.set( ContentKeys.PRIORITY, priority );
+        return o;
+    }
+
+    private TestOrders()
+    {
+    }
+}
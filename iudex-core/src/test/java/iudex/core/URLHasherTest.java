@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import static com.gravitext.util.Charsets.UTF_8;
+import static org.junit.Assert.*;
+
+import java.nio.CharBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.gravitext.util.URL64;
+
+public class URLHasherTest
+{
+    @Test
+    public void testKnown()
+    {
+        assertEquals( "8dOml647JKxoA1vSNdi3WAK",
+                      URLHasher.uhash( "http://gravitext.com/" ) );
+        assertEquals( "0pRfQvGEzGRMQ-RgFbytf7l",
+                      URLHasher.uhash( "http://gravitext.com/x/y" ) );
+        assertEquals( "VdYKPM", URLHasher.domainHash( "gravitext.com" ) );
+        assertEquals( "ZleSiQ", URLHasher.domainHash( "other.com" ) );
+    }
+
+    @Test
+    public void testMatchesCharsetEncoding() throws Exception
+    {
+        final Random rand = new Random( 1234L );
+        final char[] chars = { 'a', 'Z', '/', '%', '\u00e9', '\u014d',
+                               '\u4e2a', '\uffff', '\ud801', '\udc00' };
+        for( int i = 0; i < 5000; ++i ) {
+            final StringBuilder b = new StringBuilder( "http://h.c/" );
+            final int length = rand.nextInt( ( i % 10 == 0 ) ? 2000 : 40 );
+            for( int j = 0; j < length; ++j ) {
+                b.append( chars[ rand.nextInt( chars.length ) ] );
+            }
+            final String in = b.toString();
+            assertEquals( in, reference( in, 18, 23 ), URLHasher.uhash( in ) );
+            assertEquals( in, reference( in, 5, 6 ),
+                          URLHasher.domainHash( in ) );
+        }
+    }
+
+    /**
+     * The prior, allocating, implementation.
+     */
+    private static String reference( String in, int bytes, int chars )
+        throws Exception
+    {
+        MessageDigest md = MessageDigest.getInstance( "SHA-1" );
+        md.update( UTF_8.encode( CharBuffer.wrap( in ) ) );
+        return new String( URL64.encode( md.digest(), 0, bytes ), 0, chars );
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Differential test of URLNormalizer against URI based normalization.
+ */
+public class URLNormalizerTest
+{
+    @Test
+    public void testExamples() throws Exception
+    {
+        assertFast( "http://h.c/foo",        "HTTP://H.C:80/foo#anchor" );
+        assertFast( "https://h.c/",          "httpS://h.c:443" );
+        assertFast( "http://h.c:8080/?q=1",  " http://h.c:08080?q=1\t" );
+        assertFast( "http://h.c/foo",        "http://h.c/foo?" );
+        assertFast( "http://h.c/f%C5%8Do",   "http://h.c/f%C5%8Do" );
+
+        // Left to URI normalization
+        assertSlow( "http://h.c/foo",        "http://h.c//foo" );
+        assertSlow( "http://h.c/foo",        "http://h.c/bar/../foo" );
+        assertSlow( "http://h.c/foo",        "http://h.c./foo" );
+        assertSlow( "http://h.c/f%C5%8Do",   "http://h.c/f\u014Do" );
+        assertSlow( "http://h.c/foo?q=a%20b", "http://h.c/foo?q=a  b" );
+        assertSlow( "http://127.0.0.1/",     "http://127.0.0.1:80" );
+        assertSlow( "http://[::1]/",         "http://[::1]:80" );
+        assertSlow( "http://h.c/",           "http://user@h.c/" );
+        assertSlow( null,                    "https://h.c:0/" );
+        assertSlow( null,                    "http://a-.c/" );
+        assertSlow( null,                    "http://h.c/a%2" );
+        assertSlow( null,                    "http://h.c/a|b" );
+        assertSlow( null,                    "ftp://h.c/" );
+    }
+
+    @Test
+    public void testRandomCorpus() throws Exception
+    {
+        final Random rand = new Random( 1234L );
+        int fast = 0;
+        final int count = 40000;
+        for( int i = 0; i < count; ++i ) {
+            if( compare( randomURL( rand ) ) ) ++fast;
+        }
+        assertTrue( "fast path taken " + fast, fast > count / 4 );
+    }
+
+    @Test
+    public void testHost() throws Exception
+    {
+        final String[] urls = { "http://h.c/", "http://H.C:8080/x",
+                                "http://h.c?q", "http://u@h.c/",
+                                "http://u:1@h.c/", "http://h.c:80@x/",
+                                "http://[::1]/", "http://127.0.0.1/",
+                                "http://a-.c/", "http://h_c.com/" };
+        for( String url : urls ) {
+            final String host = URLNormalizer.host( url );
+            if( host != null ) {
+                assertEquals( url, new URI( url ).getHost(), host );
+            }
+        }
+        assertEquals( "h.c", URLNormalizer.host( "http://h.c:8080/" ) );
+        assertNull( URLNormalizer.host( "http://u@h.c/" ) );
+    }
+
+    @Test
+    public void testResolve() throws Exception
+    {
+        VisitURL base = VisitURL.normalize( "http://h.c/foo/" );
+        assertEquals( "http://h.c/foo/bar", base.resolve( "bar" ).url() );
+        assertEquals( "http://o.c/bar",
+                      base.resolve( " HTTP://O.c:80/bar#x" ).url() );
+        assertEquals( "http://o.c/bar", base.resolve( "//o.c/bar" ).url() );
+        assertEquals( "h.c", base.host() );
+    }
+
+    private void assertFast( String expected, String raw ) throws Exception
+    {
+        assertEquals( expected, URLNormalizer.normalize( raw ) );
+        assertTrue( compare( raw ) );
+    }
+
+    private void assertSlow( String expected, String raw ) throws Exception
+    {
+        assertNull( URLNormalizer.normalize( raw ) );
+        assertFalse( compare( raw ) );
+        assertEquals( expected, byURI( raw ) );
+    }
+
+    /**
+     * Assert URLNormalizer and VisitURL.normalize agree with URI
+     * normalization of raw.
+     * @return true if raw was normalized by URLNormalizer
+     */
+    private boolean compare( String raw ) throws Exception
+    {
+        final String expected = byURI( raw );
+        final String fast = URLNormalizer.normalize( raw );
+        if( fast != null ) {
+            assertEquals( raw, expected, fast );
+            assertEquals( raw, new URI( fast ).getHost(),
+                          URLNormalizer.host( fast ) );
+        }
+
+        String actual = null;
+        try {
+            VisitURL url = VisitURL.normalize( raw );
+            actual = url.url();
+            assertEquals( raw, new URI( actual ).getHost(), url.host() );
+        }
+        catch( VisitURL.SyntaxException x ) {}
+        assertEquals( raw, expected, actual );
+
+        return ( fast != null );
+    }
+
+    private String byURI( String raw ) throws Exception
+    {
+        try {
+            return VisitURL.normalizeByURI( raw ).url();
+        }
+        catch( VisitURL.SyntaxException x ) {
+            return null;
+        }
+    }
+
+    private static String randomURL( Random rand )
+    {
+        StringBuilder b = new StringBuilder( 64 );
+        b.append( pick( rand, WRAP ) );
+        b.append( pick( rand, SCHEMES ) );
+        b.append( pick( rand, HOSTS ) );
+        b.append( pick( rand, PORTS ) );
+        final int segments = rand.nextInt( 4 );
+        for( int i = 0; i < segments; ++i ) b.append( pick( rand, PATHS ) );
+        b.append( pick( rand, QUERIES ) );
+        b.append( pick( rand, FRAGMENTS ) );
+        b.append( pick( rand, WRAP ) );
+        return b.toString();
+    }
+
+    /**
+     * Pick from the first, common, four choices most of the time.
+     */
+    private static String pick( Random rand, String[] choices )
+    {
+        final int bound = ( rand.nextInt( 4 ) != 0 ) ? 4 : choices.length;
+        return choices[ rand.nextInt( bound ) ];
+    }
+
+    private static final String[] WRAP =
+        { "", "", "", " ", "\t\n", "\u00A0" };
+
+    private static final String[] SCHEMES =
+        { "http://", "http://", "https://", "HTTP://", "HttpS://",
+          "http:/", "http:", "ftp://", "httpx://", "" };
+
+    private static final String[] HOSTS =
+        { "h.c", "www.example.com", "WWW.Example.COM", "a-b.c", "a-.c",
+          "-a.c", "1a.com", "foo.123", "foo.1com", "127.0.0.1", "h.c.",
+          "a..c", "h_c.com", "[::1]", "[FEDC::1]", "user@h.c", "u:p@h.c",
+          "h.c:80@x.c", "", "h%41.c", "b\u00FCcher.ch", "h.c\u00A0" };
+
+    private static final String[] PORTS =
+        { "", "", "", ":80", ":443", ":8080", ":080", ":0", ":",
+          ":65535", ":65536", ":123456", ":-1", ":8a" };
+
+    private static final String[] PATHS =
+        { "/", "/foo", "/Foo", "/a%20b", "/.", "/..", "/.x", "/..x", "/a b",
+          "/", "/a%2", "/a%zz", "/f%C5%8Do", "/f\u014Do", "/a|b",
+          "/a;b=c,d", "/~u/'x'(1)!*", "/a:b@c", "/a[b]", "/a\\b",
+          "/a&b=c+d$", "/a\"b", "/a{b}", "/a^b", "/a`b", "/a<b>",
+          "/a\u007Fb", "/a\tb" };
+
+    private static final String[] QUERIES =
+        { "", "", "?q=1", "?", "?q=a b", "?q=a%26b", "?a[1]=2",
+          "?q=/x?y", "?q=|", "?q=%", "?q=%4", "?Q=A+B&c=d;e",
+          "?q=\u00E9", "?q=a#" };
+
+    private static final String[] FRAGMENTS =
+        { "", "", "#", "#f", "#f#g", "#a b", "#[x]", "#/a?b", "#%zz",
+          "#\u00E9" };
+}
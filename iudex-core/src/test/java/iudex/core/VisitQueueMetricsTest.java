@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2008-2015 David Kellum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.  You may
+ * obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package iudex.core;
+
+import static iudex.core.TestOrders.order;
+import static org.junit.Assert.*;
+
+import iudex.core.VisitQueueMetrics.Generation;
+import iudex.core.VisitQueueMetrics.Histogram;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.gravitext.htmap.UniMap;
+
+public class VisitQueueMetricsTest
+{
+    @Test
+    public void testHistogram()
+    {
+        Histogram h = new Histogram();
+        assertEquals( 0, h.percentile( 0.5 ) );
+
+        for( int i = 1; i <= 100; ++i ) h.record( i );
+        h.record( -5 );
+
+        assertEquals( 101, h.count() );
+        assertEquals( 100, h.max() );
+        assertEquals( 5050.0 / 101, h.mean(), 0.001 );
+        assertEquals( 63, h.percentile( 0.5 ) );
+        assertEquals( 100, h.percentile( 0.99 ) );
+        assertEquals( 0, h.percentile( 0.0 ) );
+    }
+
+    @Test
+    public void testGenerations() throws Exception
+    {
+        runGenerations( 1 );
+    }
+
+    @Test
+    public void testShardedGenerations() throws Exception
+    {
+        runGenerations( 4 );
+    }
+
+    private void runGenerations( int shards ) throws Exception
+    {
+        VisitQueueMetrics metrics = new VisitQueueMetrics();
+
+        VisitQueue template = new VisitQueue();
+        template.setDefaultMinHostDelay( 20 );
+        template.setListener( metrics );
+        VisitQueueFactory factory = new VisitQueueFactory( template, shards );
+
+        VisitQueue vq = factory.createVisitQueue();
+        assertSame( metrics, vq.listener() );
+
+        // Not notified until swapped in by VisitManager
+        VisitQueue next = factory.createVisitQueue();
+        assertEquals( 0, metrics.getGeneration() );
+        metrics.generation( vq );
+        assertEquals( 1, metrics.getGeneration() );
+
+        long past = System.currentTimeMillis() - 1000;
+        for( int h = 0; h < 3; ++h ) {
+            for( int i = 0; i < 3; ++i ) {
+                UniMap o = order( "h" + h, i );
+                o.set( ContentKeys.NEXT_VISIT_AFTER, new Date( past ) );
+                vq.add( o );
+            }
+        }
+        assertEquals( 3, metrics.getReadyHostCount() );
+
+        for( int i = 0; i < 9; ++i ) {
+            UniMap order = vq.acquire( 200 );
+            assertNotNull( order );
+            vq.release( order, null );
+        }
+
+        Generation g = metrics.current();
+        assertEquals( 9, g.hostWait().count() );
+        assertEquals( 9, g.acquireWait().count() );
+        assertTrue( g.orderAge().percentile( 0.5 ) >= 1000 );
+        assertTrue( g.idle().count() >= 6 );
+        assertTrue( g.idle().max() <= 20 );
+        assertEquals( "politeness", g.boundBy() );
+        assertEquals( 0, metrics.getOrderCount() );
+        assertTrue( metrics.getSummary().startsWith( "Generation 1:" ) );
+
+        assertNull( vq.acquire( 10 ) );
+        assertEquals( 1, g.acquireTimeouts() );
+
+        metrics.generation( next );
+        assertEquals( 2, metrics.getGeneration() );
+        assertSame( g, metrics.prior() );
+        assertEquals( 0, metrics.getAcquireCount() );
+    }
+}
@@ -65,6 +65,32 @@ class TestVisitManager < MiniTest::Unit::TestCase
     pass
   end
 
+  def test_workers_dispatch
+    @manager.dispatch = VisitManager::Dispatch::WORKERS
+    @manager.start
+    assert( @latch.await( 5, TimeUnit::SECONDS ) )
+    @manager.shutdown
+    pass
+  end
+
+  def test_virtual_dispatch
+    @manager.dispatch = VisitManager::Dispatch::VIRTUAL
+    @manager.max_concurrent_visits = 3
+    @manager.start
+    assert( @latch.await( 5, TimeUnit::SECONDS ) )
+    @manager.shutdown
+    pass
+  end
+
+  def test_continuous_refill
+    @latch = CountDownLatch.new( 40 )
+    @manager.continuous_refill = true
+    @manager.start
+    assert( @latch.await( 5, TimeUnit::SECONDS ) )
+    @manager.shutdown
+    pass
+  end
+
   class TestWorkPoller < GenericWorkPollStrategy
     include Gravitext::HTMap
     include Iudex::Core
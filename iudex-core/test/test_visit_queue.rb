@@ -341,6 +341,34 @@ class TestVisitQueue < MiniTest::Unit::TestCase
     assert_queue_empty
   end
 
+  def test_batch_acquire
+    @visit_q.default_min_host_delay = 0
+    @visit_q.default_max_access_per_host = 2
+    @visit_q.config( :domain => 'h3.com', :delay => 50, :cons => 1 )
+
+    %w[ h1 h2 h3 ].each do |h|
+      3.times { |i| @visit_q.add( order( [ h, i, 1.0 ] ) ) }
+    end
+
+    first = Java::java.util.ArrayList.new
+    assert_equal( 3, @visit_q.acquire( 10, 200, first ) )
+    assert_equal( %w[ h1 h2 h3 ], first.map { |o| o.vtest_input[0] }.sort )
+    assert_equal( 3, @visit_q.acquired_count )
+
+    # Each host is taken at most once per batch, and h3 has no
+    # remaining access until released.
+    batch = Java::java.util.ArrayList.new
+    assert_equal( 2, @visit_q.acquire( 10, 200, batch ) )
+    assert_equal( %w[ h1 h2 ], batch.map { |o| o.vtest_input[0] }.sort )
+
+    h3 = first.find { |o| o.vtest_input[0] == 'h3' }
+    @visit_q.release( h3, nil )
+
+    batch.clear
+    assert_equal( 1, @visit_q.acquire( 1, 200, batch ) )
+    assert_equal( 'h3', batch.first.vtest_input[0] )
+  end
+
   def assert_queue_empty
     @scheduler.shutdown
     @scheduler.await_termination( 2, TimeUnit::SECONDS )
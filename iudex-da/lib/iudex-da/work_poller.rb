@@ -228,7 +228,7 @@ module Iudex::DA
 
     # Override GenericWorkPollStrategy
     def pollWorkImpl( visit_queue )
-      res = poll( visit_queue.order_count )
+      res = poll( target_order_count )
       visit_queue.add_all( res ) if res
     rescue SQLException => x
       @log.error( "On poll: ", x )
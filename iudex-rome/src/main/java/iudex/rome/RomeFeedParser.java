@@ -37,6 +37,7 @@ import com.sun.syndication.io.XmlReaderException;
 import static iudex.core.ContentKeys.*;
 
 import iudex.core.ContentSource;
+import iudex.core.LinkResolver;
 import iudex.core.VisitURL;
 import iudex.core.VisitURL.SyntaxException;
 import iudex.filter.Filter;
@@ -81,23 +82,36 @@ public class RomeFeedParser implements Filter
         content.set( REF_PUB_DATE, feed.getPublishedDate() );
         content.set( PUB_DATE,     feed.getPublishedDate() );
 
+        // Resolve links relative to the feed URL, and skip entries
+        // with duplicate links.
+        LinkResolver resolver = new LinkResolver( content.get( URL ) );
+
         ArrayList<UniMap> refs = new ArrayList<UniMap>();
         List<?> entries = feed.getEntries();
         for( Object oe : entries ) {
             SyndEntry entry = (SyndEntry) oe;
 
-            refs.add( entryToReference( entry ) );
+            UniMap ref = entryToReference( entry, resolver );
+            if( ref != null ) refs.add( ref );
+        }
+        if( resolver.duplicates() > 0 ) {
+            _log.debug( "Skipped {} entries with duplicate links",
+                        resolver.duplicates() );
         }
         content.set( REFERENCES, refs );
     }
 
-    private UniMap entryToReference( SyndEntry entry )
+    /**
+     * Return a reference for entry, or null if its link is a duplicate.
+     */
+    private UniMap entryToReference( SyndEntry entry, LinkResolver resolver )
     {
         UniMap ref = new UniMap();
         try {
             if( entry.getLink() != null ) {
-                //FIXME: Handle URLs relative to feed.
-                ref.set( URL, VisitURL.normalize( entry.getLink() ) );
+                VisitURL url = resolver.resolve( entry.getLink() );
+                if( url == null ) return null;
+                ref.set( URL, url );
             }
         }
         catch( SyntaxException x ) {
@@ -38,6 +38,9 @@ Iudex.configure do |c|
 
   c.setup_filter_factory do |ff|
 
+    ff.barc_max_write_sessions = threads
+    ff.barc_group_commit_delay = 1_000 #ms
+
     def ff.barc_writer
       super.tap do |w|
         w.do_compress = false
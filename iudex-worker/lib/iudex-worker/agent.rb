@@ -142,6 +142,9 @@ module Iudex
         # (i.e. when fcf.filter raises)
         vexec.shutdown if vexec
 
+        # Stops any async poll thread and discards staged work
+        wpoller.shutdown if wpoller
+
         dsf.close if dsf
       end
 
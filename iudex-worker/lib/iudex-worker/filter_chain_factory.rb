@@ -60,11 +60,33 @@ module Iudex
       attr_accessor :executor
       attr_accessor :work_poller
 
+      # Maximum concurrent BARC write sessions, each writing its own
+      # BARC file (default: 4)
+      attr_accessor :barc_max_write_sessions
+
+      # If set, the maximum delay in milliseconds before appended BARC
+      # records are forced to disk, in batches by a shared
+      # GroupCommit, rather than forcing each record as written
+      # (default: nil)
+      attr_accessor :barc_group_commit_delay
+
       def initialize( name )
         super
+        @barc_max_write_sessions = 4
+        @barc_group_commit_delay = nil
+        @barc_group_commit = nil
         setup_reporters
       end
 
+      def close
+        super
+      ensure
+        if @barc_group_commit
+          @barc_group_commit.close
+          @barc_group_commit = nil
+        end
+      end
+
       def setup_reporters
         # Use default, preserved for overrides
       end
@@ -177,9 +199,19 @@ module Iudex
 
       def barc_directory
         bdir = BARCDirectory.new( Java::java.io.File.new( "./barc" ) )
+        bdir.max_write_sessions = barc_max_write_sessions
+        bdir.group_commit = barc_group_commit if barc_group_commit_delay
         bdir
       end
 
+      # GroupCommit shared by BARC directories, closed with this
+      # factory.
+      def barc_group_commit
+        @barc_group_commit ||= GroupCommit.new.tap do |gc|
+          gc.max_delay = barc_group_commit_delay
+        end
+      end
+
       def page_updater
         create_update_filter( :fields     => page_update_keys,
                               :on_content => :page_post,